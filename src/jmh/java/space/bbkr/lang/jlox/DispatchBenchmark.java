@@ -0,0 +1,63 @@
+package space.bbkr.lang.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * The tree-walking interpreter on expression-heavy code, visiting nodes through {@code accept}
+ * against switching on their {@code kind}, and against running it compiled into closures.
+ * The program is compiled once, so only running it is measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DispatchBenchmark {
+	@Param({"visitor", "switch", "closures"})
+	public String dispatch;
+
+	private List<Statement> program;
+	private ClosureCompiler.StatementNode compiled;
+
+	@Setup
+	public void setup() throws IOException {
+		String source;
+		try (InputStream stream = DispatchBenchmark.class.getResourceAsStream("/programs/expressions.lx")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			source = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+		List<Statement> statements = new Parser(new Scanner(source)).parse();
+		new Resolver().resolve(statements);
+		program = new Specializer().rewrite(new ConstantFolder().rewrite(statements));
+		compiled = new ClosureCompiler().compile(program);
+	}
+
+	@Benchmark
+	public void run(Blackhole blackhole) {
+		Interpreter interpreter = new Interpreter(dispatch.equals("switch"), false);
+		if (dispatch.equals("closures")) {
+			interpreter.interpret(compiled);
+		} else {
+			interpreter.interpret(program);
+		}
+		blackhole.consume(interpreter);
+	}
+}
@@ -0,0 +1,69 @@
+package space.bbkr.lang.jlox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import space.bbkr.lang.jlox.vm.VM;
+
+/**
+ * Whole programs from source to finished, on the tree-walker, compiled closures and the VM.
+ * The programs are in the `programs` resource folder, and keep their results in globals instead of printing them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+	@Param({"fib", "methods", "closures", "strings", "instances", "expressions"})
+	public String program;
+
+	@Param({"tree", "closures", "vm"})
+	public String engine;
+
+	private String source;
+
+	@Setup
+	public void setup() throws IOException {
+		try (InputStream stream = EndToEndBenchmark.class.getResourceAsStream("/programs/" + program + ".lx")) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = stream.read(buffer)) != -1) {
+				bytes.write(buffer, 0, read);
+			}
+			source = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	@Benchmark
+	public void run(Blackhole blackhole) {
+		List<Statement> statements = new Parser(new Scanner(source)).parse();
+		new Resolver().resolve(statements);
+		statements = new Specializer().rewrite(new ConstantFolder().rewrite(statements));
+		if (engine.equals("vm")) {
+			VM vm = new VM();
+			vm.interpret(statements);
+			blackhole.consume(vm);
+		} else {
+			Interpreter interpreter = new Interpreter();
+			if (engine.equals("closures")) {
+				interpreter.interpret(new ClosureCompiler().compile(statements));
+			} else {
+				interpreter.interpret(statements);
+			}
+			blackhole.consume(interpreter);
+		}
+	}
+}
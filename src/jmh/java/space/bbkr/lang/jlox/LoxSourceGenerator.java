@@ -0,0 +1,39 @@
+package space.bbkr.lang.jlox;
+
+/**
+ * Makes Lox programs of any size for the pipeline benchmarks, by repeating a chunk that touches every stage:
+ * functions, classes, loops, locals, strings and arithmetic. Every chunk gets its own names, so the
+ * resolver doesn't see anything declared twice. Nothing prints, so running it doesn't just measure stdout.
+ */
+final class LoxSourceGenerator {
+	private static final String CHUNK =
+			"fun square%1$d(n: number) -> number {\n" +
+			"    return n * n;\n" +
+			"}\n" +
+			"class Point%1$d {\n" +
+			"    init(x: number, y: number) {\n" +
+			"        this.x = x;\n" +
+			"        this.y = y;\n" +
+			"    }\n" +
+			"    getX() -> number { return this.x; }\n" +
+			"}\n" +
+			"var total%1$d = 0;\n" +
+			"for (var i = 0; i < 10; i = i + 1) {\n" +
+			"    var point = Point%1$d(i, %1$d);\n" +
+			"    total%1$d = total%1$d + square%1$d(i) + point.getX() * 2 - 1;\n" +
+			"}\n" +
+			"var label%1$d = \"chunk \" + %1$d + (total%1$d > 100? \" is big\" : \" is small\");\n";
+
+	private LoxSourceGenerator() { }
+
+	/**
+	 * @param size Roughly how many characters the program should be. It ends at the first whole chunk past this.
+	 */
+	static String generate(int size) {
+		StringBuilder builder = new StringBuilder(size + CHUNK.length() * 2);
+		for (int i = 0; builder.length() < size; i++) {
+			builder.append(String.format(CHUNK, i));
+		}
+		return builder.toString();
+	}
+}
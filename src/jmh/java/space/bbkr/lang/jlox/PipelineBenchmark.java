@@ -0,0 +1,66 @@
+package space.bbkr.lang.jlox;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Each stage of the tree-walking pipeline on its own, fed the output of the stages before it.
+ * Sources come from {@link LoxSourceGenerator}, at a few chunks and at a few megabytes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class PipelineBenchmark {
+	//characters of source to generate
+	@Param({"2000", "4000000"})
+	public int size;
+
+	private String source;
+	private TokenBuffer tokens;
+	private List<Statement> parsed;
+	private List<Statement> program;
+
+	@Setup
+	public void setup() {
+		source = LoxSourceGenerator.generate(size);
+		tokens = new Scanner(source).scanBuffer();
+		parsed = new Parser(tokens).parse();
+		new Resolver().resolve(parsed);
+		program = new Specializer().rewrite(new ConstantFolder().rewrite(parsed));
+	}
+
+	@Benchmark
+	public TokenBuffer scan() {
+		return new Scanner(source).scanBuffer();
+	}
+
+	@Benchmark
+	public List<Statement> parse() {
+		return new Parser(tokens).parse();
+	}
+
+	//resolving writes the same results onto the tree every time, so reusing it is fine
+	@Benchmark
+	public void resolve(Blackhole blackhole) {
+		Resolver resolver = new Resolver();
+		resolver.resolve(parsed);
+		blackhole.consume(resolver);
+	}
+
+	@Benchmark
+	public void interpret(Blackhole blackhole) {
+		Interpreter interpreter = new Interpreter();
+		interpreter.interpret(program);
+		blackhole.consume(interpreter);
+	}
+}
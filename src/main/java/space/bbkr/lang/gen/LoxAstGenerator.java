@@ -9,12 +9,16 @@ import java.util.List;
  * Generator for the abstract syntax tree for Lox.
  * Because of this, I can't add any docs directly to Expression or Statement.
  * Run with arg `src/main/java/space/bbkr/lang/jlox` to make them generate in place
- * Entry format: <type name>: <comma-separated arguments>
+ * Entry format: <type name>: <comma-separated arguments>[; <comma-separated mutable fields with initial values>]
+ * mutable fields aren't part of the constructor - they're filled in after parsing, i.e. by the resolver
+ * the specialized nodes (NumberBinary, Concat, etc.) are never parsed, only swapped in by {@code Specializer}
  * support for @Nullable annotation is hardcoded, as strings are split on ' '
  * nodes are generally sorted by order of precedence - higher on list has higher precedence
  * each subclass has a pre-generated body so we only need to write one method to visit each type of class,
  * making it so that we don't need to worry about grain direction
  * (see <a href="https://craftinginterpreters.com/representing-code.html#the-expression-problem">The Expression Problem</a>)
+ * nodes are public so that the bytecode compiler in {@code space.bbkr.lang.jlox.vm} can walk them too
+ * every node also gets a {@code kind} tag, so a hot loop can switch on it instead of visiting through one megamorphic call
  */
 public class LoxAstGenerator {
 	public static void main(String[] args) throws IOException {
@@ -24,39 +28,44 @@ public class LoxAstGenerator {
 		}
 		String outputDir = args[0];
 		//expressions - evaluated and a value is returned
-		defineAst(outputDir, "Expression", Arrays.asList(
-				"Assign: Token name, Expression value", //assign a value to a variable - `x = 5`
+		defineAst(outputDir, "Expression", "LoxType resolvedType = LoxType.UNKNOWN", Arrays.asList(
+				"Assign: Token name, Expression value; int depth = -1, int slot = -1, int upvalue = -1, boolean boxed = false", //assign a value to a variable - `x = 5`
 				"Ternary: Token question, Expression condition, Expression positive, Expression negative", //ternary operation - 5 == 5? true : false
 				"Logical: Expression left, Token operator, Expression right", //boolean logic binary operation - true and false ('and' literal will be changed to '&&' later)
-				"Binary: Expression left, Token operator, Expression right", //binary operation - +, -, *, /, <, <=, >, >=
+				"Binary: Expression left, Token operator, Expression right; int state = 0, int rewrites = 0", //binary operation - +, -, *, /, <, <=, >, >=, which specializes itself on the operands it sees, and how many times it has
 				"Unary: Token operator, Expression right", //unary operation - !true, -5
-				"Call: Expression callee, Token paren, List<Expression> arguments", //call a function or ctor (callee is the callable)
-				"Get: Expression object, Token name", //get a property from an instance - object.property
-				"Set: Expression object, Token name, Expression value", //set a property on an instance, object.property = 5
+				"NumberBinary: Expression left, Token operator, Expression right", //arithmetic the resolver proved is on two numbers - +, -, *, /
+				"NumberCompare: Expression left, Token operator, Expression right", //comparison the resolver proved is between two numbers - <, <=, >, >=, ==, !=
+				"Concat: Expression left, Token operator, Expression right", //'+' the resolver proved has a string on one side
+				"Negate: Token operator, Expression right", //'-' on a value the resolver proved is a number
+				"Not: Token operator, Expression right", //'!' on a value the resolver proved is a boolean
+				"Call: Expression callee, Token paren, List<Expression> arguments; @Nullable LoxCallable target = null, int targetVersion = 0, @Nullable Statement.FunctionStatement function = null, int state = 0, int rewrites = 0", //call a function or ctor (callee is the callable), the global val it's bound to, and the only function it's called so far
+				"Get: Expression object, Token name; final PropertyCache cache = new PropertyCache()", //get a property from an instance - object.property
+				"Set: Expression object, Token name, Expression value; final PropertyCache cache = new PropertyCache()", //set a property on an instance, object.property = 5
 				"Literal: LoxType type, @Nullable Object value", //number, boolean, or string literal
-				"Super: Token keyword, Token method", //call a method on superclass
-				"This: Token keyword", //access a property or method on self
-				"Variable: Token name", //reference a variable
+				"Super: Token keyword, Token method, Expression.ThisExpression receiver; int depth = -1, int slot = -1, int upvalue = -1, boolean boxed = false", //call a method on superclass, with the `this` to call it on
+				"This: Token keyword; int depth = -1, int slot = -1, int upvalue = -1, boolean boxed = false", //access a property or method on self
+				"Variable: Token name; int depth = -1, int slot = -1, int upvalue = -1, boolean boxed = false, @Nullable Token constant = null", //reference a variable, and the name of the val it refers to if it's one
 				"Grouping: Expression expression", //do an operation inside of parentheses
 				"Class: Statement.ClassStatement clazz", //define a class while inside an argument, for anonymous classes
 				"Function: Statement.FunctionStatement function", //define a function inside of an argument, for anonymous functions
 				"Parameter: Token name, LoxType type" //name and type for function param
 		));
 
-		defineAst(outputDir, "Statement", Arrays.asList(
+		defineAst(outputDir, "Statement", null, Arrays.asList(
 				"If: Token keyword, Expression condition, Statement thenBranch, @Nullable Statement elseBranch", //if statement - if (true) print(5); else print(4);
 				"Return: Token keyword, @Nullable Expression value, boolean hasType", //return
 				"While: Token keyword, Expression condition, Statement body", //while loop - for loops are sugar
 				"Break: Token keyword", //break a loop
-				"Block: List<Statement> statements", //block of statements in curly brackets
-				"Class: Token name, @Nullable Expression.VariableExpression superclass, List<Statement.FunctionStatement> methods", //class, with a name, optional superclass, and methods (properties can be added at any time)
-				"Function: Token name, List<Expression.ParameterExpression> params, List<Statement> body, LoxType returnType", //function, with a name, params, a body, and a return type
-				"Var: Token name, @Nullable Expression initializer", //variable with a name and optional initializer
+				"Block: List<Statement> statements; int localCount = 0, @Nullable boolean[] captured = null", //block of statements in curly brackets, how big a frame it needs (0 if it shares the one it's in), and which slots of that frame closures capture
+				"Class: Token name, @Nullable Expression.VariableExpression superclass, List<Statement.FunctionStatement> methods; int slot = -1, boolean boxed = false", //class, with a name, optional superclass, and methods (properties can be added at any time), plus the slot it's defined in
+				"Function: Token name, List<Expression.ParameterExpression> params, List<Statement> body, LoxType returnType; int localCount = 0, @Nullable boolean[] captured = null, @Nullable int[] upvalues = null, int slot = -1, boolean boxed = false", //function, with a name, params, a body, and a return type, plus where the variables it captures come from and the slot it's defined in
+				"Var: Token name, @Nullable Expression initializer, boolean constant; int slot = -1, boolean boxed = false", //variable with a name and optional initializer, which can't be assigned to again if it's a val, and the slot it's defined in
 				"Expression: Expression expression" //just an expression as a statement
 		));
 	}
 
-	private static void defineAst(String outputDir, String baseName, List<String> types) throws IOException {
+	private static void defineAst(String outputDir, String baseName, String baseFields, List<String> types) throws IOException {
 		String path = outputDir + "/" + baseName + ".java";
 		PrintWriter writer = new PrintWriter(path, "UTF-8");
 
@@ -67,10 +76,26 @@ public class LoxAstGenerator {
 		writer.println();
 		writer.println("import javax.annotation.Nullable;");
 		writer.println();
-		writer.println("abstract class " + baseName + " {");
+		writer.println("public abstract class " + baseName + " {");
+		//kind tags, in the same order as the visitor
+		for (int i = 0; i < types.size(); i++) {
+			writer.println("\tpublic static final int " + kindName(types.get(i).split(":")[0].trim()) + " = " + i + ";");
+		}
+		writer.println();
+		//fields shared by every node
+		writer.println("\tpublic final int kind;");
+		if (baseFields != null) {
+			for (String field : baseFields.split(", ")) {
+				writer.println("\tpublic " + field + ";");
+			}
+		}
+		writer.println();
+		writer.println("\t" + baseName + "(int kind) {");
+		writer.println("\t\tthis.kind = kind;");
+		writer.println("\t}");
 		writer.println();
 		//base accept() method
-		writer.println("\tabstract <R> R accept(Visitor<R> visitor);");
+		writer.println("\tpublic abstract <R> R accept(Visitor<R> visitor);");
 		writer.println();
 
 		//visitor interface
@@ -81,8 +106,8 @@ public class LoxAstGenerator {
 		for (int i = 0; i < types.size(); i++) {
 			String type = types.get(i);
 			String className = type.split(":")[0].trim();
-			String fields = type.split(":")[1].trim();
-			defineType(writer, baseName, className, fields);
+			String[] fields = type.split(":")[1].trim().split("; ");
+			defineType(writer, baseName, className, fields[0], fields.length > 1? fields[1] : null);
 			//don't print an extra blank line after the final type
 			if (i != types.size() - 1) writer.println();
 		}
@@ -92,8 +117,15 @@ public class LoxAstGenerator {
 		writer.close();
 	}
 
+	/**
+	 * @return The name of a node's kind constant - `NumberBinary` becomes `NUMBER_BINARY`.
+	 */
+	private static String kindName(String className) {
+		return className.replaceAll("([a-z])([A-Z])", "$1_$2").toUpperCase();
+	}
+
 	private static void defineVisitor(PrintWriter writer, String baseName, List<String> types) {
-		writer.println("\tinterface Visitor<R> {");
+		writer.println("\tpublic interface Visitor<R> {");
 
 		for (String type : types) {
 			String typeName = type.split(":")[0].trim();
@@ -103,14 +135,20 @@ public class LoxAstGenerator {
 		writer.println("\t}");
 	}
 
-	private static void defineType(PrintWriter writer, String baseName, String className, String fieldList) {
-		writer.println("\tstatic class " + className + baseName + " extends " + baseName + " {");
+	private static void defineType(PrintWriter writer, String baseName, String className, String fieldList, String mutableList) {
+		writer.println("\tpublic static class " + className + baseName + " extends " + baseName + " {");
 		String[] fields = fieldList.split(", ");
 		for (String field : fields) {
-			writer.println("\t\t final " + field + ";");
+			writer.println("\t\tpublic final " + field + ";");
+		}
+		if (mutableList != null) {
+			for (String field : mutableList.split(", ")) {
+				writer.println("\t\tpublic " + field + ";");
+			}
 		}
 		writer.println();
 		writer.println("\t\t" + className + baseName + "(" + fieldList + ") {");
+		writer.println("\t\t\tsuper(" + kindName(className) + ");");
 		for (String field : fields) {
 			String[] split = field.split(" ");
 			String name = split[0].equals("@Nullable")? split[2] : split[1];
@@ -119,7 +157,7 @@ public class LoxAstGenerator {
 		writer.println("\t\t}");
 		writer.println();
 		writer.println("\t\t@Override");
-		writer.println("\t\t<R> R accept(Visitor<R> visitor) {");
+		writer.println("\t\tpublic <R> R accept(Visitor<R> visitor) {");
 		writer.println("\t\t\treturn visitor.visit" + className + baseName + "(this);");
 		writer.println("\t\t}");
 		writer.println("\t}");
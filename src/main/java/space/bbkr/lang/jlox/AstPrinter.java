@@ -1,17 +1,24 @@
 package space.bbkr.lang.jlox;
 
+import java.util.List;
+
 /**
  * Debug class that prints a representation of the abstract syntax tree with parenthesis wrapping. Might be removed.
+ * Statements are printed the same way, one top-level statement per line, which is what `--dump-ast` shows.
  */
-public class AstPrinter implements Expression.Visitor<String> {
+public class AstPrinter implements Expression.Visitor<String>, Statement.Visitor<String> {
 
 	String print(Expression expression) {
 		return expression.accept(this);
 	}
 
+	String print(Statement statement) {
+		return statement.accept(this);
+	}
+
 	@Override
 	public String visitAssignExpression(Expression.AssignExpression expression) {
-		return ("= " + expression.name.lexeme + print(expression.value));
+		return ("(= " + expression.name.lexeme + " " + print(expression.value) + ")");
 	}
 
 	@Override
@@ -27,7 +34,7 @@ public class AstPrinter implements Expression.Visitor<String> {
 
 	@Override
 	public String visitLogicalExpression(Expression.LogicalExpression expression) {
-		return parenthesize("and", expression.left, expression.right);
+		return parenthesize(expression.operator.lexeme, expression.left, expression.right);
 	}
 
 	@Override
@@ -40,24 +47,55 @@ public class AstPrinter implements Expression.Visitor<String> {
 		return parenthesize(expression.operator.lexeme, expression.right);
 	}
 
+	@Override
+	public String visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		return parenthesize(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		return parenthesize(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitConcatExpression(Expression.ConcatExpression expression) {
+		return parenthesize(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitNegateExpression(Expression.NegateExpression expression) {
+		return parenthesize(expression.operator.lexeme, expression.right);
+	}
+
+	@Override
+	public String visitNotExpression(Expression.NotExpression expression) {
+		return parenthesize(expression.operator.lexeme, expression.right);
+	}
+
 	@Override
 	public String visitCallExpression(Expression.CallExpression expression) {
-		return parenthesize("call", expression.arguments.toArray(new Expression[0]));
+		StringBuilder builder = new StringBuilder("(call ").append(print(expression.callee));
+		for (Expression argument : expression.arguments) {
+			builder.append(" ").append(print(argument));
+		}
+		return builder.append(")").toString();
 	}
 
 	@Override
 	public String visitGetExpression(Expression.GetExpression expression) {
-		return parenthesize("get", expression.object);
+		return "(get " + print(expression.object) + " " + expression.name.lexeme + ")";
 	}
 
 	@Override
 	public String visitSetExpression(Expression.SetExpression expression) {
-		return parenthesize("set", expression.object, expression.value);
+		return "(set " + print(expression.object) + " " + expression.name.lexeme + " " + print(expression.value) + ")";
 	}
 
 	@Override
 	public String visitLiteralExpression(Expression.LiteralExpression expression) {
 		if (expression.value == null) return "nil";
+		//quote strings, so they can be told apart from numbers and booleans
+		if (expression.value instanceof String) return "\"" + expression.value + "\"";
 		return expression.value.toString();
 	}
 
@@ -96,6 +134,75 @@ public class AstPrinter implements Expression.Visitor<String> {
 		return expression.name.lexeme + ": " + expression.type.lexeme;
 	}
 
+	@Override
+	public String visitIfStatement(Statement.IfStatement statement) {
+		String result = "(if " + print(statement.condition) + " " + print(statement.thenBranch);
+		if (statement.elseBranch != null) result += " " + print(statement.elseBranch);
+		return result + ")";
+	}
+
+	@Override
+	public String visitReturnStatement(Statement.ReturnStatement statement) {
+		if (statement.value == null) return "(return)";
+		return "(return " + print(statement.value) + ")";
+	}
+
+	@Override
+	public String visitWhileStatement(Statement.WhileStatement statement) {
+		return "(while " + print(statement.condition) + " " + print(statement.body) + ")";
+	}
+
+	@Override
+	public String visitBreakStatement(Statement.BreakStatement statement) {
+		return "(break)";
+	}
+
+	@Override
+	public String visitBlockStatement(Statement.BlockStatement statement) {
+		return block("block", statement.statements);
+	}
+
+	@Override
+	public String visitClassStatement(Statement.ClassStatement statement) {
+		String name = "class " + statement.name.lexeme;
+		if (statement.superclass != null) name += " : " + statement.superclass.name.lexeme;
+		return block(name, statement.methods);
+	}
+
+	@Override
+	public String visitFunctionStatement(Statement.FunctionStatement statement) {
+		StringBuilder name = new StringBuilder("fun ").append(statement.name.lexeme).append(" (");
+		for (int i = 0; i < statement.params.size(); i++) {
+			if (i != 0) name.append(", ");
+			name.append(print(statement.params.get(i)));
+		}
+		name.append(")");
+		return block(name.toString(), statement.body);
+	}
+
+	@Override
+	public String visitVarStatement(Statement.VarStatement statement) {
+		String keyword = statement.constant? "val" : "var";
+		if (statement.initializer == null) return "(" + keyword + " " + statement.name.lexeme + ")";
+		return "(" + keyword + " " + statement.name.lexeme + " " + print(statement.initializer) + ")";
+	}
+
+	@Override
+	public String visitExpressionStatement(Statement.ExpressionStatement statement) {
+		return "(; " + print(statement.expression) + ")";
+	}
+
+	private String block(String name, List<? extends Statement> statements) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("(").append(name);
+		for (Statement statement : statements) {
+			builder.append(" ");
+			builder.append(print(statement));
+		}
+		builder.append(")");
+		return builder.toString();
+	}
+
 	private String parenthesize(String name, Expression... expressions) {
 		StringBuilder builder = new StringBuilder();
 		builder.append("(").append(name);
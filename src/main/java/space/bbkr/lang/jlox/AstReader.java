@@ -0,0 +1,340 @@
+package space.bbkr.lang.jlox;
+
+import static space.bbkr.lang.jlox.AstWriter.*;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Reads back a syntax tree that {@link AstWriter} wrote, ready to run without going through the resolver again.
+ * Bad data shows up as an {@link IllegalArgumentException} or a {@link java.nio.BufferUnderflowException}.
+ */
+class AstReader {
+	private static final TokenType[] TOKEN_TYPES = TokenType.values();
+
+	private final ByteBuffer in;
+	private final LineMap lines;
+	private final List<Token> tokens = new ArrayList<>();
+	private final List<String> strings = new ArrayList<>();
+
+	/**
+	 * @param lines Where the lines of the script the tree came from start, for the tokens to report errors with.
+	 */
+	AstReader(ByteBuffer in, LineMap lines) {
+		this.in = in;
+		this.lines = lines;
+	}
+
+	List<Statement> readStatements() {
+		int size = readCount();
+		List<Statement> statements = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			statements.add(readStatement());
+		}
+		return statements;
+	}
+
+	/**
+	 * Read an int written by {@link AstWriter#writeInt(int)}.
+	 */
+	int readInt() {
+		int bits = 0;
+		int shift = 0;
+		byte b;
+		do {
+			if (shift > 28) throw new IllegalArgumentException("Int too long");
+			b = in.get();
+			bits |= (b & 0x7F) << shift;
+			shift += 7;
+		} while (b < 0);
+		return (bits >>> 1) ^ -(bits & 1);
+	}
+
+	/**
+	 * Read how many of something follow, which can't be more than there are bytes left for them to take up.
+	 * A corrupt entry would otherwise be able to ask for an array too big to allocate.
+	 */
+	private int readCount() {
+		return checkCount(readInt());
+	}
+
+	private int checkCount(int count) {
+		if (count < 0 || count > in.remaining()) throw new IllegalArgumentException("Bad count " + count);
+		return count;
+	}
+
+	/**
+	 * Read how many locals a frame has. They're declared all over the entry, so it can't be more than its whole size.
+	 */
+	private int readLocalCount() {
+		int count = readInt();
+		if (count < 0 || count > in.limit()) throw new IllegalArgumentException("Bad local count " + count);
+		return count;
+	}
+
+	@Nullable
+	private boolean[] readBooleans() {
+		int length = readInt();
+		if (length == -1) return null;
+		boolean[] values = new boolean[checkCount(length)];
+		for (int i = 0; i < length; i++) {
+			values[i] = in.get() != 0;
+		}
+		return values;
+	}
+
+	@Nullable
+	private int[] readInts() {
+		int length = readInt();
+		if (length == -1) return null;
+		int[] values = new int[checkCount(length)];
+		for (int i = 0; i < length; i++) {
+			values[i] = readInt();
+		}
+		return values;
+	}
+
+	private List<Expression> readExpressions() {
+		int size = readCount();
+		List<Expression> expressions = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			expressions.add(readExpression());
+		}
+		return expressions;
+	}
+
+	private Token readToken() {
+		int index = readInt();
+		if (index < tokens.size()) return tokens.get(index);
+		if (index != tokens.size()) throw new IllegalArgumentException("Token " + index + " out of order");
+		TokenType type = TOKEN_TYPES[in.get()];
+		String lexeme = readString();
+		Object literal = readValue();
+		int offset = readInt();
+		Token token = type == TokenType.IDENTIFIER
+				? new Token(Symbol.intern(lexeme), lines, offset)
+				: new Token(type, lexeme, literal, lines, offset);
+		tokens.add(token);
+		return token;
+	}
+
+	private String readString() {
+		int index = readInt();
+		if (index < strings.size()) return strings.get(index);
+		if (index != strings.size()) throw new IllegalArgumentException("String " + index + " out of order");
+		int length = readCount();
+		String string;
+		if (in.hasArray()) {
+			string = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+			in.position(in.position() + length);
+		} else {
+			byte[] bytes = new byte[length];
+			in.get(bytes);
+			string = new String(bytes, StandardCharsets.UTF_8);
+		}
+		strings.add(string);
+		return string;
+	}
+
+	@Nullable
+	private Object readValue() {
+		int tag = in.get();
+		switch (tag) {
+			case NO_VALUE: return null;
+			case NUMBER_VALUE: return in.getDouble();
+			case STRING_VALUE: return readString();
+			case BOOLEAN_VALUE: return in.get() != 0;
+			default: throw new IllegalArgumentException("Unknown value tag " + tag);
+		}
+	}
+
+	private LoxType readType() {
+		int tag = in.get();
+		switch (tag) {
+			case UNKNOWN_TYPE: return LoxType.UNKNOWN;
+			case NONE_TYPE: return LoxType.NONE;
+			case NUMBER_TYPE: return LoxType.NUMBER;
+			case BOOLEAN_TYPE: return LoxType.BOOLEAN;
+			case STRING_TYPE: return LoxType.STRING;
+			case FUNCTION_TYPE: return readFunctionType();
+			case INSTANCE_TYPE: return new LoxType.InstanceLoxType(readToken());
+			case CLASS_TYPE: {
+				Token name = readToken();
+				if (in.get() != FUNCTION_TYPE) throw new IllegalArgumentException("Class type without a constructor");
+				return new LoxType.ClassLoxType(name, readFunctionType());
+			}
+			default: throw new IllegalArgumentException("Unknown type tag " + tag);
+		}
+	}
+
+	private LoxType.FunctionLoxType readFunctionType() {
+		int size = readCount();
+		List<LoxType> params = new ArrayList<>(size);
+		for (int i = 0; i < size; i++) {
+			params.add(readType());
+		}
+		return new LoxType.FunctionLoxType(params, readType());
+	}
+
+	@Nullable
+	private Expression readExpression() {
+		if ((in.get(in.position()) & 0xFF) == NULL) {
+			in.get();
+			return null;
+		}
+		LoxType resolvedType = readType();
+		Expression expression;
+		int tag = in.get();
+		switch (tag) {
+			case ASSIGN: {
+				Expression.AssignExpression assign = new Expression.AssignExpression(readToken(), readExpression());
+				assign.depth = readInt();
+				assign.slot = readInt();
+				assign.upvalue = readInt();
+				assign.boxed = in.get() != 0;
+				expression = assign;
+				break;
+			}
+			case TERNARY:
+				expression = new Expression.TernaryExpression(readToken(), readExpression(), readExpression(), readExpression());
+				break;
+			case LOGICAL:
+				expression = new Expression.LogicalExpression(readExpression(), readToken(), readExpression());
+				break;
+			case BINARY:
+				expression = new Expression.BinaryExpression(readExpression(), readToken(), readExpression());
+				break;
+			case UNARY:
+				expression = new Expression.UnaryExpression(readToken(), readExpression());
+				break;
+			case NUMBER_BINARY:
+				expression = new Expression.NumberBinaryExpression(readExpression(), readToken(), readExpression());
+				break;
+			case NUMBER_COMPARE:
+				expression = new Expression.NumberCompareExpression(readExpression(), readToken(), readExpression());
+				break;
+			case CONCAT:
+				expression = new Expression.ConcatExpression(readExpression(), readToken(), readExpression());
+				break;
+			case NEGATE:
+				expression = new Expression.NegateExpression(readToken(), readExpression());
+				break;
+			case NOT:
+				expression = new Expression.NotExpression(readToken(), readExpression());
+				break;
+			case CALL:
+				expression = new Expression.CallExpression(readExpression(), readToken(), readExpressions());
+				break;
+			case GET:
+				expression = new Expression.GetExpression(readExpression(), readToken());
+				break;
+			case SET:
+				expression = new Expression.SetExpression(readExpression(), readToken(), readExpression());
+				break;
+			case LITERAL:
+				expression = new Expression.LiteralExpression(readType(), readValue());
+				break;
+			case SUPER: {
+				Expression.SuperExpression superExpression = new Expression.SuperExpression(readToken(), readToken(),
+						(Expression.ThisExpression)readExpression());
+				superExpression.depth = readInt();
+				superExpression.slot = readInt();
+				superExpression.upvalue = readInt();
+				superExpression.boxed = in.get() != 0;
+				expression = superExpression;
+				break;
+			}
+			case THIS: {
+				Expression.ThisExpression thisExpression = new Expression.ThisExpression(readToken());
+				thisExpression.depth = readInt();
+				thisExpression.slot = readInt();
+				thisExpression.upvalue = readInt();
+				thisExpression.boxed = in.get() != 0;
+				expression = thisExpression;
+				break;
+			}
+			case VARIABLE: {
+				Expression.VariableExpression variable = new Expression.VariableExpression(readToken());
+				variable.depth = readInt();
+				variable.slot = readInt();
+				variable.upvalue = readInt();
+				variable.boxed = in.get() != 0;
+				if (in.get() != 0) variable.constant = readToken();
+				expression = variable;
+				break;
+			}
+			case GROUPING:
+				expression = new Expression.GroupingExpression(readExpression());
+				break;
+			case CLASS_EXPRESSION:
+				expression = new Expression.ClassExpression((Statement.ClassStatement)readStatement());
+				break;
+			case FUNCTION_EXPRESSION:
+				expression = new Expression.FunctionExpression((Statement.FunctionStatement)readStatement());
+				break;
+			case PARAMETER:
+				expression = new Expression.ParameterExpression(readToken(), readType());
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown expression tag " + tag);
+		}
+		expression.resolvedType = resolvedType;
+		return expression;
+	}
+
+	@Nullable
+	@SuppressWarnings("unchecked")
+	private Statement readStatement() {
+		int tag = in.get() & 0xFF;
+		switch (tag) {
+			case NULL:
+				return null;
+			case IF:
+				return new Statement.IfStatement(readToken(), readExpression(), readStatement(), readStatement());
+			case RETURN:
+				return new Statement.ReturnStatement(readToken(), readExpression(), in.get() != 0);
+			case WHILE:
+				return new Statement.WhileStatement(readToken(), readExpression(), readStatement());
+			case BREAK:
+				return new Statement.BreakStatement(readToken());
+			case BLOCK: {
+				Statement.BlockStatement block = new Statement.BlockStatement(readStatements());
+				block.localCount = readLocalCount();
+				block.captured = readBooleans();
+				return block;
+			}
+			case CLASS: {
+				//the writer only puts the right kinds of node in these lists
+				Statement.ClassStatement clazz = new Statement.ClassStatement(readToken(), (Expression.VariableExpression)readExpression(),
+						(List<Statement.FunctionStatement>)(List<?>)readStatements());
+				clazz.slot = readInt();
+				clazz.boxed = in.get() != 0;
+				return clazz;
+			}
+			case FUNCTION: {
+				Statement.FunctionStatement function = new Statement.FunctionStatement(readToken(),
+						(List<Expression.ParameterExpression>)(List<?>)readExpressions(), readStatements(), readType());
+				function.localCount = readLocalCount();
+				function.captured = readBooleans();
+				function.upvalues = readInts();
+				function.slot = readInt();
+				function.boxed = in.get() != 0;
+				return function;
+			}
+			case VAR: {
+				Statement.VarStatement var = new Statement.VarStatement(readToken(), readExpression(), in.get() != 0);
+				var.slot = readInt();
+				var.boxed = in.get() != 0;
+				return var;
+			}
+			case EXPRESSION:
+				return new Statement.ExpressionStatement(readExpression());
+			default:
+				throw new IllegalArgumentException("Unknown statement tag " + tag);
+		}
+	}
+}
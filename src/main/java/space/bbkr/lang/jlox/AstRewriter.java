@@ -0,0 +1,298 @@
+package space.bbkr.lang.jlox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Base for passes that run after the {@link Resolver} and swap parts of the syntax tree out for better ones.
+ * Nodes are immutable, so by default a node is only rebuilt when one of its children changed,
+ * carrying over everything the resolver wrote onto it. Subclasses override just the nodes they care about.
+ */
+abstract class AstRewriter implements Expression.Visitor<Expression>, Statement.Visitor<Statement> {
+
+	List<Statement> rewrite(List<Statement> statements) {
+		List<Statement> rewritten = null;
+		for (int i = 0; i < statements.size(); i++) {
+			Statement statement = statements.get(i);
+			Statement result = rewrite(statement);
+			if (result != statement && rewritten == null) {
+				rewritten = new ArrayList<>(statements.subList(0, i));
+			}
+			if (rewritten != null) rewritten.add(result);
+		}
+		return rewritten != null? rewritten : statements;
+	}
+
+	Statement rewrite(Statement statement) {
+		return statement.accept(this);
+	}
+
+	Expression rewrite(Expression expression) {
+		return expression.accept(this);
+	}
+
+	/**
+	 * Copy what the resolver found out about an expression onto its replacement.
+	 */
+	static <T extends Expression> T typed(T replacement, Expression original) {
+		replacement.resolvedType = original.resolvedType;
+		return replacement;
+	}
+
+	@Override
+	public Expression visitAssignExpression(Expression.AssignExpression expression) {
+		Expression value = rewrite(expression.value);
+		if (value == expression.value) return expression;
+		Expression.AssignExpression copy = typed(new Expression.AssignExpression(expression.name, value), expression);
+		copy.depth = expression.depth;
+		copy.slot = expression.slot;
+		copy.upvalue = expression.upvalue;
+		copy.boxed = expression.boxed;
+		return copy;
+	}
+
+	@Override
+	public Expression visitTernaryExpression(Expression.TernaryExpression expression) {
+		Expression condition = rewrite(expression.condition);
+		Expression positive = rewrite(expression.positive);
+		Expression negative = rewrite(expression.negative);
+		if (condition == expression.condition && positive == expression.positive && negative == expression.negative) {
+			return expression;
+		}
+		return typed(new Expression.TernaryExpression(expression.question, condition, positive, negative), expression);
+	}
+
+	@Override
+	public Expression visitLogicalExpression(Expression.LogicalExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.LogicalExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitBinaryExpression(Expression.BinaryExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.BinaryExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitUnaryExpression(Expression.UnaryExpression expression) {
+		Expression right = rewrite(expression.right);
+		if (right == expression.right) return expression;
+		return typed(new Expression.UnaryExpression(expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.NumberBinaryExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.NumberCompareExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitConcatExpression(Expression.ConcatExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.ConcatExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitNegateExpression(Expression.NegateExpression expression) {
+		Expression right = rewrite(expression.right);
+		if (right == expression.right) return expression;
+		return typed(new Expression.NegateExpression(expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitNotExpression(Expression.NotExpression expression) {
+		Expression right = rewrite(expression.right);
+		if (right == expression.right) return expression;
+		return typed(new Expression.NotExpression(expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitCallExpression(Expression.CallExpression expression) {
+		Expression callee = rewrite(expression.callee);
+		List<Expression> arguments = rewriteExpressions(expression.arguments);
+		if (callee == expression.callee && arguments == expression.arguments) return expression;
+		return typed(new Expression.CallExpression(callee, expression.paren, arguments), expression);
+	}
+
+	@Override
+	public Expression visitGetExpression(Expression.GetExpression expression) {
+		Expression object = rewrite(expression.object);
+		if (object == expression.object) return expression;
+		return typed(new Expression.GetExpression(object, expression.name), expression);
+	}
+
+	@Override
+	public Expression visitSetExpression(Expression.SetExpression expression) {
+		Expression object = rewrite(expression.object);
+		Expression value = rewrite(expression.value);
+		if (object == expression.object && value == expression.value) return expression;
+		return typed(new Expression.SetExpression(object, expression.name, value), expression);
+	}
+
+	@Override
+	public Expression visitLiteralExpression(Expression.LiteralExpression expression) {
+		return expression;
+	}
+
+	@Override
+	public Expression visitSuperExpression(Expression.SuperExpression expression) {
+		return expression;
+	}
+
+	@Override
+	public Expression visitThisExpression(Expression.ThisExpression expression) {
+		return expression;
+	}
+
+	@Override
+	public Expression visitVariableExpression(Expression.VariableExpression expression) {
+		return expression;
+	}
+
+	@Override
+	public Expression visitGroupingExpression(Expression.GroupingExpression expression) {
+		Expression inner = rewrite(expression.expression);
+		if (inner == expression.expression) return expression;
+		return typed(new Expression.GroupingExpression(inner), expression);
+	}
+
+	@Override
+	public Expression visitClassExpression(Expression.ClassExpression expression) {
+		Statement.ClassStatement clazz = (Statement.ClassStatement)rewrite(expression.clazz);
+		if (clazz == expression.clazz) return expression;
+		return typed(new Expression.ClassExpression(clazz), expression);
+	}
+
+	@Override
+	public Expression visitFunctionExpression(Expression.FunctionExpression expression) {
+		Statement.FunctionStatement function = (Statement.FunctionStatement)rewrite(expression.function);
+		if (function == expression.function) return expression;
+		return typed(new Expression.FunctionExpression(function), expression);
+	}
+
+	@Override
+	public Expression visitParameterExpression(Expression.ParameterExpression expression) {
+		return expression;
+	}
+
+	@Override
+	public Statement visitIfStatement(Statement.IfStatement statement) {
+		Expression condition = rewrite(statement.condition);
+		Statement thenBranch = rewrite(statement.thenBranch);
+		Statement elseBranch = statement.elseBranch != null? rewrite(statement.elseBranch) : null;
+		if (condition == statement.condition && thenBranch == statement.thenBranch && elseBranch == statement.elseBranch) {
+			return statement;
+		}
+		return new Statement.IfStatement(statement.keyword, condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Statement visitReturnStatement(Statement.ReturnStatement statement) {
+		if (statement.value == null) return statement;
+		Expression value = rewrite(statement.value);
+		if (value == statement.value) return statement;
+		return new Statement.ReturnStatement(statement.keyword, value, statement.hasType);
+	}
+
+	@Override
+	public Statement visitWhileStatement(Statement.WhileStatement statement) {
+		Expression condition = rewrite(statement.condition);
+		Statement body = rewrite(statement.body);
+		if (condition == statement.condition && body == statement.body) return statement;
+		return new Statement.WhileStatement(statement.keyword, condition, body);
+	}
+
+	@Override
+	public Statement visitBreakStatement(Statement.BreakStatement statement) {
+		return statement;
+	}
+
+	@Override
+	public Statement visitBlockStatement(Statement.BlockStatement statement) {
+		List<Statement> statements = rewrite(statement.statements);
+		if (statements == statement.statements) return statement;
+		Statement.BlockStatement copy = new Statement.BlockStatement(statements);
+		copy.localCount = statement.localCount;
+		copy.captured = statement.captured;
+		return copy;
+	}
+
+	@Override
+	public Statement visitClassStatement(Statement.ClassStatement statement) {
+		List<Statement.FunctionStatement> methods = null;
+		for (int i = 0; i < statement.methods.size(); i++) {
+			Statement.FunctionStatement method = statement.methods.get(i);
+			Statement.FunctionStatement result = (Statement.FunctionStatement)rewrite(method);
+			if (result != method && methods == null) {
+				methods = new ArrayList<>(statement.methods.subList(0, i));
+			}
+			if (methods != null) methods.add(result);
+		}
+		if (methods == null) return statement;
+		Statement.ClassStatement copy = new Statement.ClassStatement(statement.name, statement.superclass, methods);
+		copy.slot = statement.slot;
+		copy.boxed = statement.boxed;
+		return copy;
+	}
+
+	@Override
+	public Statement visitFunctionStatement(Statement.FunctionStatement statement) {
+		List<Statement> body = rewrite(statement.body);
+		if (body == statement.body) return statement;
+		Statement.FunctionStatement copy = new Statement.FunctionStatement(statement.name, statement.params, body, statement.returnType);
+		copy.localCount = statement.localCount;
+		copy.captured = statement.captured;
+		copy.upvalues = statement.upvalues;
+		copy.slot = statement.slot;
+		copy.boxed = statement.boxed;
+		return copy;
+	}
+
+	@Override
+	public Statement visitVarStatement(Statement.VarStatement statement) {
+		if (statement.initializer == null) return statement;
+		Expression initializer = rewrite(statement.initializer);
+		if (initializer == statement.initializer) return statement;
+		Statement.VarStatement copy = new Statement.VarStatement(statement.name, initializer, statement.constant);
+		copy.slot = statement.slot;
+		copy.boxed = statement.boxed;
+		return copy;
+	}
+
+	@Override
+	public Statement visitExpressionStatement(Statement.ExpressionStatement statement) {
+		Expression expression = rewrite(statement.expression);
+		if (expression == statement.expression) return statement;
+		return new Statement.ExpressionStatement(expression);
+	}
+
+	private List<Expression> rewriteExpressions(List<Expression> expressions) {
+		List<Expression> rewritten = null;
+		for (int i = 0; i < expressions.size(); i++) {
+			Expression expression = expressions.get(i);
+			Expression result = rewrite(expression);
+			if (result != expression && rewritten == null) {
+				rewritten = new ArrayList<>(expressions.subList(0, i));
+			}
+			if (rewritten != null) rewritten.add(result);
+		}
+		return rewritten != null? rewritten : expressions;
+	}
+}
@@ -0,0 +1,512 @@
+package space.bbkr.lang.jlox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes a resolved syntax tree out in the binary form {@link AstReader} reads back, for the {@link ScriptCache}.
+ * Each node is a tag followed by its fields, including everything the resolver filled in.
+ * Expressions start with their resolved type, so a null expression or statement is just {@link #NULL}.
+ * Tokens and strings are written in full the first time they come up, and by index after that.
+ */
+class AstWriter implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+	//node tags, in visitor order
+	static final int ASSIGN = 0;
+	static final int TERNARY = 1;
+	static final int LOGICAL = 2;
+	static final int BINARY = 3;
+	static final int UNARY = 4;
+	static final int NUMBER_BINARY = 5;
+	static final int NUMBER_COMPARE = 6;
+	static final int CONCAT = 7;
+	static final int NEGATE = 8;
+	static final int NOT = 9;
+	static final int CALL = 10;
+	static final int GET = 11;
+	static final int SET = 12;
+	static final int LITERAL = 13;
+	static final int SUPER = 14;
+	static final int THIS = 15;
+	static final int VARIABLE = 16;
+	static final int GROUPING = 17;
+	static final int CLASS_EXPRESSION = 18;
+	static final int FUNCTION_EXPRESSION = 19;
+	static final int PARAMETER = 20;
+	static final int IF = 32;
+	static final int RETURN = 33;
+	static final int WHILE = 34;
+	static final int BREAK = 35;
+	static final int BLOCK = 36;
+	static final int CLASS = 37;
+	static final int FUNCTION = 38;
+	static final int VAR = 39;
+	static final int EXPRESSION = 40;
+	//where there's no node at all
+	static final int NULL = 0xFF;
+	//types, where they aren't one of the primitives they're followed by what they're made of
+	static final int UNKNOWN_TYPE = 0;
+	static final int NONE_TYPE = 1;
+	static final int NUMBER_TYPE = 2;
+	static final int BOOLEAN_TYPE = 3;
+	static final int STRING_TYPE = 4;
+	static final int FUNCTION_TYPE = 5;
+	static final int INSTANCE_TYPE = 6;
+	static final int CLASS_TYPE = 7;
+	//literal values
+	static final int NO_VALUE = 0;
+	static final int NUMBER_VALUE = 1;
+	static final int STRING_VALUE = 2;
+	static final int BOOLEAN_VALUE = 3;
+
+	private byte[] out = new byte[4096];
+	private int size = 0;
+	private final Map<Token, Integer> tokens = new IdentityHashMap<>();
+	private final Map<String, Integer> strings = new HashMap<>();
+
+	/**
+	 * @return Everything written so far.
+	 */
+	byte[] toByteArray() {
+		return Arrays.copyOf(out, size);
+	}
+
+	void writeStatements(List<? extends Statement> statements) {
+		writeInt(statements.size());
+		for (Statement statement : statements) {
+			write(statement);
+		}
+	}
+
+	private void write(@Nullable Expression expression) {
+		if (expression == null) {
+			writeByte(NULL);
+		} else {
+			writeType(expression.resolvedType);
+			expression.accept(this);
+		}
+	}
+
+	private void write(@Nullable Statement statement) {
+		if (statement == null) {
+			writeByte(NULL);
+		} else {
+			statement.accept(this);
+		}
+	}
+
+	private void writeExpressions(List<? extends Expression> expressions) {
+		writeInt(expressions.size());
+		for (Expression expression : expressions) {
+			write(expression);
+		}
+	}
+
+	private void writeToken(Token token) {
+		Integer index = tokens.get(token);
+		if (index != null) {
+			writeInt(index);
+			return;
+		}
+		//a new token gets the next index, which the reader knows it hasn't seen yet
+		writeInt(tokens.size());
+		tokens.put(token, tokens.size());
+		writeByte(token.type.ordinal());
+		writeString(token.lexeme);
+		writeValue(token.literal);
+		writeInt(token.offset);
+	}
+
+	private void writeString(String string) {
+		Integer index = strings.get(string);
+		if (index != null) {
+			writeInt(index);
+			return;
+		}
+		writeInt(strings.size());
+		strings.put(string, strings.size());
+		byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		writeInt(bytes.length);
+		ensure(bytes.length);
+		System.arraycopy(bytes, 0, out, size, bytes.length);
+		size += bytes.length;
+	}
+
+	private void writeValue(@Nullable Object value) {
+		if (value instanceof Double) {
+			writeByte(NUMBER_VALUE);
+			long bits = Double.doubleToRawLongBits((Double)value);
+			ensure(8);
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				out[size++] = (byte)(bits >>> shift);
+			}
+		} else if (value instanceof String) {
+			writeByte(STRING_VALUE);
+			writeString((String)value);
+		} else if (value instanceof Boolean) {
+			writeByte(BOOLEAN_VALUE);
+			writeBoolean((Boolean)value);
+		} else {
+			writeByte(NO_VALUE);
+		}
+	}
+
+	private void writeType(LoxType type) {
+		if (type == LoxType.UNKNOWN) {
+			writeByte(UNKNOWN_TYPE);
+		} else if (type == LoxType.NONE) {
+			writeByte(NONE_TYPE);
+		} else if (type == LoxType.NUMBER) {
+			writeByte(NUMBER_TYPE);
+		} else if (type == LoxType.BOOLEAN) {
+			writeByte(BOOLEAN_TYPE);
+		} else if (type == LoxType.STRING) {
+			writeByte(STRING_TYPE);
+		} else if (type instanceof LoxType.ClassLoxType) {
+			LoxType.ClassLoxType classType = (LoxType.ClassLoxType)type;
+			writeByte(CLASS_TYPE);
+			writeToken(classType.name);
+			writeType(classType.constructor);
+		} else if (type instanceof LoxType.FunctionLoxType) {
+			LoxType.FunctionLoxType functionType = (LoxType.FunctionLoxType)type;
+			writeByte(FUNCTION_TYPE);
+			writeInt(functionType.paramTypes.size());
+			for (LoxType param : functionType.paramTypes) {
+				writeType(param);
+			}
+			writeType(functionType.returnType);
+		} else if (type instanceof LoxType.InstanceLoxType) {
+			writeByte(INSTANCE_TYPE);
+			writeToken(((LoxType.InstanceLoxType)type).name);
+		} else {
+			throw new IllegalArgumentException("Can't write type " + type.lexeme);
+		}
+	}
+
+	private void ensure(int bytes) {
+		if (size + bytes > out.length) out = Arrays.copyOf(out, Math.max(size + bytes, out.length * 2));
+	}
+
+	private void writeByte(int value) {
+		ensure(1);
+		out[size++] = (byte)value;
+	}
+
+	/**
+	 * Ints are mostly small, so they're written 7 bits at a time, zigzagged so that -1 is small too.
+	 */
+	void writeInt(int value) {
+		int bits = (value << 1) ^ (value >> 31);
+		ensure(5);
+		while ((bits & ~0x7F) != 0) {
+			out[size++] = (byte)((bits & 0x7F) | 0x80);
+			bits >>>= 7;
+		}
+		out[size++] = (byte)bits;
+	}
+
+	private void writeBoolean(boolean value) {
+		writeByte(value? 1 : 0);
+	}
+
+	//arrays are their length first, which is -1 if there isn't one
+	private void writeBooleans(@Nullable boolean[] values) {
+		if (values == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(values.length);
+		for (boolean value : values) {
+			writeBoolean(value);
+		}
+	}
+
+	private void writeInts(@Nullable int[] values) {
+		if (values == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(values.length);
+		for (int value : values) {
+			writeInt(value);
+		}
+	}
+
+	//expressions
+	@Override
+	public Void visitAssignExpression(Expression.AssignExpression expression) {
+		writeByte(ASSIGN);
+		writeToken(expression.name);
+		write(expression.value);
+		writeInt(expression.depth);
+		writeInt(expression.slot);
+		writeInt(expression.upvalue);
+		writeBoolean(expression.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitTernaryExpression(Expression.TernaryExpression expression) {
+		writeByte(TERNARY);
+		writeToken(expression.question);
+		write(expression.condition);
+		write(expression.positive);
+		write(expression.negative);
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpression(Expression.LogicalExpression expression) {
+		writeByte(LOGICAL);
+		return writeBinary(expression.left, expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitBinaryExpression(Expression.BinaryExpression expression) {
+		writeByte(BINARY);
+		return writeBinary(expression.left, expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitUnaryExpression(Expression.UnaryExpression expression) {
+		writeByte(UNARY);
+		return writeUnary(expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		writeByte(NUMBER_BINARY);
+		return writeBinary(expression.left, expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		writeByte(NUMBER_COMPARE);
+		return writeBinary(expression.left, expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitConcatExpression(Expression.ConcatExpression expression) {
+		writeByte(CONCAT);
+		return writeBinary(expression.left, expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitNegateExpression(Expression.NegateExpression expression) {
+		writeByte(NEGATE);
+		return writeUnary(expression.operator, expression.right);
+	}
+
+	@Override
+	public Void visitNotExpression(Expression.NotExpression expression) {
+		writeByte(NOT);
+		return writeUnary(expression.operator, expression.right);
+	}
+
+	private Void writeBinary(Expression left, Token operator, Expression right) {
+		write(left);
+		writeToken(operator);
+		write(right);
+		return null;
+	}
+
+	private Void writeUnary(Token operator, Expression right) {
+		writeToken(operator);
+		write(right);
+		return null;
+	}
+
+	@Override
+	public Void visitCallExpression(Expression.CallExpression expression) {
+		writeByte(CALL);
+		write(expression.callee);
+		writeToken(expression.paren);
+		writeExpressions(expression.arguments);
+		return null;
+	}
+
+	@Override
+	public Void visitGetExpression(Expression.GetExpression expression) {
+		writeByte(GET);
+		write(expression.object);
+		writeToken(expression.name);
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpression(Expression.SetExpression expression) {
+		writeByte(SET);
+		write(expression.object);
+		writeToken(expression.name);
+		write(expression.value);
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpression(Expression.LiteralExpression expression) {
+		writeByte(LITERAL);
+		writeType(expression.type);
+		writeValue(expression.value);
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpression(Expression.SuperExpression expression) {
+		writeByte(SUPER);
+		writeToken(expression.keyword);
+		writeToken(expression.method);
+		write(expression.receiver);
+		writeInt(expression.depth);
+		writeInt(expression.slot);
+		writeInt(expression.upvalue);
+		writeBoolean(expression.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpression(Expression.ThisExpression expression) {
+		writeByte(THIS);
+		writeToken(expression.keyword);
+		writeInt(expression.depth);
+		writeInt(expression.slot);
+		writeInt(expression.upvalue);
+		writeBoolean(expression.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpression(Expression.VariableExpression expression) {
+		writeByte(VARIABLE);
+		writeToken(expression.name);
+		writeInt(expression.depth);
+		writeInt(expression.slot);
+		writeInt(expression.upvalue);
+		writeBoolean(expression.boxed);
+		writeBoolean(expression.constant != null);
+		if (expression.constant != null) writeToken(expression.constant);
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpression(Expression.GroupingExpression expression) {
+		writeByte(GROUPING);
+		write(expression.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitClassExpression(Expression.ClassExpression expression) {
+		writeByte(CLASS_EXPRESSION);
+		write(expression.clazz);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionExpression(Expression.FunctionExpression expression) {
+		writeByte(FUNCTION_EXPRESSION);
+		write(expression.function);
+		return null;
+	}
+
+	@Override
+	public Void visitParameterExpression(Expression.ParameterExpression expression) {
+		writeByte(PARAMETER);
+		writeToken(expression.name);
+		writeType(expression.type);
+		return null;
+	}
+
+	//statements
+	@Override
+	public Void visitIfStatement(Statement.IfStatement statement) {
+		writeByte(IF);
+		writeToken(statement.keyword);
+		write(statement.condition);
+		write(statement.thenBranch);
+		write(statement.elseBranch);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStatement(Statement.ReturnStatement statement) {
+		writeByte(RETURN);
+		writeToken(statement.keyword);
+		write(statement.value);
+		writeBoolean(statement.hasType);
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStatement(Statement.WhileStatement statement) {
+		writeByte(WHILE);
+		writeToken(statement.keyword);
+		write(statement.condition);
+		write(statement.body);
+		return null;
+	}
+
+	@Override
+	public Void visitBreakStatement(Statement.BreakStatement statement) {
+		writeByte(BREAK);
+		writeToken(statement.keyword);
+		return null;
+	}
+
+	@Override
+	public Void visitBlockStatement(Statement.BlockStatement statement) {
+		writeByte(BLOCK);
+		writeStatements(statement.statements);
+		writeInt(statement.localCount);
+		writeBooleans(statement.captured);
+		return null;
+	}
+
+	@Override
+	public Void visitClassStatement(Statement.ClassStatement statement) {
+		writeByte(CLASS);
+		writeToken(statement.name);
+		write(statement.superclass);
+		writeStatements(statement.methods);
+		writeInt(statement.slot);
+		writeBoolean(statement.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStatement(Statement.FunctionStatement statement) {
+		writeByte(FUNCTION);
+		writeToken(statement.name);
+		writeExpressions(statement.params);
+		writeStatements(statement.body);
+		writeType(statement.returnType);
+		writeInt(statement.localCount);
+		writeBooleans(statement.captured);
+		writeInts(statement.upvalues);
+		writeInt(statement.slot);
+		writeBoolean(statement.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitVarStatement(Statement.VarStatement statement) {
+		writeByte(VAR);
+		writeToken(statement.name);
+		write(statement.initializer);
+		writeBoolean(statement.constant);
+		writeInt(statement.slot);
+		writeBoolean(statement.boxed);
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStatement(Statement.ExpressionStatement statement) {
+		writeByte(EXPRESSION);
+		write(statement.expression);
+		return null;
+	}
+}
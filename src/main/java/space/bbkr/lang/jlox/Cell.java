@@ -0,0 +1,12 @@
+package space.bbkr.lang.jlox;
+
+import javax.annotation.Nullable;
+
+/**
+ * A local that a closure captures. The frame it's declared in holds the cell instead of the value,
+ * and closures take the cell itself, so they keep sharing the variable after the call that made them returns.
+ */
+final class Cell {
+	@Nullable
+	Object value;
+}
@@ -0,0 +1,890 @@
+package space.bbkr.lang.jlox;
+
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+/**
+ * Post-specialize pass that turns the tree into closures which call each other directly, for `--closures`.
+ * Everything the tree-walker works out on every visit - which visit method, which operator, where a variable lives,
+ * how many arguments a call has - gets picked once here, so running a node is just calling it.
+ * Each function's body is compiled once, and every function made from that declaration runs it.
+ * The nodes behave exactly like the {@link Interpreter}, and share its helpers for anything that fails.
+ * The feedback the tree-walker specializes on isn't needed, since the operators here are already picked,
+ * though generic operators still check for two numbers first.
+ */
+class ClosureCompiler implements Expression.Visitor<ClosureCompiler.ValueNode>, Statement.Visitor<ClosureCompiler.StatementNode> {
+	private static final StatementNode NOTHING = interpreter -> Completion.NORMAL;
+	private static final ValueNode NIL = interpreter -> null;
+
+	/**
+	 * A compiled expression.
+	 */
+	@FunctionalInterface
+	interface ValueNode {
+		@Nullable
+		Object run(Interpreter interpreter);
+	}
+
+	/**
+	 * A compiled expression the resolver proved is a number, which never boxes it.
+	 * Throws {@link NotPrimitive} if it wasn't a number after all, the same way {@link Interpreter#evaluateDouble} does.
+	 */
+	@FunctionalInterface
+	interface NumberNode {
+		double run(Interpreter interpreter);
+	}
+
+	/**
+	 * A compiled expression the resolver proved is a boolean, which never boxes it.
+	 * Throws {@link NotPrimitive} if it wasn't a boolean after all, the same way {@link Interpreter#evaluateBoolean} does.
+	 */
+	@FunctionalInterface
+	interface ConditionNode {
+		boolean run(Interpreter interpreter);
+	}
+
+	/**
+	 * A compiled statement.
+	 */
+	@FunctionalInterface
+	interface StatementNode {
+		Completion run(Interpreter interpreter);
+	}
+
+	/**
+	 * What a call does with its callee once it's been found, with the arguments already compiled in.
+	 */
+	@FunctionalInterface
+	private interface Invoker {
+		@Nullable
+		Object invoke(Interpreter interpreter, LoxCallable function, @Nullable LoxFunction method, @Nullable LoxInstance receiver);
+	}
+
+	/**
+	 * Compile a resolved, specialized program.
+	 */
+	StatementNode compile(List<Statement> statements) {
+		return sequence(statements);
+	}
+
+	private ValueNode value(Expression expression) {
+		return expression.accept(this);
+	}
+
+	private StatementNode statement(Statement statement) {
+		return statement.accept(this);
+	}
+
+	private StatementNode sequence(List<Statement> statements) {
+		StatementNode[] nodes = new StatementNode[statements.size()];
+		for (int i = 0; i < nodes.length; i++) {
+			nodes[i] = statement(statements.get(i));
+		}
+		if (nodes.length == 0) return NOTHING;
+		if (nodes.length == 1) return nodes[0];
+		return interpreter -> {
+			for (StatementNode node : nodes) {
+				Completion completion = node.run(interpreter);
+				if (completion != Completion.NORMAL) return completion;
+			}
+			return Completion.NORMAL;
+		};
+	}
+
+	//expressions
+	@Override
+	public ValueNode visitAssignExpression(Expression.AssignExpression expression) {
+		ValueNode value = value(expression.value);
+		int depth = expression.depth;
+		int slot = expression.slot;
+		if (depth != -1) {
+			if (expression.boxed) {
+				return interpreter -> {
+					Object result = value.run(interpreter);
+					((Cell)interpreter.environment.getAt(depth, slot)).value = result;
+					return result;
+				};
+			}
+			return interpreter -> {
+				Object result = value.run(interpreter);
+				interpreter.environment.assignAt(depth, slot, result);
+				return result;
+			};
+		} else if (expression.upvalue != -1) {
+			int upvalue = expression.upvalue;
+			return interpreter -> {
+				Object result = value.run(interpreter);
+				interpreter.upvalues[upvalue].value = result;
+				return result;
+			};
+		}
+		Token name = expression.name;
+		return interpreter -> {
+			Object result = value.run(interpreter);
+			interpreter.globals.assign(name, result);
+			return result;
+		};
+	}
+
+	@Override
+	public ValueNode visitTernaryExpression(Expression.TernaryExpression expression) {
+		ConditionNode condition = condition(expression.condition);
+		ValueNode positive = value(expression.positive);
+		ValueNode negative = value(expression.negative);
+		Token question = expression.question;
+		return interpreter -> {
+			boolean result;
+			try {
+				result = condition.run(interpreter);
+			} catch (NotPrimitive e) {
+				throw new RuntimeError("TypeError", question, "Operand in ternary must be a boolean, but was '" + Interpreter.stringify(e.value) + "' instead.");
+			}
+			return result? positive.run(interpreter) : negative.run(interpreter);
+		};
+	}
+
+	@Override
+	public ValueNode visitLogicalExpression(Expression.LogicalExpression expression) {
+		ConditionNode logical = logical(expression);
+		return logical::run;
+	}
+
+	@Override
+	public ValueNode visitBinaryExpression(Expression.BinaryExpression expression) {
+		ValueNode left = value(expression.left);
+		ValueNode right = value(expression.right);
+		Token operator = expression.operator;
+		//two numbers get done right here, and anything else goes to the generic version, which also has all the errors
+		switch (operator.type) {
+			case PLUS:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l + (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case MINUS:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l - (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case STAR:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l * (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case SLASH:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double && (double)r != 0) return (double)l / (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case GREATER:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l > (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case GREATER_EQUAL:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l >= (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case LESS:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l < (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case LESS_EQUAL:
+				return interpreter -> {
+					Object l = left.run(interpreter);
+					Object r = right.run(interpreter);
+					if (l instanceof Double && r instanceof Double) return (double)l <= (double)r;
+					return Interpreter.binaryOperation(operator, l, r);
+				};
+			case EQUAL_EQUAL:
+				return interpreter -> Interpreter.isEqual(left.run(interpreter), right.run(interpreter));
+			case BANG_EQUAL:
+				return interpreter -> !Interpreter.isEqual(left.run(interpreter), right.run(interpreter));
+		}
+		return interpreter -> Interpreter.binaryOperation(operator, left.run(interpreter), right.run(interpreter));
+	}
+
+	@Override
+	public ValueNode visitUnaryExpression(Expression.UnaryExpression expression) {
+		ValueNode right = value(expression.right);
+		Token operator = expression.operator;
+		switch (operator.type) {
+			case MINUS:
+				return interpreter -> {
+					Object value = right.run(interpreter);
+					if (value instanceof Double) return -(double)value;
+					return Interpreter.unaryOperation(operator, value);
+				};
+			case BANG:
+				return interpreter -> {
+					Object value = right.run(interpreter);
+					if (value instanceof Boolean) return !(boolean)value;
+					return Interpreter.unaryOperation(operator, value);
+				};
+		}
+		return interpreter -> Interpreter.unaryOperation(operator, right.run(interpreter));
+	}
+
+	//the specialized nodes mirror the Interpreter's visit methods for them
+	@Override
+	public ValueNode visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		return box(number(expression));
+	}
+
+	@Override
+	public ValueNode visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		ConditionNode compare = condition(expression);
+		return compare::run;
+	}
+
+	@Override
+	public ValueNode visitConcatExpression(Expression.ConcatExpression expression) {
+		ValueNode left = value(expression.left);
+		ValueNode right = value(expression.right);
+		Token operator = expression.operator;
+		return interpreter -> {
+			Object l = left.run(interpreter);
+			Object r = right.run(interpreter);
+			if (!(l instanceof String || r instanceof String)) return Interpreter.binaryOperation(operator, l, r);
+			return Interpreter.stringify(l) + Interpreter.stringify(r);
+		};
+	}
+
+	@Override
+	public ValueNode visitNegateExpression(Expression.NegateExpression expression) {
+		return box(number(expression));
+	}
+
+	@Override
+	public ValueNode visitNotExpression(Expression.NotExpression expression) {
+		ConditionNode not = condition(expression);
+		return not::run;
+	}
+
+	/**
+	 * Compile an expression the resolver proved is a number, the same way {@link Interpreter#evaluateDouble} runs it.
+	 */
+	private NumberNode number(Expression expression) {
+		if (expression instanceof Expression.NumberBinaryExpression) {
+			Expression.NumberBinaryExpression binary = (Expression.NumberBinaryExpression)expression;
+			return numberBinary(binary.operator, number(binary.left), number(binary.right));
+		} else if (expression instanceof Expression.NegateExpression) {
+			Expression.NegateExpression negate = (Expression.NegateExpression)expression;
+			NumberNode right = number(negate.right);
+			Token operator = negate.operator;
+			return interpreter -> {
+				try {
+					return -right.run(interpreter);
+				} catch (NotPrimitive e) {
+					return Interpreter.unboxDouble(Interpreter.unaryOperation(operator, e.value));
+				}
+			};
+		} else if (expression instanceof Expression.GroupingExpression) {
+			return number(((Expression.GroupingExpression)expression).expression);
+		}
+		ValueNode value = value(expression);
+		return interpreter -> Interpreter.unboxDouble(value.run(interpreter));
+	}
+
+	/**
+	 * Compile an expression the resolver proved is a boolean, the same way {@link Interpreter#evaluateBoolean} runs it.
+	 */
+	private ConditionNode condition(Expression expression) {
+		if (expression instanceof Expression.NumberCompareExpression) {
+			Expression.NumberCompareExpression compare = (Expression.NumberCompareExpression)expression;
+			return numberCompare(compare.operator, number(compare.left), number(compare.right));
+		} else if (expression instanceof Expression.NotExpression) {
+			Expression.NotExpression not = (Expression.NotExpression)expression;
+			ConditionNode right = condition(not.right);
+			Token operator = not.operator;
+			return interpreter -> {
+				try {
+					return !right.run(interpreter);
+				} catch (NotPrimitive e) {
+					return (boolean)Interpreter.unaryOperation(operator, e.value);
+				}
+			};
+		} else if (expression instanceof Expression.LogicalExpression) {
+			return logical((Expression.LogicalExpression)expression);
+		} else if (expression instanceof Expression.GroupingExpression) {
+			return condition(((Expression.GroupingExpression)expression).expression);
+		}
+		ValueNode value = value(expression);
+		return interpreter -> {
+			Object result = value.run(interpreter);
+			if (result instanceof Boolean) return (boolean)result;
+			throw new NotPrimitive(result);
+		};
+	}
+
+	private static NumberNode numberBinary(Token operator, NumberNode left, NumberNode right) {
+		//boxing the right side gives what evaluating it normally would, for when the left side isn't a number
+		ValueNode rightValue = box(right);
+		switch (operator.type) {
+			case PLUS:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter)));
+					}
+					try {
+						return l + right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, l, e.value));
+					}
+				};
+			case MINUS:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter)));
+					}
+					try {
+						return l - right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, l, e.value));
+					}
+				};
+			case STAR:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter)));
+					}
+					try {
+						return l * right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, l, e.value));
+					}
+				};
+			case SLASH:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter)));
+					}
+					double r;
+					try {
+						r = right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return Interpreter.unboxDouble(Interpreter.binaryOperation(operator, l, e.value));
+					}
+					if (r == 0) throw new RuntimeError("MathError", operator, "Cannot divide by zero.");
+					return l / r;
+				};
+		}
+		throw new IllegalArgumentException("Not an arithmetic operator: " + operator.lexeme);
+	}
+
+	private static ConditionNode numberCompare(Token operator, NumberNode left, NumberNode right) {
+		ValueNode rightValue = box(right);
+		switch (operator.type) {
+			case GREATER:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return l > right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+			case GREATER_EQUAL:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return l >= right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+			case LESS:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return l < right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+			case LESS_EQUAL:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return l <= right.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+			//compared the same way as Interpreter.numberCompare
+			case EQUAL_EQUAL:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return Double.doubleToLongBits(l) == Double.doubleToLongBits(right.run(interpreter));
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+			case BANG_EQUAL:
+				return interpreter -> {
+					double l;
+					try {
+						l = left.run(interpreter);
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, e.value, rightValue.run(interpreter));
+					}
+					try {
+						return Double.doubleToLongBits(l) != Double.doubleToLongBits(right.run(interpreter));
+					} catch (NotPrimitive e) {
+						return (boolean)Interpreter.binaryOperation(operator, l, e.value);
+					}
+				};
+		}
+		throw new IllegalArgumentException("Not a comparison operator: " + operator.lexeme);
+	}
+
+	private ConditionNode logical(Expression.LogicalExpression expression) {
+		ConditionNode left = booleanOperand(expression.operator, expression.left);
+		ConditionNode right = booleanOperand(expression.operator, expression.right);
+		if (expression.operator.type == TokenType.OR) {
+			return interpreter -> left.run(interpreter) || right.run(interpreter);
+		}
+		return interpreter -> left.run(interpreter) && right.run(interpreter);
+	}
+
+	/**
+	 * Compile an operand that has to be a boolean, which errors out if it isn't.
+	 */
+	private ConditionNode booleanOperand(Token operator, Expression operand) {
+		ConditionNode condition = condition(operand);
+		return interpreter -> {
+			try {
+				return condition.run(interpreter);
+			} catch (NotPrimitive e) {
+				return Interpreter.checkBooleanOperand(operator, e.value);
+			}
+		};
+	}
+
+	private static ValueNode box(NumberNode number) {
+		return interpreter -> {
+			try {
+				return number.run(interpreter);
+			} catch (NotPrimitive e) {
+				return e.value;
+			}
+		};
+	}
+
+	@Override
+	public ValueNode visitCallExpression(Expression.CallExpression expression) {
+		Token paren = expression.paren;
+		Invoker invoker = invoker(paren, expression.arguments);
+		//mirrors Interpreter.visitCallExpression, minus the feedback
+		if (expression.callee instanceof Expression.GetExpression) {
+			Expression.GetExpression get = (Expression.GetExpression)expression.callee;
+			ValueNode object = value(get.object);
+			PropertyCache cache = get.cache;
+			Token name = get.name;
+			return interpreter -> {
+				Object instance = object.run(interpreter);
+				if (!(instance instanceof LoxInstance)) {
+					throw new RuntimeError("TypeError", name, "Only instances have properties.");
+				}
+				LoxInstance receiver = (LoxInstance)instance;
+				LoxFunction method = cache.method(receiver, name);
+				if (method != null) return invoker.invoke(interpreter, method, method, receiver);
+				return invoker.invoke(interpreter, callable(paren, cache.get(receiver, name)), null, null);
+			};
+		} else if (expression.callee instanceof Expression.SuperExpression) {
+			Expression.SuperExpression superExpression = (Expression.SuperExpression)expression.callee;
+			ValueNode superclass = lookup(superExpression.keyword, superExpression.depth, superExpression.slot, superExpression.upvalue, superExpression.boxed);
+			ValueNode self = value(superExpression.receiver);
+			Token method = superExpression.method;
+			return interpreter -> {
+				LoxInstance receiver = (LoxInstance)self.run(interpreter);
+				LoxFunction function = superMethod(interpreter, superclass, method);
+				return invoker.invoke(interpreter, function, function, receiver);
+			};
+		}
+
+		ValueNode callee = value(expression.callee);
+		if (Interpreter.isGlobalConstant(expression.callee)) {
+			//holds onto the global val it calls, like Interpreter.visitCallExpression
+			return interpreter -> {
+				LoxCallable function;
+				if (expression.target != null && expression.targetVersion == interpreter.globals.version) {
+					function = expression.target;
+				} else {
+					function = callable(paren, callee.run(interpreter));
+					expression.target = function;
+					expression.targetVersion = interpreter.globals.version;
+				}
+				return invoker.invoke(interpreter, function, null, null);
+			};
+		}
+		return interpreter -> invoker.invoke(interpreter, callable(paren, callee.run(interpreter)), null, null);
+	}
+
+	/**
+	 * Compile the arguments of a call, and which fixed-arity entry point it goes through,
+	 * so there's no argument array to build.
+	 */
+	private Invoker invoker(Token paren, List<Expression> arguments) {
+		ValueNode[] values = new ValueNode[arguments.size()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = value(arguments.get(i));
+		}
+		switch (values.length) {
+			case 0:
+				return (interpreter, function, method, receiver) -> {
+					Interpreter.checkArity(paren, function, 0);
+					return method != null? method.invoke0(interpreter, receiver) : function.call0(interpreter);
+				};
+			case 1: {
+				ValueNode a = values[0];
+				return (interpreter, function, method, receiver) -> {
+					Object aVal = a.run(interpreter);
+					Interpreter.checkArity(paren, function, 1);
+					return method != null? method.invoke1(interpreter, receiver, aVal) : function.call1(interpreter, aVal);
+				};
+			}
+			case 2: {
+				ValueNode a = values[0];
+				ValueNode b = values[1];
+				return (interpreter, function, method, receiver) -> {
+					Object aVal = a.run(interpreter);
+					Object bVal = b.run(interpreter);
+					Interpreter.checkArity(paren, function, 2);
+					return method != null? method.invoke2(interpreter, receiver, aVal, bVal) : function.call2(interpreter, aVal, bVal);
+				};
+			}
+			case 3: {
+				ValueNode a = values[0];
+				ValueNode b = values[1];
+				ValueNode c = values[2];
+				return (interpreter, function, method, receiver) -> {
+					Object aVal = a.run(interpreter);
+					Object bVal = b.run(interpreter);
+					Object cVal = c.run(interpreter);
+					Interpreter.checkArity(paren, function, 3);
+					return method != null? method.invoke3(interpreter, receiver, aVal, bVal, cVal) : function.call3(interpreter, aVal, bVal, cVal);
+				};
+			}
+			case 4: {
+				ValueNode a = values[0];
+				ValueNode b = values[1];
+				ValueNode c = values[2];
+				ValueNode d = values[3];
+				return (interpreter, function, method, receiver) -> {
+					Object aVal = a.run(interpreter);
+					Object bVal = b.run(interpreter);
+					Object cVal = c.run(interpreter);
+					Object dVal = d.run(interpreter);
+					Interpreter.checkArity(paren, function, 4);
+					return method != null? method.invoke4(interpreter, receiver, aVal, bVal, cVal, dVal) : function.call4(interpreter, aVal, bVal, cVal, dVal);
+				};
+			}
+			default:
+				return (interpreter, function, method, receiver) -> {
+					Object[] args = new Object[values.length];
+					for (int i = 0; i < args.length; i++) {
+						args[i] = values[i].run(interpreter);
+					}
+					Interpreter.checkArity(paren, function, args.length);
+					return method != null? method.invoke(interpreter, receiver, args) : function.call(interpreter, args);
+				};
+		}
+	}
+
+	private static LoxCallable callable(Token paren, @Nullable Object callee) {
+		if (callee instanceof LoxCallable) return (LoxCallable)callee;
+		throw new RuntimeError("TypeError", paren, "Can only call functions and classes.");
+	}
+
+	@Override
+	public ValueNode visitGetExpression(Expression.GetExpression expression) {
+		ValueNode object = value(expression.object);
+		PropertyCache cache = expression.cache;
+		Token name = expression.name;
+		return interpreter -> {
+			Object instance = object.run(interpreter);
+			if (instance instanceof LoxInstance) return cache.get((LoxInstance)instance, name);
+			throw new RuntimeError("TypeError", name, "Only instances have properties.");
+		};
+	}
+
+	@Override
+	public ValueNode visitSetExpression(Expression.SetExpression expression) {
+		ValueNode object = value(expression.object);
+		ValueNode value = value(expression.value);
+		PropertyCache cache = expression.cache;
+		Token name = expression.name;
+		return interpreter -> {
+			Object instance = object.run(interpreter);
+			if (!(instance instanceof LoxInstance)) {
+				throw new RuntimeError("TypeError", name, "Only instances have fields.");
+			}
+			Object result = value.run(interpreter);
+			cache.set((LoxInstance)instance, name, result);
+			return result;
+		};
+	}
+
+	@Override
+	public ValueNode visitLiteralExpression(Expression.LiteralExpression expression) {
+		Object value = expression.value;
+		return interpreter -> value;
+	}
+
+	@Override
+	public ValueNode visitSuperExpression(Expression.SuperExpression expression) {
+		ValueNode superclass = lookup(expression.keyword, expression.depth, expression.slot, expression.upvalue, expression.boxed);
+		ValueNode self = value(expression.receiver);
+		Token method = expression.method;
+		return interpreter -> superMethod(interpreter, superclass, method).bind((LoxInstance)self.run(interpreter));
+	}
+
+	private static LoxFunction superMethod(Interpreter interpreter, ValueNode superclass, Token name) {
+		LoxFunction method = ((LoxClass)superclass.run(interpreter)).findMethod(name.symbol);
+		if (method == null) {
+			throw new RuntimeError("DefError", name, "Undefined property '" + name.lexeme + "'.");
+		}
+		return method;
+	}
+
+	@Override
+	public ValueNode visitThisExpression(Expression.ThisExpression expression) {
+		return lookup(expression.keyword, expression.depth, expression.slot, expression.upvalue, expression.boxed);
+	}
+
+	@Override
+	public ValueNode visitVariableExpression(Expression.VariableExpression expression) {
+		return lookup(expression.name, expression.depth, expression.slot, expression.upvalue, expression.boxed);
+	}
+
+	/**
+	 * Pick how to read a variable from where the resolver found it.
+	 */
+	private static ValueNode lookup(Token name, int depth, int slot, int upvalue, boolean boxed) {
+		//most reads are from the frame that's running, which doesn't need to walk up to anything
+		if (depth == 0) {
+			if (boxed) return interpreter -> ((Cell)interpreter.environment.getAt(0, slot)).value;
+			return interpreter -> interpreter.environment.getAt(0, slot);
+		} else if (depth != -1) {
+			if (boxed) return interpreter -> ((Cell)interpreter.environment.getAt(depth, slot)).value;
+			return interpreter -> interpreter.environment.getAt(depth, slot);
+		} else if (upvalue != -1) {
+			return interpreter -> interpreter.upvalues[upvalue].value;
+		}
+		return interpreter -> interpreter.globals.get(name);
+	}
+
+	@Override
+	public ValueNode visitGroupingExpression(Expression.GroupingExpression expression) {
+		return value(expression.expression);
+	}
+
+	@Override
+	public ValueNode visitClassExpression(Expression.ClassExpression expression) {
+		return createClass(expression.clazz);
+	}
+
+	@Override
+	public ValueNode visitFunctionExpression(Expression.FunctionExpression expression) {
+		return function(expression.function);
+	}
+
+	@Override
+	public ValueNode visitParameterExpression(Expression.ParameterExpression expression) {
+		return NIL;
+	}
+
+	//statements
+	@Override
+	public StatementNode visitIfStatement(Statement.IfStatement statement) {
+		ConditionNode condition = booleanOperand(statement.keyword, statement.condition);
+		StatementNode thenBranch = statement(statement.thenBranch);
+		if (statement.elseBranch == null) {
+			return interpreter -> condition.run(interpreter)? thenBranch.run(interpreter) : Completion.NORMAL;
+		}
+		StatementNode elseBranch = statement(statement.elseBranch);
+		return interpreter -> condition.run(interpreter)? thenBranch.run(interpreter) : elseBranch.run(interpreter);
+	}
+
+	@Override
+	public StatementNode visitReturnStatement(Statement.ReturnStatement statement) {
+		ValueNode value = statement.value != null? value(statement.value) : NIL;
+		return interpreter -> {
+			interpreter.returnValue = value.run(interpreter);
+			return Completion.RETURN;
+		};
+	}
+
+	@Override
+	public StatementNode visitWhileStatement(Statement.WhileStatement statement) {
+		ConditionNode condition = booleanOperand(statement.keyword, statement.condition);
+		StatementNode body = statement(statement.body);
+		return interpreter -> {
+			while (condition.run(interpreter)) {
+				Completion completion = body.run(interpreter);
+				if (completion == Completion.BREAK) break;
+				if (completion == Completion.RETURN) return completion;
+			}
+			return Completion.NORMAL;
+		};
+	}
+
+	@Override
+	public StatementNode visitBreakStatement(Statement.BreakStatement statement) {
+		return interpreter -> Completion.BREAK;
+	}
+
+	@Override
+	public StatementNode visitBlockStatement(Statement.BlockStatement statement) {
+		StatementNode body = sequence(statement.statements);
+		boolean[] captured = statement.captured;
+		//mirrors Interpreter.visitBlockStatement
+		if (statement.localCount == 0) {
+			if (captured == null) return body;
+			return interpreter -> {
+				interpreter.environment.fillCells(captured);
+				return body.run(interpreter);
+			};
+		}
+		int size = statement.localCount;
+		return interpreter -> {
+			Environment frame = interpreter.blockFrame(size);
+			frame.fillCells(captured);
+			Environment previous = interpreter.environment;
+			try {
+				interpreter.environment = frame;
+				return body.run(interpreter);
+			} finally {
+				interpreter.environment = previous;
+				frame.reset();
+			}
+		};
+	}
+
+	@Override
+	public StatementNode visitClassStatement(Statement.ClassStatement statement) {
+		ValueNode clazz = createClass(statement);
+		//defined once it's built, as in Interpreter.visitClassStatement
+		if (statement.name.type != TokenType.IDENTIFIER) return expression(clazz);
+		return declare(statement.name, statement.slot, statement.boxed, clazz);
+	}
+
+	private ValueNode createClass(Statement.ClassStatement statement) {
+		ValueNode superclass = statement.superclass != null? value(statement.superclass) : NIL;
+		StatementNode[] bodies = new StatementNode[statement.methods.size()];
+		for (int i = 0; i < bodies.length; i++) {
+			bodies[i] = sequence(statement.methods.get(i).body);
+		}
+		return interpreter -> interpreter.createClass(statement, superclass.run(interpreter), bodies);
+	}
+
+	@Override
+	public StatementNode visitFunctionStatement(Statement.FunctionStatement statement) {
+		ValueNode function = function(statement);
+		if (statement.name.type != TokenType.IDENTIFIER) return expression(function);
+		return declare(statement.name, statement.slot, statement.boxed, function);
+	}
+
+	private ValueNode function(Statement.FunctionStatement declaration) {
+		StatementNode body = sequence(declaration.body);
+		return interpreter -> new LoxFunction(declaration, interpreter.capture(declaration), false, body);
+	}
+
+	@Override
+	public StatementNode visitVarStatement(Statement.VarStatement statement) {
+		ValueNode value = statement.initializer != null? value(statement.initializer) : NIL;
+		return declare(statement.name, statement.slot, statement.boxed, value);
+	}
+
+	/**
+	 * Pick how to define a variable from the slot the resolver gave it.
+	 * @param boxed Whether the variable is captured, so its slot holds a cell instead of the value.
+	 */
+	private static StatementNode declare(Token name, int slot, boolean boxed, ValueNode value) {
+		if (slot == -1) {
+			Symbol symbol = name.symbol;
+			return interpreter -> {
+				interpreter.environment.define(symbol, value.run(interpreter));
+				return Completion.NORMAL;
+			};
+		} else if (boxed) {
+			return interpreter -> {
+				Object result = value.run(interpreter);
+				((Cell)interpreter.environment.getAt(0, slot)).value = result;
+				return Completion.NORMAL;
+			};
+		}
+		return interpreter -> {
+			interpreter.environment.assignAt(0, slot, value.run(interpreter));
+			return Completion.NORMAL;
+		};
+	}
+
+	@Override
+	public StatementNode visitExpressionStatement(Statement.ExpressionStatement statement) {
+		return expression(value(statement.expression));
+	}
+
+	private static StatementNode expression(ValueNode value) {
+		return interpreter -> {
+			value.run(interpreter);
+			return Completion.NORMAL;
+		};
+	}
+}
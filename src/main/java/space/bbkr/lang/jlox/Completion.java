@@ -0,0 +1,12 @@
+package space.bbkr.lang.jlox;
+
+/**
+ * How a statement finished executing. Blocks stop early and hand anything but {@link #NORMAL} up to whoever ran them,
+ * until a while loop takes the break or a function call takes the return.
+ * The value being returned is held by the {@link Interpreter}, so nothing has to be allocated or thrown to get out.
+ */
+enum Completion {
+	NORMAL,
+	BREAK,
+	RETURN
+}
@@ -0,0 +1,305 @@
+package space.bbkr.lang.jlox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import javax.annotation.Nullable;
+
+/**
+ * Post-resolve pass that works out whatever it can before the script runs. Operators on literals become literals,
+ * groupings disappear, and `if`s and `while`s with a constant condition lose the branches that can never run.
+ * Anything that would fail at runtime - dividing by zero, adding a number to a boolean - is left alone,
+ * so it still fails at the same point with the same error.
+ * Vals that end up as a literal get that literal put in wherever they're used.
+ * A few identities like `x * 1` are simplified too, but only when `x` can't be anything but a number,
+ * since the resolver's types aren't always right and getting rid of the operator would get rid of its type error.
+ */
+class ConstantFolder extends AstRewriter {
+	//what's left where a branch got pruned, which gets dropped from any list of statements it ends up in
+	private static final List<Statement> NOTHING = Collections.emptyList();
+	//stands in for an expression that isn't a literal, since null is a literal too
+	private static final Object NOT_CONSTANT = new Object();
+
+	//the literal each val was given, by the name it was declared with, which is what the resolver marks its uses with
+	private final Map<Token, Expression> constants = new IdentityHashMap<>();
+
+	@Override
+	List<Statement> rewrite(List<Statement> statements) {
+		List<Statement> rewritten = super.rewrite(statements);
+		List<Statement> kept = null;
+		for (int i = 0; i < rewritten.size(); i++) {
+			Statement statement = rewritten.get(i);
+			boolean empty = statement instanceof Statement.BlockStatement && ((Statement.BlockStatement)statement).statements.isEmpty();
+			if (empty && kept == null) {
+				kept = new ArrayList<>(rewritten.subList(0, i));
+			}
+			if (!empty && kept != null) kept.add(statement);
+		}
+		return kept != null? kept : rewritten;
+	}
+
+	//expressions
+	@Override
+	public Expression visitTernaryExpression(Expression.TernaryExpression expression) {
+		Expression condition = rewrite(expression.condition);
+		Object value = constant(condition);
+		if (value instanceof Boolean) {
+			return rewrite((boolean)value? expression.positive : expression.negative);
+		}
+		Expression positive = rewrite(expression.positive);
+		Expression negative = rewrite(expression.negative);
+		if (condition == expression.condition && positive == expression.positive && negative == expression.negative) {
+			return expression;
+		}
+		return typed(new Expression.TernaryExpression(expression.question, condition, positive, negative), expression);
+	}
+
+	@Override
+	public Expression visitLogicalExpression(Expression.LogicalExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		Object value = constant(left);
+		if (value instanceof Boolean) {
+			boolean or = expression.operator.type == TokenType.OR;
+			//short circuits, so the right side never runs
+			if ((boolean)value == or) return literal(value);
+			//the right side decides, as long as it's a boolean
+			if (isBoolean(right)) return right;
+		}
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.LogicalExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitBinaryExpression(Expression.BinaryExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		Object value = fold(expression.operator.type, constant(left), constant(right));
+		if (value != NOT_CONSTANT) return literal(value);
+
+		Expression simplified = simplify(expression, left, right);
+		if (simplified != null) return simplified;
+
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.BinaryExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitUnaryExpression(Expression.UnaryExpression expression) {
+		Expression right = rewrite(expression.right);
+		Object value = constant(right);
+		TokenType operator = expression.operator.type;
+		if (operator == TokenType.MINUS && value instanceof Double) return literal(-(double)value);
+		if (operator == TokenType.BANG && value instanceof Boolean) return literal(!(boolean)value);
+
+		//two of the same unary operator cancel out, if the value is already what they'd check it is
+		if (right instanceof Expression.UnaryExpression && ((Expression.UnaryExpression)right).operator.type == operator) {
+			Expression inner = ((Expression.UnaryExpression)right).right;
+			if (operator == TokenType.MINUS && isNumber(inner)) return inner;
+			if (operator == TokenType.BANG && isBoolean(inner)) return inner;
+		}
+
+		if (right == expression.right) return expression;
+		return typed(new Expression.UnaryExpression(expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitVariableExpression(Expression.VariableExpression expression) {
+		//the declaration always gets folded first, since the resolver only marks uses that come after it
+		Expression value = expression.constant != null? constants.get(expression.constant) : null;
+		return value != null? value : expression;
+	}
+
+	@Override
+	public Expression visitGroupingExpression(Expression.GroupingExpression expression) {
+		//grouping only matters for parsing, so the tree doesn't need it anymore
+		return rewrite(expression.expression);
+	}
+
+	/**
+	 * Work out a binary operator on two literals the same way the interpreter would.
+	 * @return The result, or {@link #NOT_CONSTANT} if either side isn't constant or it would be a runtime error.
+	 */
+	private static Object fold(TokenType operator, Object left, Object right) {
+		if (left == NOT_CONSTANT || right == NOT_CONSTANT) return NOT_CONSTANT;
+		switch (operator) {
+			case EQUAL_EQUAL: return Objects.equals(left, right);
+			case BANG_EQUAL: return !Objects.equals(left, right);
+			case PLUS:
+				if (left instanceof String || right instanceof String) {
+					return Interpreter.stringify(left) + Interpreter.stringify(right);
+				}
+				break;
+		}
+		if (!(left instanceof Double && right instanceof Double)) return NOT_CONSTANT;
+		double leftVal = (double)left;
+		double rightVal = (double)right;
+		switch (operator) {
+			case GREATER: return leftVal > rightVal;
+			case GREATER_EQUAL: return leftVal >= rightVal;
+			case LESS: return leftVal < rightVal;
+			case LESS_EQUAL: return leftVal <= rightVal;
+			case MINUS: return leftVal - rightVal;
+			case PLUS: return leftVal + rightVal;
+			case SLASH:
+				//dividing by zero has to stay a runtime error
+				if (rightVal == 0) return NOT_CONSTANT;
+				return leftVal / rightVal;
+			case STAR: return leftVal * rightVal;
+		}
+		return NOT_CONSTANT;
+	}
+
+	/**
+	 * Apply identities that give exactly the same result, with no change in what gets evaluated.
+	 * `x + 0` isn't one of them, since -0 + 0 is 0.
+	 * @return The simplified expression, or null if there isn't one.
+	 */
+	@Nullable
+	private static Expression simplify(Expression.BinaryExpression expression, Expression left, Expression right) {
+		Object leftValue = constant(left);
+		Object rightValue = constant(right);
+		switch (expression.operator.type) {
+			case STAR:
+				if (isOne(rightValue) && isNumber(left)) return left;
+				if (isOne(leftValue) && isNumber(right)) return right;
+				break;
+			case SLASH:
+				if (isOne(rightValue) && isNumber(left)) return left;
+				break;
+			case MINUS:
+				if (rightValue instanceof Double && Double.doubleToRawLongBits((double)rightValue) == 0 && isNumber(left)) return left;
+				break;
+			case PLUS:
+				//`x + "a" + "b"` is always a string ending in "a", so the two literals can be joined into `x + "ab"`
+				if (rightValue instanceof String && left instanceof Expression.BinaryExpression) {
+					Expression.BinaryExpression inner = (Expression.BinaryExpression)left;
+					Object innerValue = constant(inner.right);
+					if (inner.operator.type == TokenType.PLUS && innerValue instanceof String) {
+						Expression joined = literal(innerValue + (String)rightValue);
+						return typed(new Expression.BinaryExpression(inner.left, expression.operator, joined), expression);
+					}
+				}
+				break;
+		}
+		return null;
+	}
+
+	//statements
+	@Override
+	public Statement visitIfStatement(Statement.IfStatement statement) {
+		Expression condition = rewrite(statement.condition);
+		Object value = constant(condition);
+		if (value instanceof Boolean) {
+			if ((boolean)value) return rewrite(statement.thenBranch);
+			if (statement.elseBranch != null) return rewrite(statement.elseBranch);
+			return new Statement.BlockStatement(NOTHING);
+		}
+		Statement thenBranch = rewrite(statement.thenBranch);
+		Statement elseBranch = statement.elseBranch != null? rewrite(statement.elseBranch) : null;
+		if (condition == statement.condition && thenBranch == statement.thenBranch && elseBranch == statement.elseBranch) {
+			return statement;
+		}
+		return new Statement.IfStatement(statement.keyword, condition, thenBranch, elseBranch);
+	}
+
+	@Override
+	public Statement visitWhileStatement(Statement.WhileStatement statement) {
+		Expression condition = rewrite(statement.condition);
+		if (Boolean.FALSE.equals(constant(condition))) return new Statement.BlockStatement(NOTHING);
+		Statement body = rewrite(statement.body);
+		if (condition == statement.condition && body == statement.body) return statement;
+		return new Statement.WhileStatement(statement.keyword, condition, body);
+	}
+
+	@Override
+	public Statement visitVarStatement(Statement.VarStatement statement) {
+		Statement rewritten = super.visitVarStatement(statement);
+		Expression initializer = ((Statement.VarStatement)rewritten).initializer;
+		if (statement.constant && initializer != null && constant(initializer) != NOT_CONSTANT) {
+			constants.put(statement.name, initializer);
+		}
+		return rewritten;
+	}
+
+	//helpers
+	private static Object constant(Expression expression) {
+		if (expression instanceof Expression.LiteralExpression) return ((Expression.LiteralExpression)expression).value;
+		return NOT_CONSTANT;
+	}
+
+	private static Expression literal(Object value) {
+		LoxType type;
+		if (value instanceof Double) {
+			type = LoxType.NUMBER;
+		} else if (value instanceof Boolean) {
+			type = LoxType.BOOLEAN;
+		} else if (value instanceof String) {
+			type = LoxType.STRING;
+		} else {
+			type = LoxType.NONE;
+		}
+		Expression literal = new Expression.LiteralExpression(type, value);
+		literal.resolvedType = type;
+		return literal;
+	}
+
+	private static boolean isOne(Object value) {
+		return value instanceof Double && (double)value == 1;
+	}
+
+	/**
+	 * @return Whether an expression can only ever be a number, or fail before it gets a value.
+	 */
+	private static boolean isNumber(Expression expression) {
+		switch (expression.kind) {
+			case Expression.LITERAL:
+				return ((Expression.LiteralExpression)expression).value instanceof Double;
+			case Expression.UNARY:
+				return ((Expression.UnaryExpression)expression).operator.type == TokenType.MINUS;
+			case Expression.BINARY: {
+				Expression.BinaryExpression binary = (Expression.BinaryExpression)expression;
+				switch (binary.operator.type) {
+					case MINUS:
+					case STAR:
+					case SLASH:
+						return true;
+					case PLUS:
+						return isNumber(binary.left) && isNumber(binary.right);
+				}
+				return false;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return Whether an expression can only ever be a boolean, or fail before it gets a value.
+	 */
+	private static boolean isBoolean(Expression expression) {
+		switch (expression.kind) {
+			case Expression.LITERAL:
+				return ((Expression.LiteralExpression)expression).value instanceof Boolean;
+			case Expression.LOGICAL:
+				return true;
+			case Expression.UNARY:
+				return ((Expression.UnaryExpression)expression).operator.type == TokenType.BANG;
+			case Expression.BINARY:
+				switch (((Expression.BinaryExpression)expression).operator.type) {
+					case GREATER:
+					case GREATER_EQUAL:
+					case LESS:
+					case LESS_EQUAL:
+					case EQUAL_EQUAL:
+					case BANG_EQUAL:
+						return true;
+				}
+				return false;
+		}
+		return false;
+	}
+}
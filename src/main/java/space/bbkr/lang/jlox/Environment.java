@@ -1,51 +1,143 @@
 package space.bbkr.lang.jlox;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
 /**
  * Environment which stores the current scope's variables, along with parent scope.
+ * Globals are late-bound, so the global environment is an array indexed by each name's {@link Symbol#id}.
+ * Ids never change once a name is interned, so a global keeps its index through REPL lines and cached scripts,
+ * and looking one up is a single array read instead of going through a map.
+ * The resolver already checks what gets assigned to them, so the types they were defined with are only kept track of
+ * again at runtime in checked mode, for debugging the resolver.
+ * Every other scope is a frame laid out by the {@link Resolver}: locals live in an array in declaration order,
+ * and are accessed by (distance, slot) instead of by name. Distances never go past the function a scope is in.
+ * Blocks share the frame of the function or top level block they're in, so only those and `super` make one.
+ * Locals that closures capture are kept in a {@link Cell} in their slot, which is there from the start of their scope,
+ * so a closure can take it before the variable is even defined, like a function that calls itself.
  */
 public class Environment {
+	private static final AtomicInteger VERSIONS = new AtomicInteger();
+	//what the indices of globals that haven't been defined hold, since nil is a value
+	private static final Object UNDEFINED = new Object();
+
 	@Nullable
 	final Environment enclosing;
-	private final Map<String, Object> values = new HashMap<>();
-	private final Map<String, Class<?>> types = new HashMap<>(); //TODO: no longer needed  due to compile-time checking?
+	@Nullable
+	private Object[] values;
+	@Nullable
+	private final Map<Symbol, Class<?>> types; //only in checked mode
+	@Nullable
+	private Object[] slots;
+	@Nullable
+	private final boolean[] captured;
+	private int count = 0;
+	//changes whenever a global gets defined again, and is never the same for two global environments,
+	//so a call holding onto a global val knows when it has to look it up again
+	int version;
 
-	Environment() {
+	/**
+	 * @param checked Whether assigning a global a value of a different type than it was defined with is a runtime error,
+	 *                on top of the resolver making it a compile error.
+	 */
+	Environment(boolean checked) {
 		enclosing = null;
+		values = new Object[64];
+		Arrays.fill(values, UNDEFINED);
+		types = checked? new HashMap<>() : null;
+		slots = null;
+		captured = null;
+		version = VERSIONS.incrementAndGet();
 	}
 
-	Environment(Environment enclosing) {
+	/**
+	 * @param enclosing The scope this one is in, or null for the frame of a function call.
+	 * @param size How many locals the resolver found declared in this scope.
+	 * @param captured Which of those locals closures capture, or null if none of them are.
+	 */
+	Environment(@Nullable Environment enclosing, int size, @Nullable boolean[] captured) {
 		this.enclosing = enclosing;
+		this.values = null;
+		this.types = null;
+		this.slots = new Object[size];
+		this.captured = captured;
+		fillCells(captured);
 	}
 
-	@Nullable
-	Object get(Token name) {
-		if (values.containsKey(name.lexeme)) {
-			return values.get(name.lexeme);
+	/**
+	 * Give captured locals new cells, for a scope that's just starting.
+	 * @param captured Which slots need one, or null if none of them do.
+	 */
+	void fillCells(@Nullable boolean[] captured) {
+		if (captured == null) return;
+		for (int i = 0; i < captured.length; i++) {
+			if (captured[i]) slots[i] = new Cell();
 		}
+	}
+
+	/**
+	 * Empty out a frame once its call or block is done, so the next one can use it.
+	 * Captured locals get new cells, since closures from the last call still have the old ones.
+	 */
+	void reset() {
+		Arrays.fill(slots, null);
+		count = 0;
+		fillCells(captured);
+	}
 
-		if (enclosing != null) return enclosing.get(name);
+	/**
+	 * @return How many locals fit in this frame.
+	 */
+	int size() {
+		return slots.length;
+	}
 
-		throw new RuntimeError("DefError", name, "Undefined variable '" + name.lexeme + "'.");
+	/**
+	 * Get the value of a global. Only for the global environment.
+	 */
+	@Nullable
+	Object get(Token name) {
+		int index = name.symbol.id;
+		Object value = index < values.length? values[index] : UNDEFINED;
+		if (value == UNDEFINED) throw new RuntimeError("DefError", name, "Undefined variable '" + name.lexeme + "'.");
+		return value;
 	}
 
-	void define(String name, @Nullable Object value) {
-		values.put(name, value);
-		if (value != null) {
+	/**
+	 * Define a new variable. Locals take the next free slot, which matches the order the resolver declared them in.
+	 */
+	void define(Symbol name, @Nullable Object value) {
+		if (slots != null) {
+			if (count == slots.length) slots = Arrays.copyOf(slots, Math.max(4, count * 2));
+			if (captured != null && count < captured.length && captured[count]) {
+				((Cell)slots[count++]).value = value;
+			} else {
+				slots[count++] = value;
+			}
+			return;
+		}
+		if (name.id >= values.length) {
+			int length = values.length;
+			values = Arrays.copyOf(values, Math.max(length * 2, name.id + 1));
+			Arrays.fill(values, length, values.length, UNDEFINED);
+		}
+		if (values[name.id] != UNDEFINED) version = VERSIONS.incrementAndGet();
+		values[name.id] = value;
+		if (types != null && value != null) {
 			types.put(name, value.getClass());
 		}
 	}
 
-	Object getAt(int distance, String name) {
-		return ancestor(distance).values.get(name);
+	Object getAt(int distance, int slot) {
+		return ancestor(distance).slots[slot];
 	}
 
-	void assignAt(int distance, Token name, Object value) {
-		ancestor(distance).values.put(name.lexeme, value);
+	void assignAt(int distance, int slot, Object value) {
+		ancestor(distance).slots[slot] = value;
 	}
 
 	Environment ancestor(int distance) {
@@ -56,33 +148,24 @@ public class Environment {
 		return environment;
 	}
 
+	/**
+	 * Assign a value to a global that's already been defined. Only for the global environment.
+	 */
 	void assign(Token name, @Nullable Object value) {
-		if (values.containsKey(name.lexeme)) {
-			if (types.containsKey(name.lexeme)) { //check if type is defined yet
-				Class<?> type = types.get(name.lexeme);
-				if (value == null) {
-					values.put(name.lexeme, null);
-					return;
-				} else if (type.equals(value.getClass())) {
-					values.put(name.lexeme, value);
-					return;
-				} else {
-					//TODO: Lox type naming so it can be better defined
-					throw new RuntimeError("TypeError", name, "Variable of type '" + type.getName() +
-							"' cannot be assigned a value of type '" + value.getClass().getName() + "'.");
-				}
-			} else {
-				values.put(name.lexeme, value);
-				if (value != null) types.put(name.lexeme, value.getClass());
-				return;
-			}
+		int index = name.symbol.id;
+		if (index >= values.length || values[index] == UNDEFINED) {
+			throw new RuntimeError("DefError", name, "Undefined variable '" + name.lexeme + "'.");
 		}
-
-		if (enclosing != null) {
-			enclosing.assign(name, value);
-			return;
+		if (types != null && value != null) {
+			Class<?> type = types.get(name.symbol);
+			if (type == null) { //check if type is defined yet
+				types.put(name.symbol, value.getClass());
+			} else if (!type.equals(value.getClass())) {
+				//TODO: Lox type naming so it can be better defined
+				throw new RuntimeError("TypeError", name, "Variable of type '" + type.getName() +
+						"' cannot be assigned a value of type '" + value.getClass().getName() + "'.");
+			}
 		}
-
-		throw new RuntimeError("DefError", name, "Undefined variable '" + name.lexeme + "'.");
+		values[index] = value;
 	}
 }
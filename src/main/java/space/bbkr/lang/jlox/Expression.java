@@ -4,16 +4,49 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
-abstract class Expression {
+public abstract class Expression {
+	public static final int ASSIGN = 0;
+	public static final int TERNARY = 1;
+	public static final int LOGICAL = 2;
+	public static final int BINARY = 3;
+	public static final int UNARY = 4;
+	public static final int NUMBER_BINARY = 5;
+	public static final int NUMBER_COMPARE = 6;
+	public static final int CONCAT = 7;
+	public static final int NEGATE = 8;
+	public static final int NOT = 9;
+	public static final int CALL = 10;
+	public static final int GET = 11;
+	public static final int SET = 12;
+	public static final int LITERAL = 13;
+	public static final int SUPER = 14;
+	public static final int THIS = 15;
+	public static final int VARIABLE = 16;
+	public static final int GROUPING = 17;
+	public static final int CLASS = 18;
+	public static final int FUNCTION = 19;
+	public static final int PARAMETER = 20;
+
+	public final int kind;
+	public LoxType resolvedType = LoxType.UNKNOWN;
+
+	Expression(int kind) {
+		this.kind = kind;
+	}
 
-	abstract <R> R accept(Visitor<R> visitor);
+	public abstract <R> R accept(Visitor<R> visitor);
 
-	interface Visitor<R> {
+	public interface Visitor<R> {
 		R visitAssignExpression(AssignExpression expression);
 		R visitTernaryExpression(TernaryExpression expression);
 		R visitLogicalExpression(LogicalExpression expression);
 		R visitBinaryExpression(BinaryExpression expression);
 		R visitUnaryExpression(UnaryExpression expression);
+		R visitNumberBinaryExpression(NumberBinaryExpression expression);
+		R visitNumberCompareExpression(NumberCompareExpression expression);
+		R visitConcatExpression(ConcatExpression expression);
+		R visitNegateExpression(NegateExpression expression);
+		R visitNotExpression(NotExpression expression);
 		R visitCallExpression(CallExpression expression);
 		R visitGetExpression(GetExpression expression);
 		R visitSetExpression(SetExpression expression);
@@ -27,28 +60,34 @@ abstract class Expression {
 		R visitParameterExpression(ParameterExpression expression);
 	}
 
-	static class AssignExpression extends Expression {
-		 final Token name;
-		 final Expression value;
+	public static class AssignExpression extends Expression {
+		public final Token name;
+		public final Expression value;
+		public int depth = -1;
+		public int slot = -1;
+		public int upvalue = -1;
+		public boolean boxed = false;
 
 		AssignExpression(Token name, Expression value) {
+			super(ASSIGN);
 			this.name = name;
 			this.value = value;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitAssignExpression(this);
 		}
 	}
 
-	static class TernaryExpression extends Expression {
-		 final Token question;
-		 final Expression condition;
-		 final Expression positive;
-		 final Expression negative;
+	public static class TernaryExpression extends Expression {
+		public final Token question;
+		public final Expression condition;
+		public final Expression positive;
+		public final Expression negative;
 
 		TernaryExpression(Token question, Expression condition, Expression positive, Expression negative) {
+			super(TERNARY);
 			this.question = question;
 			this.condition = condition;
 			this.positive = positive;
@@ -56,215 +95,339 @@ abstract class Expression {
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitTernaryExpression(this);
 		}
 	}
 
-	static class LogicalExpression extends Expression {
-		 final Expression left;
-		 final Token operator;
-		 final Expression right;
+	public static class LogicalExpression extends Expression {
+		public final Expression left;
+		public final Token operator;
+		public final Expression right;
 
 		LogicalExpression(Expression left, Token operator, Expression right) {
+			super(LOGICAL);
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitLogicalExpression(this);
 		}
 	}
 
-	static class BinaryExpression extends Expression {
-		 final Expression left;
-		 final Token operator;
-		 final Expression right;
+	public static class BinaryExpression extends Expression {
+		public final Expression left;
+		public final Token operator;
+		public final Expression right;
+		public int state = 0;
+		public int rewrites = 0;
 
 		BinaryExpression(Expression left, Token operator, Expression right) {
+			super(BINARY);
 			this.left = left;
 			this.operator = operator;
 			this.right = right;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitBinaryExpression(this);
 		}
 	}
 
-	static class UnaryExpression extends Expression {
-		 final Token operator;
-		 final Expression right;
+	public static class UnaryExpression extends Expression {
+		public final Token operator;
+		public final Expression right;
 
 		UnaryExpression(Token operator, Expression right) {
+			super(UNARY);
 			this.operator = operator;
 			this.right = right;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitUnaryExpression(this);
 		}
 	}
 
-	static class CallExpression extends Expression {
-		 final Expression callee;
-		 final Token paren;
-		 final List<Expression> arguments;
+	public static class NumberBinaryExpression extends Expression {
+		public final Expression left;
+		public final Token operator;
+		public final Expression right;
+
+		NumberBinaryExpression(Expression left, Token operator, Expression right) {
+			super(NUMBER_BINARY);
+			this.left = left;
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitNumberBinaryExpression(this);
+		}
+	}
+
+	public static class NumberCompareExpression extends Expression {
+		public final Expression left;
+		public final Token operator;
+		public final Expression right;
+
+		NumberCompareExpression(Expression left, Token operator, Expression right) {
+			super(NUMBER_COMPARE);
+			this.left = left;
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitNumberCompareExpression(this);
+		}
+	}
+
+	public static class ConcatExpression extends Expression {
+		public final Expression left;
+		public final Token operator;
+		public final Expression right;
+
+		ConcatExpression(Expression left, Token operator, Expression right) {
+			super(CONCAT);
+			this.left = left;
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitConcatExpression(this);
+		}
+	}
+
+	public static class NegateExpression extends Expression {
+		public final Token operator;
+		public final Expression right;
+
+		NegateExpression(Token operator, Expression right) {
+			super(NEGATE);
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitNegateExpression(this);
+		}
+	}
+
+	public static class NotExpression extends Expression {
+		public final Token operator;
+		public final Expression right;
+
+		NotExpression(Token operator, Expression right) {
+			super(NOT);
+			this.operator = operator;
+			this.right = right;
+		}
+
+		@Override
+		public <R> R accept(Visitor<R> visitor) {
+			return visitor.visitNotExpression(this);
+		}
+	}
+
+	public static class CallExpression extends Expression {
+		public final Expression callee;
+		public final Token paren;
+		public final List<Expression> arguments;
+		public @Nullable LoxCallable target = null;
+		public int targetVersion = 0;
+		public @Nullable Statement.FunctionStatement function = null;
+		public int state = 0;
+		public int rewrites = 0;
 
 		CallExpression(Expression callee, Token paren, List<Expression> arguments) {
+			super(CALL);
 			this.callee = callee;
 			this.paren = paren;
 			this.arguments = arguments;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitCallExpression(this);
 		}
 	}
 
-	static class GetExpression extends Expression {
-		 final Expression object;
-		 final Token name;
+	public static class GetExpression extends Expression {
+		public final Expression object;
+		public final Token name;
+		public final PropertyCache cache = new PropertyCache();
 
 		GetExpression(Expression object, Token name) {
+			super(GET);
 			this.object = object;
 			this.name = name;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitGetExpression(this);
 		}
 	}
 
-	static class SetExpression extends Expression {
-		 final Expression object;
-		 final Token name;
-		 final Expression value;
+	public static class SetExpression extends Expression {
+		public final Expression object;
+		public final Token name;
+		public final Expression value;
+		public final PropertyCache cache = new PropertyCache();
 
 		SetExpression(Expression object, Token name, Expression value) {
+			super(SET);
 			this.object = object;
 			this.name = name;
 			this.value = value;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitSetExpression(this);
 		}
 	}
 
-	static class LiteralExpression extends Expression {
-		 final LoxType type;
-		 final @Nullable Object value;
+	public static class LiteralExpression extends Expression {
+		public final LoxType type;
+		public final @Nullable Object value;
 
 		LiteralExpression(LoxType type, @Nullable Object value) {
+			super(LITERAL);
 			this.type = type;
 			this.value = value;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitLiteralExpression(this);
 		}
 	}
 
-	static class SuperExpression extends Expression {
-		 final Token keyword;
-		 final Token method;
-
-		SuperExpression(Token keyword, Token method) {
+	public static class SuperExpression extends Expression {
+		public final Token keyword;
+		public final Token method;
+		public final Expression.ThisExpression receiver;
+		public int depth = -1;
+		public int slot = -1;
+		public int upvalue = -1;
+		public boolean boxed = false;
+
+		SuperExpression(Token keyword, Token method, Expression.ThisExpression receiver) {
+			super(SUPER);
 			this.keyword = keyword;
 			this.method = method;
+			this.receiver = receiver;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitSuperExpression(this);
 		}
 	}
 
-	static class ThisExpression extends Expression {
-		 final Token keyword;
+	public static class ThisExpression extends Expression {
+		public final Token keyword;
+		public int depth = -1;
+		public int slot = -1;
+		public int upvalue = -1;
+		public boolean boxed = false;
 
 		ThisExpression(Token keyword) {
+			super(THIS);
 			this.keyword = keyword;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitThisExpression(this);
 		}
 	}
 
-	static class VariableExpression extends Expression {
-		 final Token name;
+	public static class VariableExpression extends Expression {
+		public final Token name;
+		public int depth = -1;
+		public int slot = -1;
+		public int upvalue = -1;
+		public boolean boxed = false;
+		public @Nullable Token constant = null;
 
 		VariableExpression(Token name) {
+			super(VARIABLE);
 			this.name = name;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitVariableExpression(this);
 		}
 	}
 
-	static class GroupingExpression extends Expression {
-		 final Expression expression;
+	public static class GroupingExpression extends Expression {
+		public final Expression expression;
 
 		GroupingExpression(Expression expression) {
+			super(GROUPING);
 			this.expression = expression;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitGroupingExpression(this);
 		}
 	}
 
-	static class ClassExpression extends Expression {
-		 final Statement.ClassStatement clazz;
+	public static class ClassExpression extends Expression {
+		public final Statement.ClassStatement clazz;
 
 		ClassExpression(Statement.ClassStatement clazz) {
+			super(CLASS);
 			this.clazz = clazz;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitClassExpression(this);
 		}
 	}
 
-	static class FunctionExpression extends Expression {
-		 final Statement.FunctionStatement function;
+	public static class FunctionExpression extends Expression {
+		public final Statement.FunctionStatement function;
 
 		FunctionExpression(Statement.FunctionStatement function) {
+			super(FUNCTION);
 			this.function = function;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitFunctionExpression(this);
 		}
 	}
 
-	static class ParameterExpression extends Expression {
-		 final Token name;
-		 final LoxType type;
+	public static class ParameterExpression extends Expression {
+		public final Token name;
+		public final LoxType type;
 
 		ParameterExpression(Token name, LoxType type) {
+			super(PARAMETER);
 			this.name = name;
 			this.type = type;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitParameterExpression(this);
 		}
 	}
@@ -1,22 +1,59 @@
 package space.bbkr.lang.jlox;
 
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import javax.annotation.Nullable;
+
 /**
  * The interpreter that actually runs things!
+ * Binary operators the resolver couldn't prove the types of, and calls, specialize themselves on what they see
+ * while running: a node that's only seen numbers does its arithmetic on primitives, and a call that's only ever
+ * seen one function calls it directly. Once a node sees something else it goes generic for good,
+ * so it can never flip back and forth, and each node counts how many times it's changed to help diagnose that.
  */
-class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void> {
-	final Environment globals = new Environment();
-	private Environment environment = globals;
-	private final Map<Expression, Integer> locals = new HashMap<>();
+class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Completion> {
+	private static final Cell[] NO_UPVALUES = new Cell[0];
+	//the one slot of the scope `super` gets defined in, which is only ever there for methods to capture
+	private static final boolean[] SUPER_CAPTURED = {true};
+	//what a node that specializes itself has seen so far
+	private static final int UNINITIALIZED = 0;
+	private static final int NUMBERS = 1; //binary operator that's only seen two numbers
+	private static final int STRINGS = 2; //'+' that's always had a string on one side
+	private static final int MONOMORPHIC = 3; //call that's only ever called one function
+	private static final int GENERIC = 4;
+
+	final Environment globals;
+	Environment environment;
+	//what the function that's running captured
+	Cell[] upvalues = NO_UPVALUES;
+	//the frame top level blocks run in, which only one can ever be using at a time
+	@Nullable
+	private Environment blockFrame = null;
+	//set by a return statement, until the function it returns from picks it up
+	@Nullable
+	Object returnValue = null;
+	//whether to switch on node kinds instead of visiting them
+	private final boolean switchDispatch;
 
 	Interpreter() {
+		this(false, false);
+	}
+
+	/**
+	 * @param switchDispatch Whether to find each node's visit method by switching on its {@code kind},
+	 * so every visit is a direct call the JIT can inline instead of going through {@code accept}.
+	 * @param checked Whether to check the types of values assigned to globals again at runtime,
+	 * instead of trusting the resolver. Only useful for debugging the resolver.
+	 */
+	Interpreter(boolean switchDispatch, boolean checked) {
+		this.switchDispatch = switchDispatch;
+		this.globals = new Environment(checked);
+		this.environment = globals;
 		//TODO: better stdlib
-		globals.define("print", new LoxCallable() {
+		globals.define(Symbol.intern("print"), new LoxCallable() {
 			@Override
 			public int arity() {
 				return 1;
@@ -33,8 +70,13 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 			}
 
 			@Override
-			public Object call(Interpreter interpreter, List<Object> arguments) {
-				System.out.println(stringify(arguments.get(0)));
+			public Object call(Interpreter interpreter, Object[] arguments) {
+				return call1(interpreter, arguments[0]);
+			}
+
+			@Override
+			public Object call1(Interpreter interpreter, Object a) {
+				System.out.println(stringify(a));
 				return null;
 			}
 
@@ -43,7 +85,7 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 				return "<native fn>";
 			}
 		});
-		globals.define("clock", new LoxCallable() {
+		globals.define(Symbol.intern("clock"), new LoxCallable() {
 			@Override
 			public int arity() {
 				return 0;
@@ -60,7 +102,12 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 			}
 
 			@Override
-			public Object call(Interpreter interpreter, List<Object> arguments) {
+			public Object call(Interpreter interpreter, Object[] arguments) {
+				return call0(interpreter);
+			}
+
+			@Override
+			public Object call0(Interpreter interpreter) {
 				return (double)System.currentTimeMillis() / 1000d;
 			}
 
@@ -81,38 +128,145 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 		}
 	}
 
+	/**
+	 * Run a program {@link ClosureCompiler} compiled.
+	 */
+	void interpret(ClosureCompiler.StatementNode program) {
+		try {
+			program.run(this);
+		} catch (RuntimeError e) {
+			Lox.runtimeError(e);
+		}
+	}
+
 	String stringEval(Expression expression) {
 		return stringify(evaluate(expression));
 	}
 
 	private Object evaluate(Expression expression) {
+		if (switchDispatch) return dispatch(expression);
 		return expression.accept(this);
 	}
 
-	private void execute(Statement statement) {
-		statement.accept(this);
+	private Completion execute(Statement statement) {
+		if (switchDispatch) return dispatch(statement);
+		return statement.accept(this);
+	}
+
+	private Object dispatch(Expression expression) {
+		switch (expression.kind) {
+			case Expression.ASSIGN: return visitAssignExpression((Expression.AssignExpression)expression);
+			case Expression.TERNARY: return visitTernaryExpression((Expression.TernaryExpression)expression);
+			case Expression.LOGICAL: return visitLogicalExpression((Expression.LogicalExpression)expression);
+			case Expression.BINARY: return visitBinaryExpression((Expression.BinaryExpression)expression);
+			case Expression.UNARY: return visitUnaryExpression((Expression.UnaryExpression)expression);
+			case Expression.NUMBER_BINARY: return visitNumberBinaryExpression((Expression.NumberBinaryExpression)expression);
+			case Expression.NUMBER_COMPARE: return visitNumberCompareExpression((Expression.NumberCompareExpression)expression);
+			case Expression.CONCAT: return visitConcatExpression((Expression.ConcatExpression)expression);
+			case Expression.NEGATE: return visitNegateExpression((Expression.NegateExpression)expression);
+			case Expression.NOT: return visitNotExpression((Expression.NotExpression)expression);
+			case Expression.CALL: return visitCallExpression((Expression.CallExpression)expression);
+			case Expression.GET: return visitGetExpression((Expression.GetExpression)expression);
+			case Expression.SET: return visitSetExpression((Expression.SetExpression)expression);
+			case Expression.LITERAL: return visitLiteralExpression((Expression.LiteralExpression)expression);
+			case Expression.SUPER: return visitSuperExpression((Expression.SuperExpression)expression);
+			case Expression.THIS: return visitThisExpression((Expression.ThisExpression)expression);
+			case Expression.VARIABLE: return visitVariableExpression((Expression.VariableExpression)expression);
+			case Expression.GROUPING: return visitGroupingExpression((Expression.GroupingExpression)expression);
+			case Expression.CLASS: return visitClassExpression((Expression.ClassExpression)expression);
+			case Expression.FUNCTION: return visitFunctionExpression((Expression.FunctionExpression)expression);
+			case Expression.PARAMETER: return visitParameterExpression((Expression.ParameterExpression)expression);
+			default: return expression.accept(this);
+		}
+	}
+
+	private Completion dispatch(Statement statement) {
+		switch (statement.kind) {
+			case Statement.IF: return visitIfStatement((Statement.IfStatement)statement);
+			case Statement.RETURN: return visitReturnStatement((Statement.ReturnStatement)statement);
+			case Statement.WHILE: return visitWhileStatement((Statement.WhileStatement)statement);
+			case Statement.BREAK: return visitBreakStatement((Statement.BreakStatement)statement);
+			case Statement.BLOCK: return visitBlockStatement((Statement.BlockStatement)statement);
+			case Statement.CLASS: return visitClassStatement((Statement.ClassStatement)statement);
+			case Statement.FUNCTION: return visitFunctionStatement((Statement.FunctionStatement)statement);
+			case Statement.VAR: return visitVarStatement((Statement.VarStatement)statement);
+			case Statement.EXPRESSION: return visitExpressionStatement((Statement.ExpressionStatement)statement);
+			default: return statement.accept(this);
+		}
 	}
 
-	void executeBlock(List<Statement> statements, Environment environment) {
+	/**
+	 * Run statements in a new scope, stopping at the first one that breaks or returns.
+	 * @return How the block finished, for the enclosing loop or function to handle.
+	 */
+	Completion executeBlock(List<Statement> statements, Environment environment) {
 		Environment previous = this.environment;
 		try {
 			this.environment = environment;
 
-			for (Statement statement : statements) {
-				execute(statement);
+			for (int i = 0; i < statements.size(); i++) {
+				Completion completion = execute(statements.get(i));
+				if (completion != Completion.NORMAL) return completion;
 			}
+			return Completion.NORMAL;
 		} finally {
 			this.environment = previous;
 		}
 	}
 
+	/**
+	 * Run a function's body in its frame.
+	 * @param upvalues The cells the function captured.
+	 */
+	Completion executeFunction(List<Statement> body, Environment frame, Cell[] upvalues) {
+		Cell[] previous = this.upvalues;
+		try {
+			this.upvalues = upvalues;
+			return executeBlock(body, frame);
+		} finally {
+			this.upvalues = previous;
+		}
+	}
+
+	/**
+	 * Run a function's compiled body in its frame.
+	 * @param upvalues The cells the function captured.
+	 */
+	Completion executeFunction(ClosureCompiler.StatementNode body, Environment frame, Cell[] upvalues) {
+		Environment previousEnvironment = environment;
+		Cell[] previousUpvalues = this.upvalues;
+		try {
+			environment = frame;
+			this.upvalues = upvalues;
+			return body.run(this);
+		} finally {
+			environment = previousEnvironment;
+			this.upvalues = previousUpvalues;
+		}
+	}
+
+	/**
+	 * Get the value of the return statement that just completed, and forget it.
+	 */
+	@Nullable
+	Object takeReturnValue() {
+		Object value = returnValue;
+		returnValue = null;
+		return value;
+	}
+
 	@Override
 	public Object visitAssignExpression(Expression.AssignExpression expression) {
 		Object value = evaluate(expression.value);
 
-		Integer distance = locals.get(expression);
-		if (distance != null) {
-			environment.assignAt(distance, expression.name, value);
+		if (expression.depth != -1) {
+			if (expression.boxed) {
+				((Cell)environment.getAt(expression.depth, expression.slot)).value = value;
+			} else {
+				environment.assignAt(expression.depth, expression.slot, value);
+			}
+		} else if (expression.upvalue != -1) {
+			upvalues[expression.upvalue].value = value;
 		} else {
 			globals.assign(expression.name, value);
 		}
@@ -122,52 +276,91 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 
 	@Override
 	public Object visitTernaryExpression(Expression.TernaryExpression expression) {
-		Object result = evaluate(expression.condition);
-		if (result instanceof Boolean) {
-			if ((boolean)result) {
-				return evaluate(expression.positive);
-			} else {
-				return evaluate(expression.negative);
-			}
+		boolean result;
+		try {
+			result = evaluateBoolean(expression.condition);
+		} catch (NotPrimitive e) {
+			throw new RuntimeError("TypeError", expression.question, "Operand in ternary must be a boolean, but was '" + stringify(e.value) + "' instead.");
+		}
+		if (result) {
+			return evaluate(expression.positive);
+		} else {
+			return evaluate(expression.negative);
 		}
-		throw new RuntimeError("TypeError", expression.question, "Operand in ternary must be a boolean, but was '" + stringify(result) + "' instead.");
 	}
 
 	@Override
 	public Object visitLogicalExpression(Expression.LogicalExpression expression) {
-		boolean left = checkBooleanOperand(expression.operator, evaluate(expression.left));
+		return logical(expression);
+	}
 
-		if (expression.operator.type == TokenType.OR) {
-			if (left) return true;
-		} else {
-			if (!left) return false;
+	@Override
+	public Object visitBinaryExpression(Expression.BinaryExpression expression) {
+		switch (expression.state) {
+			case NUMBERS:
+				try {
+					if (isArithmetic(expression.operator.type)) {
+						return numberBinary(expression.operator, expression.left, expression.right, expression);
+					}
+					return numberCompare(expression.operator, expression.left, expression.right, expression);
+				} catch (NotPrimitive e) {
+					return e.value;
+				}
+			case STRINGS: {
+				Object left = evaluate(expression.left);
+				Object right = evaluate(expression.right);
+				if (left instanceof String || right instanceof String) return stringify(left) + stringify(right);
+				rewrite(expression, GENERIC);
+				return binaryOperation(expression.operator, left, right);
+			}
+			case GENERIC:
+				return binaryOperation(expression.operator, evaluate(expression.left), evaluate(expression.right));
+			default: {
+				Object left = evaluate(expression.left);
+				Object right = evaluate(expression.right);
+				if (left instanceof Double && right instanceof Double) {
+					rewrite(expression, NUMBERS);
+				} else if (expression.operator.type == TokenType.PLUS && (left instanceof String || right instanceof String)) {
+					rewrite(expression, STRINGS);
+				} else {
+					rewrite(expression, GENERIC);
+				}
+				return binaryOperation(expression.operator, left, right);
+			}
 		}
+	}
 
-		return checkBooleanOperand(expression.operator, stringEval(expression.right));
+	private static void rewrite(Expression.BinaryExpression expression, int state) {
+		expression.state = state;
+		expression.rewrites++;
 	}
 
-	@Override
-	public Object visitBinaryExpression(Expression.BinaryExpression expression) {
-		Object left = evaluate(expression.left);
-		Object right = evaluate(expression.right);
-		if (expression.operator.type == TokenType.PLUS)  {
+	private static boolean isArithmetic(TokenType operator) {
+		return operator == TokenType.PLUS || operator == TokenType.MINUS || operator == TokenType.STAR || operator == TokenType.SLASH;
+	}
+
+	/**
+	 * The fully dynamic version of every binary operator, which the specialized nodes fall back on.
+	 */
+	static Object binaryOperation(Token operator, Object left, Object right) {
+		if (operator.type == TokenType.PLUS)  {
 			if (left instanceof String || right instanceof String) {
 				return stringify(left) + stringify(right);
 			} else if (!(left instanceof Double && right instanceof Double)) { //just error handling
-				throw new RuntimeError("TypeError", expression.operator,
+				throw new RuntimeError("TypeError", operator,
 						"Operands for '+' must be two numbers or contain one string, but were '"
 								+ stringify(left) + "' and '" + stringify(right) + "' instead.");
 			}
-		} else if (expression.operator.type == TokenType.BANG_EQUAL) {
+		} else if (operator.type == TokenType.BANG_EQUAL) {
 			return !isEqual(left, right);
-		} else if (expression.operator.type == TokenType.EQUAL_EQUAL) {
+		} else if (operator.type == TokenType.EQUAL_EQUAL) {
 			return isEqual(left, right);
 		}
 
-		double leftVal = checkDoubleOperand(expression.operator, left);
-		double rightVal = checkDoubleOperand(expression.operator, right);
+		double leftVal = checkDoubleOperand(operator, left);
+		double rightVal = checkDoubleOperand(operator, right);
 
-		switch (expression.operator.type) {
+		switch (operator.type) {
 			case GREATER:
 				return leftVal > rightVal;
 			case GREATER_EQUAL:
@@ -181,7 +374,7 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 			case PLUS:
 				return leftVal + rightVal;
 			case SLASH:
-				if (rightVal == 0) throw new RuntimeError("MathError", expression.operator,
+				if (rightVal == 0) throw new RuntimeError("MathError", operator,
 						"Cannot divide by zero.");
 				return leftVal / rightVal;
 			case STAR:
@@ -194,13 +387,16 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 
 	@Override
 	public Object visitUnaryExpression(Expression.UnaryExpression expression) {
-		Object right = evaluate(expression.right);
-		switch (expression.operator.type) {
+		return unaryOperation(expression.operator, evaluate(expression.right));
+	}
+
+	static Object unaryOperation(Token operator, Object right) {
+		switch (operator.type) {
 			case BANG:
-				boolean bool = checkBooleanOperand(expression.operator, right);
+				boolean bool = checkBooleanOperand(operator, right);
 				return !bool;
 			case MINUS:
-				double value = checkDoubleOperand(expression.operator, right);
+				double value = checkDoubleOperand(operator, right);
 				return -value;
 		}
 
@@ -208,33 +404,331 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 		return null;
 	}
 
+	//the specialized nodes work on primitives, and only box their result once it leaves the primitive channel
+	@Override
+	public Object visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		try {
+			return numberBinary(expression.operator, expression.left, expression.right, null);
+		} catch (NotPrimitive e) {
+			return e.value;
+		}
+	}
+
+	@Override
+	public Object visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		return numberCompare(expression.operator, expression.left, expression.right, null);
+	}
+
+	@Override
+	public Object visitConcatExpression(Expression.ConcatExpression expression) {
+		Object left = evaluate(expression.left);
+		Object right = evaluate(expression.right);
+		if (!(left instanceof String || right instanceof String)) return binaryOperation(expression.operator, left, right);
+		return stringify(left) + stringify(right);
+	}
+
+	@Override
+	public Object visitNegateExpression(Expression.NegateExpression expression) {
+		try {
+			return negate(expression);
+		} catch (NotPrimitive e) {
+			return e.value;
+		}
+	}
+
+	@Override
+	public Object visitNotExpression(Expression.NotExpression expression) {
+		return not(expression);
+	}
+
+	/**
+	 * Evaluate an expression the resolver proved is a number without boxing it, as long as it's made of
+	 * specialized nodes, or generic ones that have only seen numbers. Anything else gets evaluated normally and unboxed.
+	 * @throws NotPrimitive If the value wasn't a number after all, carrying the value it was.
+	 */
+	double evaluateDouble(Expression expression) {
+		if (expression instanceof Expression.NumberBinaryExpression) {
+			Expression.NumberBinaryExpression binary = (Expression.NumberBinaryExpression)expression;
+			return numberBinary(binary.operator, binary.left, binary.right, null);
+		} else if (expression instanceof Expression.NegateExpression) {
+			return negate((Expression.NegateExpression)expression);
+		} else if (expression instanceof Expression.GroupingExpression) {
+			return evaluateDouble(((Expression.GroupingExpression)expression).expression);
+		} else if (expression instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression)expression;
+			if (binary.state == NUMBERS && isArithmetic(binary.operator.type)) {
+				return numberBinary(binary.operator, binary.left, binary.right, binary);
+			}
+		}
+		return unboxDouble(evaluate(expression));
+	}
+
+	/**
+	 * Evaluate an expression the resolver proved is a boolean without going through the boxed value.
+	 * @throws NotPrimitive If the value wasn't a boolean after all, carrying the value it was.
+	 */
+	boolean evaluateBoolean(Expression expression) {
+		if (expression instanceof Expression.NumberCompareExpression) {
+			Expression.NumberCompareExpression compare = (Expression.NumberCompareExpression)expression;
+			return numberCompare(compare.operator, compare.left, compare.right, null);
+		} else if (expression instanceof Expression.BinaryExpression) {
+			Expression.BinaryExpression binary = (Expression.BinaryExpression)expression;
+			if (binary.state == NUMBERS && !isArithmetic(binary.operator.type)) {
+				return numberCompare(binary.operator, binary.left, binary.right, binary);
+			}
+		} else if (expression instanceof Expression.NotExpression) {
+			return not((Expression.NotExpression)expression);
+		} else if (expression instanceof Expression.LogicalExpression) {
+			return logical((Expression.LogicalExpression)expression);
+		} else if (expression instanceof Expression.GroupingExpression) {
+			return evaluateBoolean(((Expression.GroupingExpression)expression).expression);
+		}
+		Object value = evaluate(expression);
+		if (value instanceof Boolean) return (boolean)value;
+		throw new NotPrimitive(value);
+	}
+
+	static double unboxDouble(Object value) {
+		if (value instanceof Double) return (double)value;
+		throw new NotPrimitive(value);
+	}
+
+	/**
+	 * @param specialized The generic node this is for, which stops specializing if an operand isn't a number,
+	 *                    or null for a node the resolver proved is on two numbers.
+	 */
+	private double numberBinary(Token operator, Expression left, Expression right, @Nullable Expression.BinaryExpression specialized) {
+		double leftVal;
+		try {
+			leftVal = evaluateDouble(left);
+		} catch (NotPrimitive e) {
+			if (specialized != null) rewrite(specialized, GENERIC);
+			return unboxDouble(binaryOperation(operator, e.value, evaluate(right)));
+		}
+		double rightVal;
+		try {
+			rightVal = evaluateDouble(right);
+		} catch (NotPrimitive e) {
+			if (specialized != null) rewrite(specialized, GENERIC);
+			return unboxDouble(binaryOperation(operator, leftVal, e.value));
+		}
+		switch (operator.type) {
+			case PLUS:
+				return leftVal + rightVal;
+			case MINUS:
+				return leftVal - rightVal;
+			case STAR:
+				return leftVal * rightVal;
+			case SLASH:
+				if (rightVal == 0) throw new RuntimeError("MathError", operator,
+						"Cannot divide by zero.");
+				return leftVal / rightVal;
+		}
+
+		//unreachable
+		return 0;
+	}
+
+	/**
+	 * @param specialized The generic node this is for, which stops specializing if an operand isn't a number,
+	 *                    or null for a node the resolver proved is on two numbers.
+	 */
+	private boolean numberCompare(Token operator, Expression left, Expression right, @Nullable Expression.BinaryExpression specialized) {
+		double leftVal;
+		try {
+			leftVal = evaluateDouble(left);
+		} catch (NotPrimitive e) {
+			if (specialized != null) rewrite(specialized, GENERIC);
+			return (boolean)binaryOperation(operator, e.value, evaluate(right));
+		}
+		double rightVal;
+		try {
+			rightVal = evaluateDouble(right);
+		} catch (NotPrimitive e) {
+			if (specialized != null) rewrite(specialized, GENERIC);
+			return (boolean)binaryOperation(operator, leftVal, e.value);
+		}
+		switch (operator.type) {
+			case GREATER:
+				return leftVal > rightVal;
+			case GREATER_EQUAL:
+				return leftVal >= rightVal;
+			case LESS:
+				return leftVal < rightVal;
+			case LESS_EQUAL:
+				return leftVal <= rightVal;
+			//same as Double.equals, which is what the generic version uses
+			case EQUAL_EQUAL:
+				return Double.doubleToLongBits(leftVal) == Double.doubleToLongBits(rightVal);
+			case BANG_EQUAL:
+				return Double.doubleToLongBits(leftVal) != Double.doubleToLongBits(rightVal);
+		}
+
+		//unreachable
+		return false;
+	}
+
+	private double negate(Expression.NegateExpression expression) {
+		try {
+			return -evaluateDouble(expression.right);
+		} catch (NotPrimitive e) {
+			return unboxDouble(unaryOperation(expression.operator, e.value));
+		}
+	}
+
+	private boolean not(Expression.NotExpression expression) {
+		try {
+			return !evaluateBoolean(expression.right);
+		} catch (NotPrimitive e) {
+			return (boolean)unaryOperation(expression.operator, e.value);
+		}
+	}
+
+	private boolean logical(Expression.LogicalExpression expression) {
+		boolean left = booleanOperand(expression.operator, expression.left);
+
+		if (expression.operator.type == TokenType.OR) {
+			if (left) return true;
+		} else {
+			if (!left) return false;
+		}
+
+		return booleanOperand(expression.operator, expression.right);
+	}
+
 	@Override
 	public Object visitCallExpression(Expression.CallExpression expression) {
-		Object callee = evaluate(expression.callee);
+		//method calls are invoked straight on their instance, instead of binding the method just to call it once
+		LoxInstance receiver = null;
+		LoxFunction method = null;
+		boolean arityChecked = false;
+		Object callee;
+		if (expression.callee instanceof Expression.GetExpression) {
+			Expression.GetExpression get = (Expression.GetExpression)expression.callee;
+			Object object = evaluate(get.object);
+			if (!(object instanceof LoxInstance)) {
+				throw new RuntimeError("TypeError", get.name, "Only instances have properties.");
+			}
+			receiver = (LoxInstance)object;
+			method = get.cache.method(receiver, get.name);
+			callee = method != null? method : get.cache.get(receiver, get.name);
+		} else if (expression.callee instanceof Expression.SuperExpression) {
+			Expression.SuperExpression superExpression = (Expression.SuperExpression)expression.callee;
+			receiver = superReceiver(superExpression);
+			method = superMethod(superExpression);
+			callee = method;
+		} else {
+			if (expression.target != null && expression.targetVersion == globals.version) {
+				callee = expression.target;
+			} else {
+				callee = evaluate(expression.callee);
+				//a global val never changes once it's defined, so the call can hold onto it for as long as the globals are the same
+				if (callee instanceof LoxCallable && isGlobalConstant(expression.callee)) {
+					expression.target = (LoxCallable)callee;
+					expression.targetVersion = globals.version;
+				}
+			}
+			if (expression.state != GENERIC && monomorphic(expression, callee)) {
+				method = (LoxFunction)callee;
+				receiver = method.receiver;
+				arityChecked = true;
+			}
+		}
 
 		if (!(callee instanceof LoxCallable)) {
 			throw new RuntimeError("TypeError", expression.paren,
 					"Can only call functions and classes.");
 		}
 
-		List<Object> arguments = new ArrayList<>();
-		for (Expression argument : expression.arguments) {
-			arguments.add(evaluate(argument));
+		LoxCallable function = (LoxCallable)callee;
+		List<Expression> arguments = expression.arguments;
+		//go through the fixed-arity entry points when we can, so there's no argument array to build
+		switch (arguments.size()) {
+			case 0: {
+				if (!arityChecked) checkArity(expression.paren, function, 0);
+				return method != null? method.invoke0(this, receiver) : function.call0(this);
+			}
+			case 1: {
+				Object a = evaluate(arguments.get(0));
+				if (!arityChecked) checkArity(expression.paren, function, 1);
+				return method != null? method.invoke1(this, receiver, a) : function.call1(this, a);
+			}
+			case 2: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				if (!arityChecked) checkArity(expression.paren, function, 2);
+				return method != null? method.invoke2(this, receiver, a, b) : function.call2(this, a, b);
+			}
+			case 3: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				Object c = evaluate(arguments.get(2));
+				if (!arityChecked) checkArity(expression.paren, function, 3);
+				return method != null? method.invoke3(this, receiver, a, b, c) : function.call3(this, a, b, c);
+			}
+			case 4: {
+				Object a = evaluate(arguments.get(0));
+				Object b = evaluate(arguments.get(1));
+				Object c = evaluate(arguments.get(2));
+				Object d = evaluate(arguments.get(3));
+				if (!arityChecked) checkArity(expression.paren, function, 4);
+				return method != null? method.invoke4(this, receiver, a, b, c, d) : function.call4(this, a, b, c, d);
+			}
+			default: {
+				Object[] values = new Object[arguments.size()];
+				for (int i = 0; i < values.length; i++) {
+					values[i] = evaluate(arguments.get(i));
+				}
+				if (!arityChecked) checkArity(expression.paren, function, values.length);
+				return method != null? method.invoke(this, receiver, values) : function.call(this, values);
+			}
 		}
+	}
 
-		LoxCallable function = (LoxCallable)callee;
-		if (arguments.size() != function.arity()) { //TODO: fix class typing so this is no longer necessary
-			throw new RuntimeError("DefError", expression.paren, "Expected " + function.arity()
-					+ " arguments but got " + arguments.size() + " instead.");
+	/**
+	 * Feed what a call is calling back to it, so it can specialize to the one function it always calls.
+	 * Functions are told apart by their declaration, so a closure made again or a method bound to another instance
+	 * still counts as the same one.
+	 * @return Whether the call is specialized to what it's calling, which has the right arity.
+	 */
+	private static boolean monomorphic(Expression.CallExpression expression, Object callee) {
+		if (callee instanceof LoxFunction) {
+			Statement.FunctionStatement declaration = ((LoxFunction)callee).declaration;
+			if (expression.state == MONOMORPHIC && declaration == expression.function) return true;
+			if (expression.state == UNINITIALIZED && declaration.params.size() == expression.arguments.size()) {
+				expression.function = declaration;
+				rewrite(expression, MONOMORPHIC);
+				return true;
+			}
+		}
+		expression.function = null;
+		rewrite(expression, GENERIC);
+		return false;
+	}
+
+	private static void rewrite(Expression.CallExpression expression, int state) {
+		expression.state = state;
+		expression.rewrites++;
+	}
+
+	static boolean isGlobalConstant(Expression expression) {
+		if (expression.kind != Expression.VARIABLE) return false;
+		Expression.VariableExpression variable = (Expression.VariableExpression)expression;
+		return variable.constant != null && variable.depth == -1 && variable.upvalue == -1;
+	}
+
+	static void checkArity(Token paren, LoxCallable function, int count) {
+		if (count != function.arity()) { //TODO: fix class typing so this is no longer necessary
+			throw new RuntimeError("DefError", paren, "Expected " + function.arity()
+					+ " arguments but got " + count + " instead.");
 		}
-		return function.call(this, arguments);
 	}
 
 	@Override
 	public Object visitGetExpression(Expression.GetExpression expression) {
 		Object object = evaluate(expression.object);
 		if (object instanceof LoxInstance) {
-			return ((LoxInstance)object).get(expression.name);
+			return expression.cache.get((LoxInstance)object, expression.name);
 		}
 
 		throw new RuntimeError("TypeError", expression.name, "Only instances have properties.");
@@ -250,7 +744,7 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 
 		Object value = evaluate(expression.value);
 
-		((LoxInstance)object).set(expression.name, value);
+		expression.cache.set((LoxInstance)object, expression.name, value);
 		return value;
 	}
 
@@ -261,29 +755,32 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 
 	@Override
 	public Object visitSuperExpression(Expression.SuperExpression expression) {
-		int distance = locals.get(expression);
-		LoxClass superclass = (LoxClass)environment.getAt(distance, "super");
-
-		// "this" is always one level nearer than "super"'s environment.
-		LoxInstance object = (LoxInstance)environment.getAt(distance - 1, "this");
+		return superMethod(expression).bind(superReceiver(expression));
+	}
 
-		LoxFunction method = superclass.findMethod(expression.method.lexeme);
+	private LoxFunction superMethod(Expression.SuperExpression expression) {
+		LoxClass superclass = (LoxClass)lookupVariable(expression.keyword, expression.depth, expression.slot, expression.upvalue, expression.boxed);
+		LoxFunction method = superclass.findMethod(expression.method.symbol);
 
 		if (method == null) {
 			throw new RuntimeError("DefError", expression.method, "Undefined property '" + expression.method.lexeme + "'.");
 		}
 
-		return method.bind(object);
+		return method;
+	}
+
+	private LoxInstance superReceiver(Expression.SuperExpression expression) {
+		return (LoxInstance)visitThisExpression(expression.receiver);
 	}
 
 	@Override
 	public Object visitThisExpression(Expression.ThisExpression expression) {
-		return lookupVariable(expression.keyword, expression);
+		return lookupVariable(expression.keyword, expression.depth, expression.slot, expression.upvalue, expression.boxed);
 	}
 
 	@Override
 	public Object visitVariableExpression(Expression.VariableExpression expression) {
-		return lookupVariable(expression.name, expression);
+		return lookupVariable(expression.name, expression.depth, expression.slot, expression.upvalue, expression.boxed);
 	}
 
 	@Override
@@ -293,29 +790,12 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 
 	@Override
 	public Object visitClassExpression(Expression.ClassExpression expression) {
-		Object superclass = null;
-		if (expression.clazz.superclass != null) {
-			superclass = evaluate(expression.clazz.superclass);
-			if (!(superclass instanceof LoxClass)) {
-				throw new RuntimeError("TypeError", expression.clazz.superclass.name,
-						"Superclass must be a class.");
-			}
-		}
-		Map<String, LoxFunction> methods = new HashMap<>();
-		for (Statement.FunctionStatement method : expression.clazz.methods) {
-			if (method.name.type != TokenType.IDENTIFIER) {
-				Lox.error(expression.clazz.name, "Methods must have defined names");
-				continue;
-			}
-			LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-			methods.put(method.name.lexeme, function);
-		}
-		return new LoxClass(expression.clazz.name, (LoxClass)superclass, methods);
+		return createClass(expression.clazz);
 	}
 
 	@Override
 	public Object visitFunctionExpression(Expression.FunctionExpression expression) {
-		return new LoxFunction(expression.function, environment, false);
+		return new LoxFunction(expression.function, capture(expression.function), false);
 	}
 
 	@Override
@@ -324,138 +804,215 @@ class Interpreter implements Expression.Visitor<Object>, Statement.Visitor<Void>
 	}
 
 	@Override
-	public Void visitIfStatement(Statement.IfStatement statement) {
-		boolean value = checkBooleanOperand(statement.keyword, evaluate(statement.condition));
+	public Completion visitIfStatement(Statement.IfStatement statement) {
+		boolean value = booleanOperand(statement.keyword, statement.condition);
 		if (value) {
-			execute(statement.thenBranch);
+			return execute(statement.thenBranch);
 		} else {
-			if (statement.elseBranch != null) execute(statement.elseBranch);
+			if (statement.elseBranch != null) return execute(statement.elseBranch);
 		}
-		return null;
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitReturnStatement(Statement.ReturnStatement statement) {
+	public Completion visitReturnStatement(Statement.ReturnStatement statement) {
 		Object value = null;
 		if (statement.value != null) value = evaluate(statement.value);
-		throw new Return(value);
+		returnValue = value;
+		return Completion.RETURN;
 	}
 
 	@Override
-	public Void visitWhileStatement(Statement.WhileStatement statement) {
-		try {
-			while (checkBooleanOperand(statement.keyword, evaluate(statement.condition))) {
-				execute(statement.body);
-			}
-		} catch (Break ignored) { }
-		return null;
+	public Completion visitWhileStatement(Statement.WhileStatement statement) {
+		while (booleanOperand(statement.keyword, statement.condition)) {
+			Completion completion = execute(statement.body);
+			if (completion == Completion.BREAK) break;
+			if (completion == Completion.RETURN) return completion;
+		}
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitBreakStatement(Statement.BreakStatement statement) {
-		throw new Break();
+	public Completion visitBreakStatement(Statement.BreakStatement statement) {
+		return Completion.BREAK;
 	}
 
 	@Override
-	public Void visitBlockStatement(Statement.BlockStatement statement) {
-		executeBlock(statement.statements, new Environment(environment));
-		return null;
+	public Completion visitBlockStatement(Statement.BlockStatement statement) {
+		//blocks in a function or another block keep their locals in that frame
+		if (statement.localCount == 0) {
+			environment.fillCells(statement.captured);
+			return executeBlock(statement.statements, environment);
+		}
+		Environment frame = blockFrame(statement.localCount);
+		frame.fillCells(statement.captured);
+		try {
+			return executeBlock(statement.statements, frame);
+		} finally {
+			frame.reset();
+		}
+	}
+
+	/**
+	 * @return The frame for a top level block with this many locals, which gets reset once the block is done.
+	 */
+	Environment blockFrame(int size) {
+		if (blockFrame == null || blockFrame.size() < size) {
+			blockFrame = new Environment(environment, size, null);
+		}
+		return blockFrame;
 	}
 
 	@Override
-	public Void visitClassStatement(Statement.ClassStatement statement) {
-		Object superclass = null;
+	public Completion visitClassStatement(Statement.ClassStatement statement) {
+		LoxClass clazz = createClass(statement);
+
+		//methods look the class up lazily, so it's safe to only define it once it's built
+		if (statement.name.type == TokenType.IDENTIFIER) declare(statement.name, statement.slot, statement.boxed, clazz);
+
+		return Completion.NORMAL;
+	}
+
+	private LoxClass createClass(Statement.ClassStatement statement) {
+		Object superclass = statement.superclass != null? evaluate(statement.superclass) : null;
+		return createClass(statement, superclass, null);
+	}
+
+	/**
+	 * Build a class, with its methods capturing what they need from where it's declared.
+	 * Classes with a superclass put it in a scope of its own first, which is where methods find `super`.
+	 * @param superclass What the superclass evaluated to, if the class has one.
+	 * @param bodies The compiled body of each method, or null for methods that walk their declaration.
+	 */
+	LoxClass createClass(Statement.ClassStatement statement, @Nullable Object superclass, @Nullable ClosureCompiler.StatementNode[] bodies) {
 		if (statement.superclass != null) {
-			superclass = evaluate(statement.superclass);
 			if (!(superclass instanceof LoxClass)) {
 				throw new RuntimeError("TypeError", statement.superclass.name,
 						"Superclass must be a class.");
 			}
 		}
-		if (statement.name.type == TokenType.IDENTIFIER) environment.define(statement.name.lexeme, null);
-
 		if (statement.superclass != null) {
-			environment = new Environment(environment);
-			environment.define("super", superclass);
+			environment = new Environment(environment, 1, SUPER_CAPTURED);
+			environment.define(Symbol.SUPER, superclass);
 		}
 
-		Map<String, LoxFunction> methods = new HashMap<>();
-		for (Statement.FunctionStatement method : statement.methods) {
+		Map<Symbol, LoxFunction> methods = new HashMap<>();
+		for (int i = 0; i < statement.methods.size(); i++) {
+			Statement.FunctionStatement method = statement.methods.get(i);
 			if (method.name.type != TokenType.IDENTIFIER) {
 				Lox.error(statement.name, "Methods must have defined names");
 				continue;
 			}
-			LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-			methods.put(method.name.lexeme, function);
+			LoxFunction function = new LoxFunction(method, capture(method), method.name.symbol == Symbol.INIT, bodies != null? bodies[i] : null);
+			methods.put(method.name.symbol, function);
 		}
 
-		LoxClass clazz = new LoxClass(statement.name, (LoxClass)superclass, methods);
-
 		if (superclass != null) {
 			environment = environment.enclosing;
 		}
 
-		if (statement.name.type == TokenType.IDENTIFIER) environment.assign(statement.name, clazz);
+		return new LoxClass(statement.name, (LoxClass)superclass, methods);
+	}
 
-		return null;
+	/**
+	 * Collect the cells a function captures, from the scope it's being made in.
+	 */
+	Cell[] capture(Statement.FunctionStatement function) {
+		int[] sources = function.upvalues;
+		if (sources == null) return NO_UPVALUES;
+		Cell[] cells = new Cell[sources.length / 2];
+		for (int i = 0; i < cells.length; i++) {
+			int depth = sources[i * 2];
+			int slot = sources[i * 2 + 1];
+			cells[i] = depth != -1? (Cell)environment.getAt(depth, slot) : upvalues[slot];
+		}
+		return cells;
 	}
 
 	@Override
-	public Void visitFunctionStatement(Statement.FunctionStatement statement) {
-		LoxFunction function = new LoxFunction(statement, environment, false);
-		if (statement.name != null) environment.define(statement.name.lexeme, function);
-		return null;
+	public Completion visitFunctionStatement(Statement.FunctionStatement statement) {
+		LoxFunction function = new LoxFunction(statement, capture(statement), false);
+		if (statement.name.type == TokenType.IDENTIFIER) declare(statement.name, statement.slot, statement.boxed, function);
+		return Completion.NORMAL;
 	}
 
 	@Override
-	public Void visitVarStatement(Statement.VarStatement statement) {
+	public Completion visitVarStatement(Statement.VarStatement statement) {
 		Object value = null;
 		if (statement.initializer != null) {
 			value = evaluate(statement.initializer);
 		}
 
-		environment.define(statement.name.lexeme, value);
-		return null;
+		declare(statement.name, statement.slot, statement.boxed, value);
+		return Completion.NORMAL;
 	}
 
-	@Override
-	public Void visitExpressionStatement(Statement.ExpressionStatement statement) {
-		evaluate(statement.expression);
-		return null;
+	/**
+	 * Define a variable in the slot the resolver gave it, or as a global if it didn't give it one.
+	 * @param boxed Whether the variable is captured, so its slot holds a cell instead of the value.
+	 */
+	private void declare(Token name, int slot, boolean boxed, @Nullable Object value) {
+		if (slot == -1) {
+			environment.define(name.symbol, value);
+		} else if (boxed) {
+			((Cell)environment.getAt(0, slot)).value = value;
+		} else {
+			environment.assignAt(0, slot, value);
+		}
 	}
 
-	void resolve(Expression expression, int depth) {
-		locals.put(expression, depth);
+	@Override
+	public Completion visitExpressionStatement(Statement.ExpressionStatement statement) {
+		evaluate(statement.expression);
+		return Completion.NORMAL;
 	}
 
-	private Object lookupVariable(Token name, Expression expression) {
-		Integer distance = locals.get(expression); //boxed for nullability
-		if (distance != null) {
-			return environment.getAt(distance, name.lexeme);
+	/**
+	 * @param depth How many scopes up the resolver found the variable, or -1 if it isn't in this function.
+	 * @param upvalue Which of the function's upvalues the variable is, or -1 if it's global.
+	 * @param boxed Whether the variable is captured, so its slot holds a cell instead of the value.
+	 */
+	private Object lookupVariable(Token name, int depth, int slot, int upvalue, boolean boxed) {
+		if (depth != -1) {
+			Object value = environment.getAt(depth, slot);
+			return boxed? ((Cell)value).value : value;
+		} else if (upvalue != -1) {
+			return upvalues[upvalue].value;
 		} else {
 			return globals.get(name);
 		}
 	}
 
-	private double checkDoubleOperand(Token operator, Object operand) {
+	static double checkDoubleOperand(Token operator, Object operand) {
 		if (operand instanceof Double) return (double) operand;
 		throw new RuntimeError("TypeError", operator, "Operand for '" + operator.lexeme
 				+ "' must be a number, but was '" + stringify(operand) + "' instead.");
 	}
 
-	private boolean checkBooleanOperand(Token operator, Object operand) {
+	/**
+	 * Evaluate an operand that has to be a boolean, erroring out if it isn't.
+	 */
+	private boolean booleanOperand(Token operator, Expression operand) {
+		try {
+			return evaluateBoolean(operand);
+		} catch (NotPrimitive e) {
+			return checkBooleanOperand(operator, e.value);
+		}
+	}
+
+	static boolean checkBooleanOperand(Token operator, Object operand) {
 		if (operand instanceof Boolean) return (boolean) operand;
 		throw new RuntimeError("TypeError", operator, "Operand for '" + operator.lexeme
 				+ "' must be a boolean, but was '" + stringify(operand) + " instead.");
 	}
 
-	private boolean isEqual(Object left, Object right) {
+	static boolean isEqual(Object left, Object right) {
 		if (left == null && right == null) return true;
 		if (left == null) return false;
 		return left.equals(right);
 	}
 
-	private String stringify(Object object) {
+	static String stringify(Object object) {
 		if (object == null) return "nil";
 
 		// Hack. Work around Java adding ".0" to integer-valued doubles.
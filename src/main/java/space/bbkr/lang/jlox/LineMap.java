@@ -0,0 +1,82 @@
+package space.bbkr.lang.jlox;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.annotation.Nullable;
+
+/**
+ * Where each line of a script starts, so tokens only need to remember an offset into the source.
+ * The {@link Scanner} records a line start every time it passes a newline, and line and column
+ * get worked out from that only when something needs them, like reporting an error.
+ */
+final class LineMap {
+	//for tokens that don't come from a script, which all sit on the first line with their offset as the column
+	static final LineMap NONE = new LineMap(null);
+
+	//where the script came from, to count characters instead of bytes for columns
+	@Nullable
+	private final ByteBuffer source;
+	private int[] starts = new int[64];
+	private int size = 1;
+
+	LineMap(@Nullable ByteBuffer source) {
+		this.source = source;
+	}
+
+	/**
+	 * Bring back the lines of a script that was already scanned once.
+	 * @param starts Where each line starts, as {@link #starts()} gave them.
+	 */
+	LineMap(ByteBuffer source, int[] starts) {
+		this.source = source;
+		this.starts = starts;
+		this.size = starts.length;
+	}
+
+	int[] starts() {
+		return Arrays.copyOf(starts, size);
+	}
+
+	/**
+	 * @param start The offset just past a newline.
+	 */
+	void newLine(int start) {
+		if (size == starts.length) starts = Arrays.copyOf(starts, Math.max(size * 2, 64));
+		starts[size++] = start;
+	}
+
+	/**
+	 * @return The line an offset is on, starting from 1.
+	 */
+	int line(int offset) {
+		//find the last line that starts at or before the offset
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if (starts[middle] <= offset) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low + 1;
+	}
+
+	/**
+	 * @return How many characters into its line an offset is.
+	 */
+	int column(int offset) {
+		int start = starts[line(offset) - 1];
+		if (source == null) return offset - start;
+		//the rest of a multi-byte character doesn't take up another column
+		int column = 0;
+		//an offset past the end shouldn't ever happen, but reporting an error can't be what crashes
+		int end = Math.min(offset, source.limit());
+		for (int i = start; i < end; i++) {
+			if ((source.get(i) & 0xC0) != 0x80) column++;
+		}
+		return column;
+	}
+}
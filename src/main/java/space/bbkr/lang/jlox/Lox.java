@@ -3,34 +3,81 @@ package space.bbkr.lang.jlox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Collections;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
+import space.bbkr.lang.jlox.vm.VM;
+
 /**
  * The main class! Probably gonna get changed around when I convert this to a lib instead of standalone.
  */
 public class Lox {
-	private static final Interpreter interpreter = new Interpreter();
+	private static Interpreter interpreter;
+	//kept for the whole session, so REPL lines know about the globals and vals from the lines before them
+	private static final Resolver resolver = new Resolver();
+	@Nullable
+	private static VM vm = null; //only created when asked for with --vm
+	@Nullable
+	private static ScriptCache cache = new ScriptCache(ScriptCache.defaultDirectory()); //turned off with --no-cache
+	private static boolean dumpAst = false; //print the tree that's about to run, with --dump-ast
+	private static boolean closures = false; //compile the tree into closures before running it, with --closures
 	private static boolean hadError = false;
 	private static boolean hadRuntimeError = false;
 
 	public static void main(String[] args) throws IOException {
-		if (args.length > 1) {
-			System.out.println("Usage: jlox [script]");
-			System.exit(64);
-		} else if (args.length == 1) {
-			runFile(args[0]);
+		String script = null;
+		boolean switchDispatch = false;
+		boolean checked = false;
+		for (String arg : args) {
+			if (arg.equals("--vm")) {
+				vm = new VM();
+			} else if (arg.equals("--no-cache")) {
+				cache = null;
+			} else if (arg.equals("--switch")) {
+				switchDispatch = true;
+			} else if (arg.equals("--checked")) {
+				checked = true;
+			} else if (arg.equals("--closures")) {
+				closures = true;
+			} else if (arg.equals("--dump-ast")) {
+				dumpAst = true;
+			} else if (script == null && !arg.startsWith("--")) {
+				script = arg;
+			} else {
+				System.out.println("Usage: jlox [--vm] [--no-cache] [--switch] [--checked] [--closures] [--dump-ast] [script]");
+				System.exit(64);
+			}
+		}
+		interpreter = new Interpreter(switchDispatch, checked);
+
+		if (script != null) {
+			runFile(script);
 		} else {
 			runPrompt();
 		}
 	}
 
 	private static void runFile(String path) throws IOException {
-		byte[] bytes = Files.readAllBytes(Paths.get(path));
-		run(new String(bytes, Charset.defaultCharset()), false);
+		//map the file instead of reading it in, so the scanner reads it straight from the page cache.
+		//the mapping stays valid after the channel closes
+		ByteBuffer source;
+		try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+			source = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		//a script that hasn't changed since it was last run doesn't need compiling again
+		List<Statement> statements = cache != null? cache.load(source) : null;
+		if (statements == null) {
+			Scanner scanner = new Scanner(source);
+			statements = compile(new Parser(scanner).parse());
+			if (statements != null && cache != null) cache.store(source, scanner.lines(), statements);
+		}
+		if (statements != null) execute(statements);
 		if (hadError) System.exit(65);
 		if (hadRuntimeError) System.exit(70);
 	}
@@ -47,7 +94,7 @@ public class Lox {
 			if (read.equals("::exit")) {
 				running = false;
 			} else {
-				run(reader.readLine(), true);
+				run(new Scanner(reader.readLine()));
 				hadError = false;
 			}
 		}
@@ -56,38 +103,56 @@ public class Lox {
 		System.exit(0);
 	}
 
-	private static void run(String source, boolean repl) {
-		Scanner scanner = new Scanner(source);
-		List<Token> tokens = scanner.scanTokens();
+	private static void run(Scanner scanner) {
+		//the REPL needs to look at every token first, to see if it's a statement or an expression
+		TokenBuffer tokens = scanner.scanBuffer();
 		Parser parser = new Parser(tokens);
-		if (repl && !hasType(tokens, TokenType.SEMICOLON)) { //no semicolon, so they probably want an expression
-			Expression expression = parser.parseExpression();
+		if (!tokens.contains(TokenType.SEMICOLON)) { //no semicolon, so they probably want an expression
+			Expression parsed = parser.parseExpression();
 			if (hadError) return;
 
-			List<Statement> statements = Collections.singletonList(
+			List<Statement> statements = compile(Collections.singletonList(
 					new Statement.ExpressionStatement(
 							new Expression.CallExpression(
-									new Expression.VariableExpression(new Token(TokenType.IDENTIFIER,"print", null, 1, 0)),
-									new Token(TokenType.LEFT_PAREN, "> ", null, 1, 6),
-									Collections.singletonList(expression))
+									new Expression.VariableExpression(new Token(TokenType.IDENTIFIER,"print", null, LineMap.NONE, 0)),
+									new Token(TokenType.LEFT_PAREN, "> ", null, LineMap.NONE, 6),
+									Collections.singletonList(parsed))
 					)
-			);
+			));
+			if (statements != null) execute(statements);
+		} else {
+			List<Statement> statements = compile(parser.parse());
+			if (statements != null) execute(statements);
+		}
+	}
 
-			Resolver resolver = new Resolver(interpreter);
-			resolver.resolve(statements);
+	/**
+	 * Resolve, optimize and specialize parsed statements.
+	 * @return The statements ready to run, or null if there were errors.
+	 */
+	@Nullable
+	private static List<Statement> compile(List<Statement> statements) {
+		if (hadError) return null;
 
-			if (hadError) return;
+		resolver.resolve(statements);
 
-			interpreter.interpret(statements);
-		} else {
-			List<Statement> statements = parser.parse();
-			if (hadError) return;
-
-			Resolver resolver = new Resolver(interpreter);
-			resolver.resolve(statements);
+		if (hadError) return null;
 
-			if (hadError) return;
+		return new Specializer().rewrite(new ConstantFolder().rewrite(statements));
+	}
 
+	private static void execute(List<Statement> statements) {
+		if (dumpAst) {
+			AstPrinter printer = new AstPrinter();
+			for (Statement statement : statements) {
+				System.out.println(printer.print(statement));
+			}
+		}
+		if (vm != null) {
+			vm.interpret(statements);
+		} else if (closures) {
+			interpreter.interpret(new ClosureCompiler().compile(statements));
+		} else {
 			interpreter.interpret(statements);
 		}
 	}
@@ -96,16 +161,16 @@ public class Lox {
 		report(line, column, "", message);
 	}
 
-	static void error(Token token, String message) {
+	public static void error(Token token, String message) {
 		if (token.type == TokenType.EOF) {
-			report(token.line, token.column, "at end", message);
+			report(token.line(), token.column(), "at end", message);
 		} else {
-			report(token.line, token.column, "at '" + token.lexeme + "'", message);
+			report(token.line(), token.column(), "at '" + token.lexeme + "'", message);
 		}
 	}
 
-	static void runtimeError(RuntimeError error) {
-		System.err.println(error.name + ": " + error.getMessage() + "\n[line " + error.token.line + "]");
+	public static void runtimeError(RuntimeError error) {
+		System.err.println(error.name + ": " + error.getMessage() + "\n[line " + error.token.line() + "]");
 		hadRuntimeError = true;
 	}
 
@@ -114,13 +179,4 @@ public class Lox {
 		hadError = true;
 	}
 
-	private static boolean hasType(List<Token> tokens, TokenType type) {
-		for (Token token : tokens) {
-			if (token.type == type) {
-				return true;
-			}
-		}
-		return false;
-	}
-
 }
@@ -25,10 +25,33 @@ interface LoxCallable {
 	LoxType getReturnType();
 
 	/**
-	 * Call!
+	 * Call! This is the variadic path, used for calls with more arguments than the fixed-arity entry points take.
 	 * @param interpreter The interpreter running the callable.
 	 * @param arguments The passed arguments.
 	 * @return Whatever gets returned, or null if nothing.
 	 */
-	Object call(Interpreter interpreter, List<Object> arguments);
+	Object call(Interpreter interpreter, Object[] arguments);
+
+	//fixed-arity entry points, so the common calls don't need an argument array.
+	//callables that care about speed override the ones matching their arity
+
+	default Object call0(Interpreter interpreter) {
+		return call(interpreter, new Object[0]);
+	}
+
+	default Object call1(Interpreter interpreter, Object a) {
+		return call(interpreter, new Object[]{a});
+	}
+
+	default Object call2(Interpreter interpreter, Object a, Object b) {
+		return call(interpreter, new Object[]{a, b});
+	}
+
+	default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		return call(interpreter, new Object[]{a, b, c});
+	}
+
+	default Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+		return call(interpreter, new Object[]{a, b, c, d});
+	}
 }
@@ -1,5 +1,6 @@
 package space.bbkr.lang.jlox;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -7,22 +8,31 @@ import javax.annotation.Nullable;
 
 /**
  * A class in Lox! Stores the superclass and methods, along with the way to construct new instances.
+ * Inherited methods are copied down into the method table when the class is made, so finding one is a single lookup.
  */
 class LoxClass implements LoxCallable {
 	final Token name;
 	@Nullable
 	final LoxClass superclass;
-	final Map<String, LoxFunction> methods;
+	final Map<Symbol, LoxFunction> methods;
+	@Nullable
+	private final LoxFunction initializer;
+	//instances start out with this shape, so it's shared by every instance of this class
+	final Shape rootShape = new Shape();
+	//how many fields instances have ended up with so far, so new instances can be made the right size
+	int expectedFields = 0;
 
-	LoxClass(Token name, @Nullable LoxClass superclass, Map<String, LoxFunction> methods) {
+	LoxClass(Token name, @Nullable LoxClass superclass, Map<Symbol, LoxFunction> methods) {
 		this.name = name;
 		this.superclass = superclass;
-		this.methods = methods;
+		this.methods = new HashMap<>();
+		if (superclass != null) this.methods.putAll(superclass.methods);
+		this.methods.putAll(methods);
+		this.initializer = this.methods.get(Symbol.INIT);
 	}
 
 	@Override
 	public int arity() {
-		LoxFunction initializer = findMethod("init");
 		if (initializer == null) return 0;
 		return initializer.arity();
 	}
@@ -38,8 +48,44 @@ class LoxClass implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke(interpreter, instance, arguments);
+		return instance;
+	}
+
+	@Override
+	public Object call0(Interpreter interpreter) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke0(interpreter, instance);
+		return instance;
+	}
+
+	@Override
+	public Object call1(Interpreter interpreter, Object a) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke1(interpreter, instance, a);
+		return instance;
+	}
+
+	@Override
+	public Object call2(Interpreter interpreter, Object a, Object b) {
 		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke2(interpreter, instance, a, b);
+		return instance;
+	}
+
+	@Override
+	public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke3(interpreter, instance, a, b, c);
+		return instance;
+	}
+
+	@Override
+	public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+		LoxInstance instance = new LoxInstance(this);
+		if (initializer != null) initializer.invoke4(interpreter, instance, a, b, c, d);
 		return instance;
 	}
 
@@ -52,16 +98,9 @@ class LoxClass implements LoxCallable {
 		return false;
 	}
 
-	LoxFunction findMethod(String name) {
-		if (methods.containsKey(name)) {
-			return methods.get(name);
-		}
-
-		if (superclass != null) {
-			return superclass.findMethod(name);
-		}
-
-		return null;
+	@Nullable
+	LoxFunction findMethod(Symbol name) {
+		return methods.get(name);
 	}
 
 	@Override
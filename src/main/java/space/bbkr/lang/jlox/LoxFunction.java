@@ -1,20 +1,45 @@
 package space.bbkr.lang.jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 /**
- * A function! Stores its signature and code, the local env, and whether it initializes a class.
+ * A function! Stores its signature and code, the variables it captured, and whether it initializes a class.
+ * Methods take their instance in slot zero of their frame. Method calls pass it in through the invoke methods,
+ * and a method pulled off an instance as a value remembers it as its receiver.
+ * Nothing can hold onto a frame once its call returns, since closures only ever take the cells they need,
+ * so finished frames get kept and reused instead of making a new one for every call.
+ * Functions made by compiled code run their compiled body instead of walking the declaration's.
  */
 class LoxFunction implements LoxCallable {
-	private final Statement.FunctionStatement declaration;
-	private final Environment closure;
+	final Statement.FunctionStatement declaration;
+	private final Cell[] upvalues;
 	private final Boolean isInitializer;
+	@Nullable
+	private final ClosureCompiler.StatementNode body;
+	@Nullable
+	final LoxInstance receiver;
+	//frames from calls that are done, ready for the next one. there's more than one when the function recurses
+	private Environment[] frames = new Environment[1];
+	private int freeFrames = 0;
+
+	LoxFunction(Statement.FunctionStatement declaration, Cell[] upvalues, boolean isInitializer) {
+		this(declaration, upvalues, isInitializer, null, null);
+	}
+
+	LoxFunction(Statement.FunctionStatement declaration, Cell[] upvalues, boolean isInitializer, @Nullable ClosureCompiler.StatementNode body) {
+		this(declaration, upvalues, isInitializer, body, null);
+	}
 
-	LoxFunction(Statement.FunctionStatement declaration, Environment closure, boolean isInitializer) {
+	private LoxFunction(Statement.FunctionStatement declaration, Cell[] upvalues, boolean isInitializer, @Nullable ClosureCompiler.StatementNode body, @Nullable LoxInstance receiver) {
 		this.declaration = declaration;
-		this.closure = closure;
+		this.upvalues = upvalues;
 		this.isInitializer = isInitializer;
+		this.body = body;
+		this.receiver = receiver;
 	}
 
 	@Override
@@ -37,27 +62,110 @@ class LoxFunction implements LoxCallable {
 	}
 
 	@Override
-	public Object call(Interpreter interpreter, List<Object> arguments) {
-		Environment environment = new Environment(closure);
-		for (int i = 0; i < declaration.params.size(); i++) {
-			environment.define(declaration.params.get(i).name.lexeme, arguments.get(i));
-		}
+	public Object call(Interpreter interpreter, Object[] arguments) {
+		return invoke(interpreter, receiver, arguments);
+	}
+
+	@Override
+	public Object call0(Interpreter interpreter) {
+		return invoke0(interpreter, receiver);
+	}
 
-		try {
-			interpreter.executeBlock(declaration.body, environment);
-		} catch (Return ret) {
-			if (isInitializer) return closure.getAt(0, "this");
-			return ret.value;
+	@Override
+	public Object call1(Interpreter interpreter, Object a) {
+		return invoke1(interpreter, receiver, a);
+	}
+
+	@Override
+	public Object call2(Interpreter interpreter, Object a, Object b) {
+		return invoke2(interpreter, receiver, a, b);
+	}
+
+	@Override
+	public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+		return invoke3(interpreter, receiver, a, b, c);
+	}
+
+	@Override
+	public Object call4(Interpreter interpreter, Object a, Object b, Object c, Object d) {
+		return invoke4(interpreter, receiver, a, b, c, d);
+	}
+
+	/**
+	 * Call as a method of the instance, without making a bound copy of the function first.
+	 * @param instance The instance `this` refers to, or null if this isn't a method.
+	 */
+	Object invoke(Interpreter interpreter, @Nullable LoxInstance instance, Object[] arguments) {
+		Environment environment = frame(instance);
+		for (int i = 0; i < arguments.length; i++) {
+			environment.define(param(i), arguments[i]);
 		}
+		return run(interpreter, environment, instance);
+	}
+
+	Object invoke0(Interpreter interpreter, @Nullable LoxInstance instance) {
+		return run(interpreter, frame(instance), instance);
+	}
+
+	Object invoke1(Interpreter interpreter, @Nullable LoxInstance instance, Object a) {
+		Environment environment = frame(instance);
+		environment.define(param(0), a);
+		return run(interpreter, environment, instance);
+	}
+
+	Object invoke2(Interpreter interpreter, @Nullable LoxInstance instance, Object a, Object b) {
+		Environment environment = frame(instance);
+		environment.define(param(0), a);
+		environment.define(param(1), b);
+		return run(interpreter, environment, instance);
+	}
+
+	Object invoke3(Interpreter interpreter, @Nullable LoxInstance instance, Object a, Object b, Object c) {
+		Environment environment = frame(instance);
+		environment.define(param(0), a);
+		environment.define(param(1), b);
+		environment.define(param(2), c);
+		return run(interpreter, environment, instance);
+	}
+
+	Object invoke4(Interpreter interpreter, @Nullable LoxInstance instance, Object a, Object b, Object c, Object d) {
+		Environment environment = frame(instance);
+		environment.define(param(0), a);
+		environment.define(param(1), b);
+		environment.define(param(2), c);
+		environment.define(param(3), d);
+		return run(interpreter, environment, instance);
+	}
+
+	private Environment frame(@Nullable LoxInstance instance) {
+		Environment environment = freeFrames > 0? frames[--freeFrames] : new Environment(null, declaration.localCount, declaration.captured);
+		if (instance != null) environment.define(Symbol.THIS, instance);
+		return environment;
+	}
+
+	private Symbol param(int index) {
+		return declaration.params.get(index).name.symbol;
+	}
+
+	/**
+	 * Run the body in a frame that already has the arguments in it.
+	 * @param instance What `this` is, which initializers always return.
+	 */
+	private Object run(Interpreter interpreter, Environment environment, @Nullable LoxInstance instance) {
+		Completion completion = body != null? interpreter.executeFunction(body, environment, upvalues)
+				: interpreter.executeFunction(declaration.body, environment, upvalues);
+		Object value = completion == Completion.RETURN? interpreter.takeReturnValue() : null;
+
+		environment.reset();
+		if (freeFrames == frames.length) frames = Arrays.copyOf(frames, freeFrames * 2);
+		frames[freeFrames++] = environment;
 
-		if (isInitializer) return closure.getAt(0, "this");
-		return null;
+		if (isInitializer) return instance;
+		return value;
 	}
 
 	public LoxFunction bind(LoxInstance instance) {
-		Environment environment = new Environment(closure);
-		environment.define("this", instance);
-		return new LoxFunction(declaration, environment, isInitializer);
+		return new LoxFunction(declaration, upvalues, isInitializer, body, instance);
 	}
 
 	@Override
@@ -1,25 +1,28 @@
 package space.bbkr.lang.jlox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
- * An instance of a {@link LoxClass}. Stores the fields/properties.
+ * An instance of a {@link LoxClass}. Stores the fields/properties, laid out as described by its {@link Shape}.
  */
 class LoxInstance {
-	private LoxClass clazz;
-	private final Map<String, Object> fields = new HashMap<>();
+	final LoxClass clazz;
+	Shape shape;
+	private Object[] fields;
 
 	LoxInstance(LoxClass clazz) {
 		this.clazz = clazz;
+		this.shape = clazz.rootShape;
+		this.fields = new Object[clazz.expectedFields];
 	}
 
 	Object get(Token name) {
-		if (fields.containsKey(name.lexeme)) {
-			return fields.get(name.lexeme);
+		int index = shape.indexOf(name.symbol);
+		if (index != -1) {
+			return fields[index];
 		}
 
-		LoxFunction method = clazz.findMethod(name.lexeme);
+		LoxFunction method = clazz.findMethod(name.symbol);
 		if (method != null) return method.bind(this);
 
 		throw new RuntimeError("DefError", name, "Undefined property '" + name.lexeme + "'.");
@@ -27,7 +30,33 @@ class LoxInstance {
 
 	void set(Token name, Object value) {
 		//TODO: Fail if this property doesn't exist? Do we want to let outsiders define new properties?
-		fields.put(name.lexeme, value);
+		int index = shape.indexOf(name.symbol);
+		if (index != -1) {
+			fields[index] = value;
+		} else {
+			addField(shape.with(name.symbol), value);
+		}
+	}
+
+	Object getField(int index) {
+		return fields[index];
+	}
+
+	void setField(int index, Object value) {
+		fields[index] = value;
+	}
+
+	/**
+	 * Move to a shape with one more field than the current one, and give that field its value.
+	 */
+	void addField(Shape next, Object value) {
+		if (fields.length < next.size) {
+			//later instances start out big enough for what this one ended up with
+			if (clazz.expectedFields < next.size) clazz.expectedFields = next.size;
+			fields = Arrays.copyOf(fields, Math.max(clazz.expectedFields, fields.length * 2));
+		}
+		fields[next.size - 1] = value;
+		shape = next;
 	}
 
 	@Override
@@ -0,0 +1,19 @@
+package space.bbkr.lang.jlox;
+
+import javax.annotation.Nullable;
+
+/**
+ * Thrown out of {@link Interpreter#evaluateDouble} or {@link Interpreter#evaluateBoolean} when a value the resolver
+ * proved was a number or boolean turns out not to be one at runtime (return types aren't checked yet).
+ * It carries the value that was actually produced, so whoever catches it can finish the operation the slow way
+ * without evaluating anything twice. No stacktrace is made, since this is expected control flow and not a bug.
+ */
+class NotPrimitive extends RuntimeException {
+	@Nullable
+	final Object value;
+
+	NotPrimitive(@Nullable Object value) {
+		super(null, null, false, false);
+		this.value = value;
+	}
+}
@@ -7,16 +7,23 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * Parser to convert the token list from {@link Scanner} into A list of runnable statements.
+ * Parser to convert the tokens from {@link Scanner} into A list of runnable statements.
+ * Tokens are pulled through a {@link TokenSource} as they're needed, so the scanner runs alongside the parser.
  */
 public class Parser {
 	private static class ParseError extends RuntimeException {}
 
-	private final List<Token> tokens;
-	private int current = 0;
+	private final TokenSource tokens;
 
-	Parser(List<Token> tokens) {
-		this.tokens = tokens;
+	Parser(Scanner scanner) {
+		this.tokens = new TokenSource(scanner::nextToken);
+	}
+
+	/**
+	 * Parse tokens that were already scanned, like when the REPL needs to look at them first.
+	 */
+	Parser(TokenBuffer tokens) {
+		this.tokens = new TokenSource(tokens.reader());
 	}
 
 	List<Statement> parse() {
@@ -35,7 +42,7 @@ public class Parser {
 	 * @return The next token in the script, incrementing the counter.
 	 */
 	private Token advance() {
-		if (!isAtEnd()) current++;
+		if (!isAtEnd()) tokens.advance();
 		return previous();
 	}
 
@@ -43,14 +50,14 @@ public class Parser {
 	 * @return The next token in the script, not incrementing the counter.
 	 */
 	private Token peek() {
-		return tokens.get(current);
+		return tokens.peek();
 	}
 
 	/**
 	 * @return The previous token in the script.
 	 */
 	private Token previous() {
-		return tokens.get(current - 1);
+		return tokens.previous();
 	}
 
 	/**
@@ -89,6 +96,7 @@ public class Parser {
 			switch (peek().type) {
 				case CLASS:
 				case FUN:
+				case VAL:
 				case VAR:
 				case FOR:
 				case IF:
@@ -111,15 +119,13 @@ public class Parser {
 
 	/**
 	 * Increments.
-	 * @param types The possible tokens to check for.
-	 * @return Whether a token of any passed type was found.
+	 * @param type The token to check for.
+	 * @return Whether a token of that type was found.
 	 */
-	private boolean match(TokenType... types) {
-		for (TokenType type : types) {
-			if (check(type)) {
-				advance();
-				return true;
-			}
+	private boolean match(TokenType type) {
+		if (check(type)) {
+			advance();
+			return true;
 		}
 		return false;
 	}
@@ -203,7 +209,7 @@ public class Parser {
 		if (match(SEMICOLON)) {
 			initializer = null;
 		} else if (match(VAR)) {
-			initializer = varDeclaration();
+			initializer = varDeclaration(false);
 		} else {
 			initializer = expressionStatement();
 		}
@@ -268,7 +274,8 @@ public class Parser {
 		try {
 			if (match(CLASS)) return classDeclaration();
 			if (match(FUN)) return function("function");
-			if (match(VAR)) return varDeclaration();
+			if (match(VAL)) return varDeclaration(true);
+			if (match(VAR)) return varDeclaration(false);
 
 			return statement();
 		} catch (ParseError error) {
@@ -335,16 +342,22 @@ public class Parser {
 		return new Statement.FunctionStatement(name, parameters, body, returnType);
 	}
 
-	private Statement varDeclaration() {
+	/**
+	 * @param constant Whether this is a val, which has to be given its value right away since it can't be assigned later.
+	 */
+	private Statement varDeclaration(boolean constant) {
 		Token name = consume(IDENTIFIER, "Expect variable name.");
 		Expression initializer = null;
 
-		if (match(EQUAL)) {
+		if (constant) {
+			consume(EQUAL, "Expect '=' after constant name.");
+			initializer = expression();
+		} else if (match(EQUAL)) {
 			initializer = expression();
 		}
 
 		consume(SEMICOLON, "Expect ';' after variable declaration");
-		return new Statement.VarStatement(name, initializer);
+		return new Statement.VarStatement(name, initializer, constant);
 	}
 
 	private Statement expressionStatement() {
@@ -353,151 +366,171 @@ public class Parser {
 		return new Statement.ExpressionStatement(value);
 	}
 
-	private Expression expression() {
-		return assignment();
-	}
-
-	private Expression assignment() {
-		Expression expression = ternary();
-
-		if (match(EQUAL)) {
-			Token equals = previous();
-			Expression value = assignment();
-
-			if (expression instanceof Expression.VariableExpression) {
-				Token name = ((Expression.VariableExpression) expression).name;
-				return new Expression.AssignExpression(name, value);
-			} else if (expression instanceof Expression.GetExpression) {
-				Expression.GetExpression get = (Expression.GetExpression)expression;
-				return new Expression.SetExpression(get.object, get.name, value);
-			}
+	//expressions are parsed by precedence climbing, looking up what each token does in tables indexed by its type.
+	//a higher precedence binds tighter, and no precedence means the token can't continue an expression
+	private static final int NO_PRECEDENCE = 0;
+	private static final int ASSIGNMENT = 1;
+	private static final int TERNARY = 2;
+	private static final int OR_PRECEDENCE = 3;
+	private static final int AND_PRECEDENCE = 4;
+	private static final int EQUALITY = 5;
+	private static final int COMPARISON = 6;
+	//TODO: bitwise goes here
+	private static final int ADDITION = 7;
+	private static final int MULTIPLICATION = 8;
+	private static final int UNARY = 9;
+	private static final int CALL = 10;
 
-			throw error(equals, "Invalid assignment target.");
-		}
-		return expression;
+	/**
+	 * Parses an expression that starts with a token.
+	 */
+	private interface PrefixRule {
+		Expression parse(Parser parser, Token token);
 	}
 
-	private Expression ternary() {
-		Expression expression = or();
-
-		while (match(QUESTION)) {
-			Token question = previous();
-			Expression left = or();
-			consume(COLON, "Expect ':' after ternary");
-			Expression right = or();
-			expression = new Expression.TernaryExpression(question, expression, left, right);
-		}
-
-		return expression;
+	/**
+	 * Parses the rest of an expression that continues with a token after its left-hand side.
+	 */
+	private interface InfixRule {
+		Expression parse(Parser parser, Expression left, Token token);
 	}
 
-	private Expression or() {
-		Expression expression = and();
-
-		while (match(OR)) {
-			Token operator = previous();
-			Expression right = and();
-			expression = new Expression.LogicalExpression(expression, operator, right);
-		}
+	private static final PrefixRule[] PREFIX = new PrefixRule[TokenType.values().length];
+	private static final InfixRule[] INFIX = new InfixRule[TokenType.values().length];
+	private static final int[] PRECEDENCE = new int[TokenType.values().length];
 
-		return expression;
+	private static void prefix(TokenType type, PrefixRule rule) {
+		PREFIX[type.ordinal()] = rule;
 	}
 
-	private Expression and() {
-		Expression expression = equality();
-
-		while (match(AND)) {
-			Token operator = previous();
-			Expression right = equality();
-			expression = new Expression.LogicalExpression(expression, operator, right);
-		}
-
-		return expression;
+	private static void infix(TokenType type, int precedence, InfixRule rule) {
+		INFIX[type.ordinal()] = rule;
+		PRECEDENCE[type.ordinal()] = precedence;
 	}
 
-	private Expression equality() {
-		Expression expression = comparison();
-
-		while (match(BANG_EQUAL, EQUAL_EQUAL)) {
-			Token operator = previous();
-			Expression right = comparison();
-			expression = new Expression.BinaryExpression(expression, operator, right);
-		}
+	static {
+		prefix(FALSE, (parser, token) -> new Expression.LiteralExpression(LoxType.BOOLEAN, false));
+		prefix(TRUE, (parser, token) -> new Expression.LiteralExpression(LoxType.BOOLEAN, true));
+		prefix(NIL, (parser, token) -> new Expression.LiteralExpression(LoxType.NONE, null));
+		prefix(NUMBER, (parser, token) -> new Expression.LiteralExpression(LoxType.NUMBER, token.literal));
+		prefix(STRING, (parser, token) -> new Expression.LiteralExpression(LoxType.STRING, token.literal));
+		prefix(IDENTIFIER, (parser, token) -> new Expression.VariableExpression(token));
+		prefix(THIS, (parser, token) -> new Expression.ThisExpression(token));
+		prefix(SUPER, Parser::superExpression);
+		prefix(CLASS, (parser, token) -> new Expression.ClassExpression(parser.classDeclaration()));
+		prefix(FUN, (parser, token) -> new Expression.FunctionExpression(parser.function("function")));
+		prefix(LEFT_PAREN, Parser::grouping);
+		prefix(BANG, Parser::unary);
+		prefix(MINUS, Parser::unary);
+		//+, /, and * must have left-hand operands!
+		prefix(PLUS, Parser::missingOperand);
+		prefix(SLASH, Parser::missingOperand);
+		prefix(STAR, Parser::missingOperand);
+
+		infix(EQUAL, ASSIGNMENT, Parser::assignment);
+		infix(QUESTION, TERNARY, Parser::ternary);
+		infix(OR, OR_PRECEDENCE, Parser::logical);
+		infix(AND, AND_PRECEDENCE, Parser::logical);
+		infix(BANG_EQUAL, EQUALITY, Parser::binary);
+		infix(EQUAL_EQUAL, EQUALITY, Parser::binary);
+		infix(GREATER, COMPARISON, Parser::binary);
+		infix(GREATER_EQUAL, COMPARISON, Parser::binary);
+		infix(LESS, COMPARISON, Parser::binary);
+		infix(LESS_EQUAL, COMPARISON, Parser::binary);
+		infix(MINUS, ADDITION, Parser::binary);
+		infix(PLUS, ADDITION, Parser::binary);
+		infix(SLASH, MULTIPLICATION, Parser::binary);
+		infix(STAR, MULTIPLICATION, Parser::binary);
+		infix(LEFT_PAREN, CALL, Parser::finishCall);
+		infix(DOT, CALL, Parser::property);
+	}
 
-		return expression;
+	private Expression expression() {
+		return expression(ASSIGNMENT);
 	}
 
-	private Expression comparison() {
-		Expression expression = addition();
+	/**
+	 * @param precedence The loosest operator that can be part of the expression.
+	 * @return An expression made of everything that binds at least that tightly.
+	 */
+	private Expression expression(int precedence) {
+		Token token = peek();
+		PrefixRule prefix = PREFIX[token.type.ordinal()];
+		if (prefix == null) throw error(token, "Expect expression.");
+		advance();
+		Expression expression = prefix.parse(this, token);
 
-		while (match(GREATER, GREATER_EQUAL, LESS, LESS_EQUAL)) {
-			Token operator = previous();
-			Expression right = addition();
-			expression = new Expression.BinaryExpression(expression, operator, right);
+		while (PRECEDENCE[peek().type.ordinal()] >= precedence) {
+			Token operator = advance();
+			expression = INFIX[operator.type.ordinal()].parse(this, expression, operator);
 		}
 
 		return expression;
 	}
 
-	//TODO: bitwise goes here
+	//prefix rules
+	private Expression superExpression(Token keyword) {
+		consume(DOT, "Expect '.' after 'super'.");
+		Token method = consume(IDENTIFIER, "Expect superclass method name.");
+		//the method gets called on `this`, which has to be found like any other use of it
+		Token receiver = new Token(THIS, Scanner.lexeme(THIS), null, keyword.lines, keyword.offset);
+		return new Expression.SuperExpression(keyword, method, new Expression.ThisExpression(receiver));
+	}
 
-	private Expression addition() {
-		Expression expression = multiplication();
+	private Expression grouping(Token paren) {
+		Expression expression = expression();
+		consume(RIGHT_PAREN, "Expect ')' after expression.");
+		return new Expression.GroupingExpression(expression);
+	}
 
-		while (match(MINUS, PLUS)) {
-			Token operator = previous();
-			Expression right = multiplication();
-			expression = new Expression.BinaryExpression(expression, operator, right);
-		}
+	private Expression unary(Token operator) {
+		Expression right = expression(UNARY);
+		return new Expression.UnaryExpression(operator, right);
+	}
 
-		return expression;
+	private Expression missingOperand(Token operator) {
+		throw error(operator, "Operator '" + operator.lexeme + "' must have a left-hand operand.");
 	}
 
-	private Expression multiplication() {
-		Expression expression = unary();
+	//infix rules
+	private Expression assignment(Expression target, Token equals) {
+		//assignment is right-associative, so the value can be another assignment
+		Expression value = expression(ASSIGNMENT);
 
-		while (match(SLASH, STAR)) {
-			Token operator = previous();
-			Expression right = unary();
-			expression = new Expression.BinaryExpression(expression, operator, right);
+		if (target instanceof Expression.VariableExpression) {
+			Token name = ((Expression.VariableExpression) target).name;
+			return new Expression.AssignExpression(name, value);
+		} else if (target instanceof Expression.GetExpression) {
+			Expression.GetExpression get = (Expression.GetExpression)target;
+			return new Expression.SetExpression(get.object, get.name, value);
 		}
 
-		return expression;
+		throw error(equals, "Invalid assignment target.");
 	}
 
-	private Expression unary() {
-		if (match(BANG, MINUS)) {
-			Token operator = previous();
-			Expression right = unary();
-			return new Expression.UnaryExpression(operator, right);
-		}
-
-		//+, /, and * must have left-hand operands!
-		if (match(PLUS, SLASH, STAR)) {
-			throw error(previous(), "Operator '" + previous().lexeme + "' must have a left-hand operand.");
-		}
-
-		return call();
+	private Expression ternary(Expression condition, Token question) {
+		Expression left = expression(OR_PRECEDENCE);
+		consume(COLON, "Expect ':' after ternary");
+		Expression right = expression(OR_PRECEDENCE);
+		return new Expression.TernaryExpression(question, condition, left, right);
 	}
 
-	private Expression call() {
-		Expression expression = primary();
+	private Expression logical(Expression left, Token operator) {
+		Expression right = expression(PRECEDENCE[operator.type.ordinal()] + 1);
+		return new Expression.LogicalExpression(left, operator, right);
+	}
 
-		while (true) {
-			if (match(LEFT_PAREN)) {
-				expression = finishCall(expression);
-			} else if (match(DOT)) {
-				Token name = consume(IDENTIFIER, "Expect property name after '.'.");
-				expression = new Expression.GetExpression(expression, name);
-			} else {
-				break;
-			}
-		}
+	private Expression binary(Expression left, Token operator) {
+		Expression right = expression(PRECEDENCE[operator.type.ordinal()] + 1);
+		return new Expression.BinaryExpression(left, operator, right);
+	}
 
-		return expression;
+	private Expression property(Expression object, Token dot) {
+		Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+		return new Expression.GetExpression(object, name);
 	}
 
-	private Expression finishCall(Expression callee) {
+	private Expression finishCall(Expression callee, Token leftParen) {
 		List<Expression> arguments = new ArrayList<>();
 		if (!check(RIGHT_PAREN)) {
 			do {
@@ -512,36 +545,4 @@ public class Parser {
 
 		return new Expression.CallExpression(callee, paren, arguments);
 	}
-
-	private Expression primary() {
-		if (match(FALSE)) return new Expression.LiteralExpression(LoxType.BOOLEAN, false);
-		if (match(TRUE)) return new Expression.LiteralExpression(LoxType.BOOLEAN, true);
-		if (match(NIL)) return new Expression.LiteralExpression(LoxType.NONE, null);
-		if (match(CLASS)) return new Expression.ClassExpression(classDeclaration());
-		if (match(FUN)) return new Expression.FunctionExpression(function("function"));
-		if (match(THIS)) return new Expression.ThisExpression(previous());
-		if (match(SUPER)) {
-			Token keyword = previous();
-			consume(DOT, "Expect '.' after 'super'.");
-			Token method = consume(IDENTIFIER, "Expect superclass method name.");
-			return new Expression.SuperExpression(keyword, method);
-		}
-
-		if (match(NUMBER, STRING)) {
-			Object value = previous().literal;
-			return new Expression.LiteralExpression(value instanceof Double? LoxType.NUMBER : LoxType.STRING, value);
-		}
-
-		if (match(IDENTIFIER)) {
-			return new Expression.VariableExpression(previous());
-		}
-
-		if (match(LEFT_PAREN)) {
-			Expression expression = expression();
-			consume(RIGHT_PAREN, "Expect ')' after expression.");
-			return new Expression.GroupingExpression(expression);
-		}
-
-		throw error(peek(), "Expect expression.");
-	}
 }
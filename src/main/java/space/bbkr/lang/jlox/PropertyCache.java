@@ -0,0 +1,106 @@
+package space.bbkr.lang.jlox;
+
+import javax.annotation.Nullable;
+
+/**
+ * Inline cache for a single property get or set in the syntax tree. Remembers what it did for the last few
+ * {@link Shape}s it saw, so a site that only ever sees one or two kinds of instance goes straight to the field index.
+ * Once a site has seen more shapes than it can hold it's megamorphic, and just does the lookup every time.
+ */
+final class PropertyCache {
+	private static final int LIMIT = 4;
+
+	private final Shape[] shapes = new Shape[LIMIT];
+	private final int[] indices = new int[LIMIT];
+	//gets: the method found when instances of the shape don't have the field. sets: the shape to move to when adding the field
+	private final Object[] targets = new Object[LIMIT];
+	private int size = 0;
+	private boolean megamorphic = false;
+
+	Object get(LoxInstance instance, Token name) {
+		Shape shape = instance.shape;
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] == shape) {
+				if (targets[i] != null) return ((LoxFunction)targets[i]).bind(instance);
+				return instance.getField(indices[i]);
+			}
+		}
+		if (megamorphic) return instance.get(name);
+
+		int index = shape.indexOf(name.symbol);
+		if (index != -1) {
+			remember(shape, index, null);
+			return instance.getField(index);
+		}
+		LoxFunction method = instance.clazz.findMethod(name.symbol);
+		if (method != null) {
+			remember(shape, -1, method);
+			return method.bind(instance);
+		}
+		throw new RuntimeError("DefError", name, "Undefined property '" + name.lexeme + "'.");
+	}
+
+	/**
+	 * Look up a property that's about to be called, so a method can be invoked on the instance without binding it.
+	 * @return The method, or null if the property is a field (get its value with {@link #get}).
+	 */
+	@Nullable
+	LoxFunction method(LoxInstance instance, Token name) {
+		Shape shape = instance.shape;
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] == shape) return (LoxFunction)targets[i];
+		}
+		if (megamorphic) return shape.indexOf(name.symbol) == -1? instance.clazz.findMethod(name.symbol) : null;
+
+		int index = shape.indexOf(name.symbol);
+		if (index != -1) {
+			remember(shape, index, null);
+			return null;
+		}
+		LoxFunction method = instance.clazz.findMethod(name.symbol);
+		if (method != null) {
+			remember(shape, -1, method);
+			return method;
+		}
+		throw new RuntimeError("DefError", name, "Undefined property '" + name.lexeme + "'.");
+	}
+
+	void set(LoxInstance instance, Token name, Object value) {
+		Shape shape = instance.shape;
+		for (int i = 0; i < size; i++) {
+			if (shapes[i] == shape) {
+				if (targets[i] != null) {
+					instance.addField((Shape)targets[i], value);
+				} else {
+					instance.setField(indices[i], value);
+				}
+				return;
+			}
+		}
+		if (megamorphic) {
+			instance.set(name, value);
+			return;
+		}
+
+		int index = shape.indexOf(name.symbol);
+		if (index != -1) {
+			remember(shape, index, null);
+			instance.setField(index, value);
+		} else {
+			Shape next = shape.with(name.symbol);
+			remember(shape, next.size - 1, next);
+			instance.addField(next, value);
+		}
+	}
+
+	private void remember(Shape shape, int index, Object target) {
+		if (size == LIMIT) {
+			megamorphic = true;
+			return;
+		}
+		shapes[size] = shape;
+		indices[size] = index;
+		targets[size] = target;
+		size++;
+	}
+}
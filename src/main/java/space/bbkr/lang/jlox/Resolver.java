@@ -1,37 +1,53 @@
 package space.bbkr.lang.jlox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+import javax.annotation.Nullable;
+
 /**
  * Resolver for pre-run, post parse analysis. Primarily used for var definition and type checking.
+ * Where each local lives gets written straight onto the syntax tree, for the interpreter to read back.
+ * Locals that a nested function uses are captured: they get a {@link Cell} in their frame, and the function
+ * gets told where to find each cell when it's made, so it can use them as upvalues without keeping the frame around.
+ * Blocks don't get a frame of their own unless they're at the top level: their locals go in the frame of whatever
+ * they're in, after the ones already there, so running one doesn't have to make anything.
  */
 class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
-	private final Interpreter interpreter;
-	private final Map<String, LoxType> globals = new HashMap<>();
-	private final Stack<Map<String, LoxType>> scopes = new Stack<>();
-	private final Map<String, Map<String, LoxType.FunctionLoxType>> classes = new HashMap<>();
-	private final Map<String, List<LoxType>> functions = new HashMap<>();
+	private final Map<Symbol, LoxType> globals = new HashMap<>();
+	private final Stack<Map<Symbol, LoxType>> scopes = new Stack<>();
+	private final Stack<Map<Symbol, Local>> locals = new Stack<>(); //where each local lives in its scope's frame, parallel to scopes
+	private final Stack<Frame> frames = new Stack<>(); //the frame each scope's locals go in, parallel to scopes
+	private final Stack<FunctionScope> functionScopes = new Stack<>();
+	private final Map<Symbol, Token> globalConstants = new HashMap<>();
+	private final Stack<Map<Symbol, Token>> constants = new Stack<>(); //name each val in a scope was declared with, parallel to scopes
+	private final Map<Symbol, Map<Symbol, LoxType.FunctionLoxType>> classes = new HashMap<>();
+	private final Map<Symbol, List<LoxType>> functions = new HashMap<>();
 	private final Map<String, String> heirarchy = new HashMap<>();
 
 	private FunctionType currentFunction = FunctionType.NONE;
 	private ClassType currentClass = ClassType.NONE;
 	private boolean currentWhile = false;
 
-	Resolver(Interpreter interpreter) {
-		this.interpreter = interpreter;
+	Resolver() {
 		//TODO: better stdlib
-		globals.put("print", new LoxType.FunctionLoxType(Collections.singletonList(LoxType.UNKNOWN), LoxType.NONE));
-		globals.put("clock", new LoxType.FunctionLoxType(Collections.emptyList(), LoxType.NUMBER));
+		globals.put(Symbol.intern("print"), new LoxType.FunctionLoxType(Collections.singletonList(LoxType.UNKNOWN), LoxType.NONE));
+		globals.put(Symbol.intern("clock"), new LoxType.FunctionLoxType(Collections.emptyList(), LoxType.NUMBER));
+		//top level code isn't in a function, but its blocks can still have locals that functions capture
+		functionScopes.push(new FunctionScope(0));
 	}
 
 	@Override
 	public LoxType visitAssignExpression(Expression.AssignExpression expression) {
 		LoxType type = resolve(expression.value);
+		if (constant(expression.name) != null) {
+			Lox.error(expression.name, "Cannot assign to constant '" + expression.name.lexeme + "'.");
+		}
 		return resolveLocal(expression, expression.name, type);
 	}
 
@@ -118,6 +134,40 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 		return right;
 	}
 
+	//specialized nodes only get swapped in after resolving, so these just need to agree with the generic versions
+	@Override
+	public LoxType visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		resolve(expression.left);
+		resolve(expression.right);
+		return LoxType.NUMBER;
+	}
+
+	@Override
+	public LoxType visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		resolve(expression.left);
+		resolve(expression.right);
+		return LoxType.BOOLEAN;
+	}
+
+	@Override
+	public LoxType visitConcatExpression(Expression.ConcatExpression expression) {
+		resolve(expression.left);
+		resolve(expression.right);
+		return LoxType.STRING;
+	}
+
+	@Override
+	public LoxType visitNegateExpression(Expression.NegateExpression expression) {
+		resolve(expression.right);
+		return LoxType.NUMBER;
+	}
+
+	@Override
+	public LoxType visitNotExpression(Expression.NotExpression expression) {
+		resolve(expression.right);
+		return LoxType.BOOLEAN;
+	}
+
 	//TODO: arg validation, type return for functions/methods
 	@Override
 	public LoxType visitCallExpression(Expression.CallExpression expression) {
@@ -166,11 +216,11 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 					" instead.");
 			return LoxType.UNKNOWN;
 		}
-		String name = ((LoxType.InstanceLoxType)type).name.lexeme;
+		Symbol name = ((LoxType.InstanceLoxType)type).name.symbol;
 		if (classes.containsKey(name)) {
-			Map<String, LoxType.FunctionLoxType> methods = classes.get(name);
-			if (methods.containsKey(expression.name.lexeme)) {
-				return methods.get(expression.name.lexeme);
+			Map<Symbol, LoxType.FunctionLoxType> methods = classes.get(name);
+			if (methods.containsKey(expression.name.symbol)) {
+				return methods.get(expression.name.symbol);
 			}
 		}
 		return type; //TODO: does this need to be fixed too?
@@ -197,16 +247,17 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 		if (currentClass == ClassType.CLASS) {
 			Lox.error(expression.keyword, "Cannot use 'super' in a class with no superclass.");
 		}
+		resolve(expression.receiver);
 		LoxType type = resolveLocal(expression, expression.keyword, LoxType.UNKNOWN);
 		if (!(type instanceof LoxType.InstanceLoxType)) {
 			Lox.error(expression.keyword, "'super' not defined as an instance on this scope.");
 			return LoxType.UNKNOWN;
 		}
-		String name = ((LoxType.InstanceLoxType)type).name.lexeme;
+		Symbol name = ((LoxType.InstanceLoxType)type).name.symbol;
 		if (classes.containsKey(name)) {
-			Map<String, LoxType.FunctionLoxType> methods = classes.get(name);
-			if (methods.containsKey(expression.method.lexeme)) {
-				return methods.get(expression.method.lexeme);
+			Map<Symbol, LoxType.FunctionLoxType> methods = classes.get(name);
+			if (methods.containsKey(expression.method.symbol)) {
+				return methods.get(expression.method.symbol);
 			} else {
 				Lox.error(expression.keyword, "Couldn't find method " + expression.method.lexeme +
 						" to call super to.");
@@ -230,11 +281,12 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 
 	@Override
 	public LoxType visitVariableExpression(Expression.VariableExpression expression) {
-		if (!scopes.isEmpty() && scopes.peek().get(expression.name.lexeme) == LoxType.NONE) {
+		if (!scopes.isEmpty() && scopes.peek().get(expression.name.symbol) == LoxType.NONE) {
 			Lox.error(expression.name, "Cannot read local variable in its own initializer.");
 			return LoxType.UNKNOWN;
 		}
 
+		expression.constant = constant(expression.name);
 		return resolveLocal(expression, expression.name, LoxType.UNKNOWN);
 	}
 
@@ -245,10 +297,10 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 
 	@Override
 	public LoxType visitClassExpression(Expression.ClassExpression expression) {
-		resolve(expression.clazz);
+		resolveClass(expression.clazz, false);
 		LoxType supertype = null;
 		if (expression.clazz.superclass != null) {
-			if (expression.clazz.name.lexeme.equals(expression.clazz.superclass.name.lexeme)) {
+			if (expression.clazz.name.symbol == expression.clazz.superclass.name.symbol) {
 				Lox.error(expression.clazz.superclass.name, "A class cannot extend itself.");
 			}
 			supertype = resolve(expression.clazz.superclass);
@@ -320,34 +372,45 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 
 	@Override
 	public Void visitBlockStatement(Statement.BlockStatement statement) {
-		beginScope();
+		boolean ownFrame = scopes.isEmpty();
+		beginScope(ownFrame);
 		resolve(statement.statements);
-		endScope();
+		statement.localCount = ownFrame? frames.peek().size : 0;
+		statement.captured = endScope();
 		return null;
 	}
 
 	@Override
 	public Void visitClassStatement(Statement.ClassStatement statement) {
+		resolveClass(statement, true);
+		return null;
+	}
+
+	/**
+	 * @param declareName Whether the class name gets bound in the current scope.
+	 *                    Class expressions don't bind their name at runtime, so they can't take up a slot here either.
+	 */
+	private void resolveClass(Statement.ClassStatement statement, boolean declareName) {
 		ClassType enclosingClass = currentClass;
 		currentClass = ClassType.CLASS;
 		LoxType supertype = null; //TODO: still necessary?
 
 		if (statement.superclass != null) {
 			currentClass = ClassType.SUBCLASS;
-			if (statement.name.lexeme.equals(statement.superclass.name.lexeme)) {
+			if (statement.name.symbol == statement.superclass.name.symbol) {
 				Lox.error(statement.superclass.name, "A class cannot extend itself.");
 			}
 			supertype = resolve(statement.superclass);
 			if (!(supertype instanceof LoxType.ClassLoxType)) {
 				Lox.error(statement.superclass.name, "A class cannot extend a non-class.");
-				return null;
+				return;
 			}
 		}
 
-		if (statement.name.type == TokenType.IDENTIFIER) {
+		if (declareName && statement.name.type == TokenType.IDENTIFIER) {
 			LoxType.FunctionLoxType type = new LoxType.FunctionLoxType(Collections.emptyList(), new LoxType.InstanceLoxType(statement.name));
 			for (Statement.FunctionStatement method : statement.methods) {
-				if (method.name.lexeme.equals("init")) {
+				if (method.name.symbol == Symbol.INIT) {
 					List<LoxType> params = new ArrayList<>();
 					for (Expression.ParameterExpression param : method.params) {
 						params.add(param.type);
@@ -355,67 +418,65 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 					type = new LoxType.FunctionLoxType(params, new LoxType.InstanceLoxType(statement.name));
 				}
 			}
-			declare(statement.name);
+			bind(statement, declare(statement.name));
 			define(statement.name, new LoxType.ClassLoxType(statement.name, type));
 		}
 
 		if (statement.superclass != null) {
-			beginScope();
-			scopes.peek().put("super", new LoxType.InstanceLoxType(statement.superclass.name));
+			beginScope(true);
+			declareHidden(Symbol.SUPER, new LoxType.InstanceLoxType(statement.superclass.name));
 		}
 
-		beginScope();
-		scopes.peek().put("this", new LoxType.InstanceLoxType(statement.name));
-
-		Map<String, LoxType.FunctionLoxType> methods = new HashMap<>();
+		Map<Symbol, LoxType.FunctionLoxType> methods = new HashMap<>();
 
 		if (statement.superclass != null) {
-			methods.putAll(classes.get(statement.superclass.name.lexeme));
+			methods.putAll(classes.get(statement.superclass.name.symbol));
 		}
 
 		for (Statement.FunctionStatement method : statement.methods) {
 			FunctionType declaration = FunctionType.METHOD;
-			if (method.name.lexeme.equals("init")) {
+			if (method.name.symbol == Symbol.INIT) {
 				declaration = FunctionType.INITIALIZER;
 			}
-			methods.put(method.name.lexeme, resolveFunction(method, declaration));
+			methods.put(method.name.symbol, resolveFunction(method, declaration, new LoxType.InstanceLoxType(statement.name)));
 		}
 
 		if (statement.name.type == TokenType.IDENTIFIER) {
-			classes.put(statement.name.lexeme, methods);
+			classes.put(statement.name.symbol, methods);
 		}
 
-		endScope();
 		if (statement.superclass != null) endScope();
 
 		currentClass = enclosingClass;
-		return null;
 	}
 
 	@Override
 	public Void visitFunctionStatement(Statement.FunctionStatement statement) {
 		if (statement.name.type == TokenType.IDENTIFIER) {
-			declare(statement.name);
+			bind(statement, declare(statement.name));
 			List<LoxType> types = new ArrayList<>();
 			for (Expression.ParameterExpression param : statement.params) {
 				types.add(resolve(param));
 			}
 			define(statement.name, new LoxType.FunctionLoxType(types, statement.returnType));
-			functions.put(statement.name.lexeme, types);
+			functions.put(statement.name.symbol, types);
 		}
 
-		resolveFunction(statement, FunctionType.FUNCTION);
+		resolveFunction(statement, FunctionType.FUNCTION, null);
 		return null;
 	}
 
 	@Override
 	public Void visitVarStatement(Statement.VarStatement statement) {
-		declare(statement.name);
+		bind(statement, declare(statement.name));
 		LoxType type = LoxType.NONE;
 		if (statement.initializer != null) {
 			type = resolve(statement.initializer);
 		}
 		define(statement.name, type);
+		if (statement.constant) {
+			(scopes.isEmpty()? globalConstants : constants.peek()).put(statement.name.symbol, statement.name);
+		}
 		return null;
 	}
 
@@ -436,38 +497,63 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 	}
 
 	private LoxType resolve(Expression expression) {
-		return expression.accept(this);
+		LoxType type = expression.accept(this);
+		expression.resolvedType = type;
+		return type;
 	}
 
-	private void declare(Token name) {
+	/**
+	 * @return Where the new local lives, or null if it's a global.
+	 */
+	@Nullable
+	private Local declare(Token name) {
 		if (scopes.isEmpty()) {
-			globals.put(name.lexeme, LoxType.NONE);
-			return;
+			//globals can be declared again, but vals have already been put in wherever they're used
+			if (globalConstants.containsKey(name.symbol)) {
+				Lox.error(name, "Constant with this name already declared.");
+			}
+			globals.put(name.symbol, LoxType.NONE);
+			return null;
 		}
 
-		Map<String, LoxType> scope = scopes.peek();
-		if (scope.containsKey(name.lexeme)) {
+		Map<Symbol, LoxType> scope = scopes.peek();
+		if (scope.containsKey(name.symbol)) {
 			Lox.error(name, "Variable with this name already declared in this scope.");
 		}
-		scope.put(name.lexeme, LoxType.NONE);
+		scope.put(name.symbol, LoxType.NONE);
+		return locals.peek().computeIfAbsent(name.symbol, symbol -> new Local(frames.peek().size++));
+	}
+
+	/**
+	 * Declare and define an implicit local, like `this` and `super`.
+	 */
+	private void declareHidden(Symbol name, LoxType type) {
+		scopes.peek().put(name, type);
+		locals.peek().put(name, new Local(frames.peek().size++));
 	}
 
 	private void define(Token name, LoxType type) {
 		if (scopes.isEmpty()) {
-			globals.put(name.lexeme, type);
+			globals.put(name.symbol, type);
 			return;
 		}
-		scopes.peek().put(name.lexeme, type);
+		scopes.peek().put(name.symbol, type);
 	}
 
 	private LoxType resolveLocal(Expression expression, Token name, LoxType type) {
 		for (int i = scopes.size() - 1; i >= 0; i--) {
-			if (scopes.get(i).containsKey(name.lexeme)) {
-				LoxType scopeType = scopes.get(i).get(name.lexeme);
-				interpreter.resolve(expression, scopes.size() - 1 - i);
+			if (scopes.get(i).containsKey(name.symbol)) {
+				LoxType scopeType = scopes.get(i).get(name.symbol);
+				Local local = locals.get(i).get(name.symbol);
+				if (i >= functionScopes.peek().firstScope) {
+					bind(expression, distance(i, scopes.size() - 1), local.slot, -1);
+					local.uses.add(expression);
+				} else {
+					bind(expression, -1, -1, capture(functionScopes.size() - 1, i, local));
+				}
 				if (type != LoxType.UNKNOWN) {
 					if (scopeType == LoxType.NONE) {
-						scopes.get(i).put(name.lexeme, type);
+						scopes.get(i).put(name.symbol, type);
 						return type;
 					} else {
 						if (!type.matches(scopeType)) {
@@ -483,12 +569,12 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 
 		//Not found. Assume it's global.
 		if (type != LoxType.UNKNOWN) {
-			if (!globals.containsKey(name.lexeme)) {
-				globals.put(name.lexeme, type);
+			if (!globals.containsKey(name.symbol)) {
+				globals.put(name.symbol, type);
 			} else {
-				LoxType globalType = globals.get(name.lexeme);
+				LoxType globalType = globals.get(name.symbol);
 				if (globalType == LoxType.NONE) {
-					globals.put(name.lexeme, type);
+					globals.put(name.symbol, type);
 					return type;
 				} else {
 					if (!type.matches(globalType)) {
@@ -498,19 +584,135 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 				}
 			}
 		} else {
-			if (globals.containsKey(name.lexeme)) {
-				return globals.get(name.lexeme);
+			if (globals.containsKey(name.symbol)) {
+				return globals.get(name.symbol);
 			}
 		}
 		return type;
 	}
 
+	/**
+	 * @return The name of the val a name refers to from here, or null if it isn't one.
+	 */
+	@Nullable
+	private Token constant(Token name) {
+		for (int i = scopes.size() - 1; i >= 0; i--) {
+			if (scopes.get(i).containsKey(name.symbol)) return constants.get(i).get(name.symbol);
+		}
+		return globalConstants.get(name.symbol);
+	}
+
+	/**
+	 * Capture a local from outside the function being resolved, through every function in between.
+	 * @param function Which of the {@link #functionScopes} needs the local.
+	 * @param scope Which of the {@link #scopes} the local is declared in.
+	 * @return Which of that function's upvalues the local is.
+	 */
+	private int capture(int function, int scope, Local local) {
+		FunctionScope inner = functionScopes.get(function);
+		Integer upvalue = inner.indices.get(local);
+		if (upvalue != null) return upvalue;
+		FunctionScope outer = functionScopes.get(function - 1);
+		if (scope >= outer.firstScope) {
+			//declared in the function this one is made in, so it's made wherever the scope just outside it is
+			local.captured = true;
+			return inner.add(local, distance(scope, inner.firstScope - 1), local.slot);
+		}
+		return inner.add(local, -1, capture(function - 1, scope, local));
+	}
+
+	/**
+	 * @return How many environments up from the scope `to` the scope `from` is when they run,
+	 * which only counts the scopes that have a frame of their own.
+	 */
+	private int distance(int from, int to) {
+		int distance = 0;
+		for (int i = from + 1; i <= to; i++) {
+			if (frames.get(i) != frames.get(i - 1)) distance++;
+		}
+		return distance;
+	}
+
+	/**
+	 * Record where a resolved local lives on the node that refers to it.
+	 * @param upvalue Which of the function's upvalues it is, or -1 if it's in the function's own frame or global.
+	 */
+	private void bind(Expression expression, int depth, int slot, int upvalue) {
+		if (expression instanceof Expression.VariableExpression) {
+			((Expression.VariableExpression)expression).depth = depth;
+			((Expression.VariableExpression)expression).slot = slot;
+			((Expression.VariableExpression)expression).upvalue = upvalue;
+		} else if (expression instanceof Expression.AssignExpression) {
+			((Expression.AssignExpression)expression).depth = depth;
+			((Expression.AssignExpression)expression).slot = slot;
+			((Expression.AssignExpression)expression).upvalue = upvalue;
+		} else if (expression instanceof Expression.ThisExpression) {
+			((Expression.ThisExpression)expression).depth = depth;
+			((Expression.ThisExpression)expression).slot = slot;
+			((Expression.ThisExpression)expression).upvalue = upvalue;
+		} else if (expression instanceof Expression.SuperExpression) {
+			((Expression.SuperExpression)expression).depth = depth;
+			((Expression.SuperExpression)expression).slot = slot;
+			((Expression.SuperExpression)expression).upvalue = upvalue;
+		}
+	}
+
+	/**
+	 * Record which slot a declaration defines its local in.
+	 * @param local Where the local lives, or null if the declaration is for a global.
+	 */
+	private static void bind(Statement statement, @Nullable Local local) {
+		if (local == null) return;
+		local.declaration = statement;
+		if (statement instanceof Statement.VarStatement) {
+			((Statement.VarStatement)statement).slot = local.slot;
+		} else if (statement instanceof Statement.FunctionStatement) {
+			((Statement.FunctionStatement)statement).slot = local.slot;
+		} else if (statement instanceof Statement.ClassStatement) {
+			((Statement.ClassStatement)statement).slot = local.slot;
+		}
+	}
+
+	/**
+	 * Mark a declaration as defining its local in the local's cell.
+	 */
+	private static void box(Statement statement) {
+		if (statement instanceof Statement.VarStatement) {
+			((Statement.VarStatement)statement).boxed = true;
+		} else if (statement instanceof Statement.FunctionStatement) {
+			((Statement.FunctionStatement)statement).boxed = true;
+		} else if (statement instanceof Statement.ClassStatement) {
+			((Statement.ClassStatement)statement).boxed = true;
+		}
+	}
+
+	/**
+	 * Mark a use of a local in its own function as going through the local's cell.
+	 */
+	private static void box(Expression expression) {
+		if (expression instanceof Expression.VariableExpression) {
+			((Expression.VariableExpression)expression).boxed = true;
+		} else if (expression instanceof Expression.AssignExpression) {
+			((Expression.AssignExpression)expression).boxed = true;
+		} else if (expression instanceof Expression.ThisExpression) {
+			((Expression.ThisExpression)expression).boxed = true;
+		} else if (expression instanceof Expression.SuperExpression) {
+			((Expression.SuperExpression)expression).boxed = true;
+		}
+	}
+
+	/**
+	 * @param receiver The type of `this` for methods, or null for plain functions.
+	 *                 Methods get `this` in slot zero of their own frame, so calls can pass it in directly.
+	 */
 	//TODO: more advanced for type checking
-	private LoxType.FunctionLoxType resolveFunction(Statement.FunctionStatement function, FunctionType type) {
+	private LoxType.FunctionLoxType resolveFunction(Statement.FunctionStatement function, FunctionType type, @Nullable LoxType receiver) {
 		FunctionType enclosingFunction = currentFunction;
 		currentFunction = type;
 
-		beginScope();
+		beginScope(true);
+		functionScopes.push(new FunctionScope(scopes.size() - 1));
+		if (receiver != null) declareHidden(Symbol.THIS, receiver);
 		List<LoxType> paramTypes = new ArrayList<>();
 		for (Expression.ParameterExpression param : function.params) {
 			declare(param.name);
@@ -518,17 +720,92 @@ class Resolver implements Expression.Visitor<LoxType>, Statement.Visitor<Void> {
 			paramTypes.add(param.type);
 		}
 		resolve(function.body);
-		endScope();
+		function.localCount = frames.peek().size;
+		function.upvalues = functionScopes.pop().upvalues();
+		function.captured = endScope();
 		currentFunction = enclosingFunction;
 		return new LoxType.FunctionLoxType(paramTypes, function.returnType);
 	}
 
-	private void beginScope() {
+	/**
+	 * @param ownFrame Whether the scope's locals get a frame of their own, instead of going in the enclosing scope's.
+	 */
+	private void beginScope(boolean ownFrame) {
 		scopes.push(new HashMap<>());
+		locals.push(new HashMap<>());
+		constants.push(new HashMap<>());
+		frames.push(ownFrame? new Frame() : frames.peek());
+	}
+
+	/**
+	 * @return Which slots of the scope's frame hold locals from this scope that closures captured,
+	 * or null if none of them were.
+	 */
+	@Nullable
+	private boolean[] endScope() {
+		Map<Symbol, Local> scope = locals.peek();
+		boolean[] captured = null;
+		for (Local local : scope.values()) {
+			if (!local.captured) continue;
+			if (captured == null) captured = new boolean[frames.peek().size];
+			captured[local.slot] = true;
+			//uses from before anything captured it still thought the value was right there in the slot
+			for (Expression use : local.uses) {
+				box(use);
+			}
+			if (local.declaration != null) box(local.declaration);
+		}
+		scopes.pop();
+		locals.pop();
+		constants.pop();
+		frames.pop();
+		return captured;
 	}
 
-	private void endScope() {
-		scopes.pop();
+	private static final class Frame {
+		//slots are never handed out twice, even once the block a local was in is done,
+		//so a captured local's cell can't end up in a slot something else thinks is a plain value
+		int size = 0;
+	}
+
+	private static final class Local {
+		final int slot;
+		boolean captured = false;
+		//the statement that declares it, or null for params and hidden locals
+		@Nullable
+		Statement declaration;
+		//uses in the local's own function, which go through its cell if anything captures it
+		final List<Expression> uses = new ArrayList<>();
+
+		Local(int slot) {
+			this.slot = slot;
+		}
+	}
+
+	private static final class FunctionScope {
+		final int firstScope; //which of the scopes is the function's own
+		final Map<Local, Integer> indices = new HashMap<>(); //which upvalue each captured local is
+		//where each upvalue comes from, as pairs of depth and slot in the scope the function's made in,
+		//or -1 and which of the enclosing function's upvalues it is
+		private int[] sources = new int[0];
+
+		FunctionScope(int firstScope) {
+			this.firstScope = firstScope;
+		}
+
+		int add(Local local, int depth, int slot) {
+			int upvalue = indices.size();
+			indices.put(local, upvalue);
+			sources = Arrays.copyOf(sources, sources.length + 2);
+			sources[upvalue * 2] = depth;
+			sources[upvalue * 2 + 1] = slot;
+			return upvalue;
+		}
+
+		@Nullable
+		int[] upvalues() {
+			return indices.isEmpty()? null : sources;
+		}
 	}
 
 	private enum FunctionType {
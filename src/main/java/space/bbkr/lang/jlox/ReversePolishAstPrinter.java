@@ -38,6 +38,31 @@ class ReversePolishAstPrinter implements Expression.Visitor<String> {
 		return stack(expression.operator.lexeme, expression.right);
 	}
 
+	@Override
+	public String visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		return stack(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		return stack(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitConcatExpression(Expression.ConcatExpression expression) {
+		return stack(expression.operator.lexeme, expression.left, expression.right);
+	}
+
+	@Override
+	public String visitNegateExpression(Expression.NegateExpression expression) {
+		return stack(expression.operator.lexeme, expression.right);
+	}
+
+	@Override
+	public String visitNotExpression(Expression.NotExpression expression) {
+		return stack(expression.operator.lexeme, expression.right);
+	}
+
 	@Override
 	public String visitCallExpression(Expression.CallExpression expression) {
 		return stack("call", expression.arguments.toArray(new Expression[0]));
@@ -2,37 +2,113 @@ package space.bbkr.lang.jlox;
 
 import static space.bbkr.lang.jlox.TokenType.*;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 /**
  * Scanner/lexer to convert a string into a series of tokens, which can then be parsed into statements.
+ * Tokens are scanned one at a time as the {@link Parser} asks for them, or all at once into a {@link TokenBuffer}.
+ * The source is read as UTF-8 bytes, which can come straight from a memory-mapped file without copying it.
+ * Everything the scanner needs to recognize is ASCII, and every byte of a multi-byte character is >= 0x80,
+ * so those only ever get decoded when they're part of a lexeme. Only numbers and strings get their own lexeme string.
+ * Keywords and symbols share constant ones, and identifiers share the name of their interned {@link Symbol}.
+ * Lines and columns aren't tracked as it goes - it just notes where each line starts in a {@link LineMap}.
  */
 class Scanner {
 	private static final Map<String, TokenType> KEYWORDS = new HashMap<>();
-	private final String source;
-	private final List<Token> tokens = new ArrayList<>();
+	private static final String[] KEYWORD_NAMES;
+	private static final String[] LEXEMES = new String[TokenType.values().length];
+	private final ByteBuffer source;
+	private final int length;
+	private final LineMap lines;
+	//the token the last scanToken() call found, if it found one.
+	//identifiers have their symbol as the literal, and numbers keep the lexeme they were parsed from
+	@Nullable
+	private TokenType scannedType = null;
+	@Nullable
+	private Object scannedLiteral = null;
+	@Nullable
+	private String scannedLexeme = null;
+	private byte[] scratch = new byte[64];
 	private int start = 0;
 	private int current = 0;
-	private int line = 1;
-	private int column = 0;
 
 	Scanner(String source) {
-		this.source = source;
+		this(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8)));
 	}
 
-	List<Token> scanTokens() {
+	/**
+	 * @param source UTF-8 encoded source, from its position to its limit. It's only read, never moved.
+	 */
+	Scanner(ByteBuffer source) {
+		this.source = source.slice();
+		this.length = this.source.remaining();
+		this.lines = new LineMap(this.source);
+	}
+
+	/**
+	 * @return Where each line the scanner has gone past starts.
+	 */
+	LineMap lines() {
+		return lines;
+	}
+
+	/**
+	 * Scan the whole source up front, without making a {@link Token} or a lexeme for anything.
+	 */
+	TokenBuffer scanBuffer() {
+		TokenBuffer tokens = new TokenBuffer(source, lines);
+		while (scan()) {
+			tokens.add(scannedType, start, current - start, scannedLiteral);
+		}
+		tokens.add(EOF, current, 0, null);
+		return tokens;
+	}
+
+	/**
+	 * Scan just far enough to make the next token, skipping whitespace and comments.
+	 * @return The next token, or EOF once the source is used up.
+	 */
+	Token nextToken() {
+		if (!scan()) return new Token(EOF, LEXEMES[EOF.ordinal()], null, lines, current);
+		if (scannedType == IDENTIFIER) return new Token((Symbol)scannedLiteral, lines, current);
+		String lexeme;
+		if (scannedLiteral == null) {
+			lexeme = LEXEMES[scannedType.ordinal()];
+		} else if (scannedLexeme != null) {
+			lexeme = scannedLexeme;
+		} else {
+			lexeme = text(start, current);
+		}
+		return new Token(scannedType, lexeme, scannedLiteral, lines, current);
+	}
+
+	/**
+	 * @return The shared lexeme for a token without a literal - keywords, symbols and EOF.
+	 */
+	@Nullable
+	static String lexeme(TokenType type) {
+		return LEXEMES[type.ordinal()];
+	}
+
+	/**
+	 * Find the next token, leaving what it is in the scanned fields.
+	 * @return Whether there was one before the end.
+	 */
+	private boolean scan() {
+		scannedType = null;
+		scannedLiteral = null;
+		scannedLexeme = null;
 		while (!isAtEnd()) {
 			start = current;
 			scanToken();
+			if (scannedType != null) return true;
 		}
-
-		tokens.add(new Token(EOF, "", null, line, column));
-		return tokens;
+		return false;
 	}
 
 	private void scanToken() {
@@ -60,14 +136,14 @@ class Scanner {
 				} else if (match('*')) {
 					//a block comment can span multiple lines
 					while (!isAtEnd() && !(peek() == '*' && peekNext() == '/')) {
-						if (peek() == '\n') {
-							line++;
-							column = 0;
-						}
-						advance();
+						if (advance() == '\n') lines.newLine(current);
 					}
+					if (isAtEnd()) {
+						error("Unterminated block comment");
+						break;
+					}
+					//closing */
 					current += 2;
-					column += 2;
 				} else {
 					addToken(SLASH);
 				}
@@ -87,8 +163,7 @@ class Scanner {
 			case '\t':
 				break;
 			case '\n':
-				line++;
-				column = 0;
+				lines.newLine(current);
 				break;
 
 			//strings
@@ -103,8 +178,9 @@ class Scanner {
 				} else if (isAlpha(c)) {
 					identifier();
 				} else {
-					//none, error
-					Lox.error(line, column, "unexpected character '" + c + "'.");
+					//none, error - take the whole character if it's more than one byte
+					while (isContinuation(peek())) advance();
+					error("unexpected character '" + text(start, current) + "'.");
 				}
 				break;
 		}
@@ -112,45 +188,65 @@ class Scanner {
 
 	//movement
 	private char advance() {
-		current++;
-		column++;
-		return source.charAt(current - 1);
+		return (char)(source.get(current++) & 0xFF);
 	}
 
 	private char peek() {
 		if (isAtEnd()) return '\0';
-		return source.charAt(current);
+		return (char)(source.get(current) & 0xFF);
 	}
 
 	private char peekNext() {
-		if (current + 1 >= source.length()) return '\0';
-		return source.charAt(current + 1);
+		if (current + 1 >= length) return '\0';
+		return (char)(source.get(current + 1) & 0xFF);
 	}
 
 	//building
 	private void addToken(TokenType type) {
-		addToken(type, null);
+		scannedType = type;
 	}
 
-	private void addToken(TokenType type, @Nullable Object literal) {
-		String text = source.substring(start, current);
-		tokens.add(new Token(type, text, literal, line, column));
+	private void addToken(TokenType type, Object literal) {
+		scannedType = type;
+		scannedLiteral = literal;
+	}
+
+	private void error(String message) {
+		Lox.error(lines.line(current), lines.column(current), message);
+	}
+
+	/**
+	 * Decode part of the source into a string. This is the only place lexemes get made.
+	 */
+	private String text(int from, int to) {
+		int size = to - from;
+		if (source.hasArray()) {
+			return new String(source.array(), source.arrayOffset() + from, size, StandardCharsets.UTF_8);
+		}
+		if (scratch.length < size) scratch = new byte[Math.max(size, scratch.length * 2)];
+		for (int i = 0; i < size; i++) {
+			scratch[i] = source.get(from + i);
+		}
+		return new String(scratch, 0, size, StandardCharsets.UTF_8);
 	}
 
 	//checking
 	private boolean isAtEnd() {
-		return current >= source.length();
+		return current >= length;
 	}
 
 	private boolean match(char expected) {
 		if (isAtEnd()) return false;
-		if (source.charAt(current) != expected) return false;
+		if (source.get(current) != expected) return false;
 
 		current++;
-		column++;
 		return true;
 	}
 
+	private boolean isContinuation(int b) {
+		return (b & 0xC0) == 0x80;
+	}
+
 	private boolean isAlpha(char c) {
 		return (c >= 'a' && c <= 'z')
 				|| (c >= 'A' && c <= 'Z')
@@ -169,16 +265,12 @@ class Scanner {
 	//constructing
 	private void string() {
 		while (peek() != '"' && !isAtEnd()) {
-			if (peek() == '\n') {
-				line++;
-				column = 0;
-			}
-			advance();
+			if (advance() == '\n') lines.newLine(current);
 		}
 
 		//unterminated
 		if (isAtEnd()) {
-			Lox.error(line, column, "Unterminated string");
+			error("Unterminated string");
 			return;
 		}
 
@@ -186,8 +278,7 @@ class Scanner {
 		advance();
 
 		//trim surrounding quotes
-		String value = source.substring(start + 1, current - 1);
-		addToken(STRING, value);
+		addToken(STRING, text(start + 1, current - 1));
 	}
 
 	private void number() {
@@ -201,15 +292,33 @@ class Scanner {
 			while (isDigit(peek())) advance();
 		}
 
-		addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+		String text = text(start, current);
+		addToken(NUMBER, Double.parseDouble(text));
+		scannedLexeme = text;
 	}
 
 	private void identifier() {
 		while (isAlphanumeric(peek())) advance();
 
-		//see if the identifier is a reserved word
-		String text = source.substring(start, current);
-		addToken(KEYWORDS.getOrDefault(text, IDENTIFIER));
+		//see if the identifier is a reserved word, without making a string for it if it is
+		String keyword = keyword();
+		if (keyword != null) {
+			addToken(KEYWORDS.get(keyword));
+		} else {
+			addToken(IDENTIFIER, Symbol.intern(source, start, current - start));
+		}
+	}
+
+	@Nullable
+	private String keyword() {
+		int size = current - start;
+		for (String keyword : KEYWORD_NAMES) {
+			if (keyword.length() != size) continue;
+			int i = 0;
+			while (i < size && source.get(start + i) == keyword.charAt(i)) i++;
+			if (i == size) return keyword;
+		}
+		return null;
 	}
 
 	static {
@@ -230,7 +339,36 @@ class Scanner {
 		KEYWORDS.put("super", SUPER);
 		KEYWORDS.put("this", THIS);
 		KEYWORDS.put("true", TRUE);
+		KEYWORDS.put("val", VAL);
 		KEYWORDS.put("var", VAR);
 		KEYWORDS.put("while", WHILE);
+		KEYWORD_NAMES = KEYWORDS.keySet().toArray(new String[0]);
+		for (String keyword : KEYWORD_NAMES) {
+			LEXEMES[KEYWORDS.get(keyword).ordinal()] = keyword;
+		}
+
+		LEXEMES[LEFT_PAREN.ordinal()] = "(";
+		LEXEMES[RIGHT_PAREN.ordinal()] = ")";
+		LEXEMES[LEFT_BRACE.ordinal()] = "{";
+		LEXEMES[RIGHT_BRACE.ordinal()] = "}";
+		LEXEMES[COLON.ordinal()] = ":";
+		LEXEMES[COMMA.ordinal()] = ",";
+		LEXEMES[DOT.ordinal()] = ".";
+		LEXEMES[MINUS.ordinal()] = "-";
+		LEXEMES[PLUS.ordinal()] = "+";
+		LEXEMES[QUESTION.ordinal()] = "?";
+		LEXEMES[SEMICOLON.ordinal()] = ";";
+		LEXEMES[SLASH.ordinal()] = "/";
+		LEXEMES[STAR.ordinal()] = "*";
+		LEXEMES[ARROW.ordinal()] = "->";
+		LEXEMES[BANG.ordinal()] = "!";
+		LEXEMES[BANG_EQUAL.ordinal()] = "!=";
+		LEXEMES[EQUAL.ordinal()] = "=";
+		LEXEMES[EQUAL_EQUAL.ordinal()] = "==";
+		LEXEMES[GREATER.ordinal()] = ">";
+		LEXEMES[GREATER_EQUAL.ordinal()] = ">=";
+		LEXEMES[LESS.ordinal()] = "<";
+		LEXEMES[LESS_EQUAL.ordinal()] = "<=";
+		LEXEMES[EOF.ordinal()] = "";
 	}
 }
@@ -0,0 +1,136 @@
+package space.bbkr.lang.jlox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps resolved scripts on disk, so running one that hasn't changed skips scanning, parsing and resolving.
+ * Entries are named after a SHA-256 hash of the script, and only get used if they were written by the same {@link #VERSION}
+ * and still match the CRC32 they were written with, since a tree that got corrupted can still read back fine and run wrong.
+ * The cache is only ever a shortcut - anything wrong with an entry just means the script gets compiled again.
+ */
+final class ScriptCache {
+	//bump this whenever the syntax tree, what the resolver fills in, or the format changes, so old entries get ignored
+	static final int VERSION = 6;
+	private static final int MAGIC = 0x4A4C4F58; //"JLOX"
+	private static final String EXTENSION = ".jloxc";
+
+	private final Path directory;
+
+	ScriptCache(Path directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * @return The `jlox.cache` system property if it's set, or `~/.cache/jlox` if not.
+	 */
+	static Path defaultDirectory() {
+		String property = System.getProperty("jlox.cache");
+		if (property != null) return Paths.get(property);
+		return Paths.get(System.getProperty("user.home"), ".cache", "jlox");
+	}
+
+	/**
+	 * @param source The script, which is only hashed and kept for working out columns - never scanned.
+	 * @return The resolved statements for the script, or null if there isn't a usable entry for it.
+	 */
+	@Nullable
+	List<Statement> load(ByteBuffer source) {
+		Path file = directory.resolve(key(source) + EXTENSION);
+		if (!Files.isRegularFile(file)) return null;
+		try {
+			ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(file));
+			if (in.getInt() != MAGIC || in.getInt() != VERSION) return null;
+			int checksum = in.getInt();
+			CRC32 crc = new CRC32();
+			crc.update(in.duplicate());
+			if ((int)crc.getValue() != checksum) return null;
+			//the line starts go first, so the tokens can share them as they're read
+			int lineCount = in.getInt();
+			//every line takes at least a byte, so a count bigger than what's left means the entry is corrupt
+			if (lineCount < 0 || lineCount > in.remaining()) throw new IllegalArgumentException("Bad line count " + lineCount);
+			int[] starts = new int[lineCount];
+			if (starts.length == 0) return null;
+			LineMap lines = new LineMap(source, starts);
+			AstReader reader = new AstReader(in, lines);
+			int start = 0;
+			for (int i = 0; i < starts.length; i++) {
+				start += reader.readInt();
+				starts[i] = start;
+			}
+			List<Statement> statements = reader.readStatements();
+			return in.hasRemaining()? null : statements;
+		} catch (IOException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Save the resolved statements for a script. Failing to write just leaves it uncached.
+	 * @param lines Where the lines of the script start, from scanning it.
+	 */
+	void store(ByteBuffer source, LineMap lines, List<Statement> statements) {
+		Path temp = null;
+		try {
+			Files.createDirectories(directory);
+			String key = key(source);
+			//write somewhere else first, so another run never sees half an entry
+			temp = Files.createTempFile(directory, key, ".tmp");
+			int[] starts = lines.starts();
+			AstWriter writer = new AstWriter();
+			//lines are written as how long the one before was, which is a lot smaller than where they start
+			int previous = 0;
+			for (int start : starts) {
+				writer.writeInt(start - previous);
+				previous = start;
+			}
+			writer.writeStatements(statements);
+			byte[] tree = writer.toByteArray();
+			//the checksum covers everything after it
+			ByteBuffer header = ByteBuffer.allocate(16).putInt(MAGIC).putInt(VERSION).putInt(0).putInt(starts.length);
+			CRC32 crc = new CRC32();
+			crc.update(header.array(), 12, 4);
+			crc.update(tree);
+			header.putInt(8, (int)crc.getValue());
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				out.write(header.array());
+				out.write(tree);
+			}
+			Files.move(temp, directory.resolve(key + EXTENSION), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			if (temp != null) {
+				try {
+					Files.deleteIfExists(temp);
+				} catch (IOException ignored) {
+				}
+			}
+		}
+	}
+
+	private static String key(ByteBuffer source) {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			//every JVM has to have SHA-256
+			throw new IllegalStateException(e);
+		}
+		digest.update(source.duplicate());
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest()) {
+			key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return key.toString();
+	}
+}
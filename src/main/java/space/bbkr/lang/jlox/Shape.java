@@ -0,0 +1,49 @@
+package space.bbkr.lang.jlox;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The layout of a {@link LoxInstance}'s fields: which field lives at which index of its field array.
+ * Instances that had the same fields added in the same order share a shape, so a property site only needs to
+ * remember the shapes it's seen to skip the name lookup (see {@link PropertyCache}).
+ * Shapes never change - adding a field moves the instance to the next shape along, which is made once and reused.
+ * Every class has its own root shape, so a shape also tells you the class of the instance.
+ */
+final class Shape {
+	private final Map<Symbol, Integer> indices;
+	private final Map<Symbol, Shape> transitions = new HashMap<>();
+	final int size;
+
+	Shape() {
+		this.indices = Collections.emptyMap();
+		this.size = 0;
+	}
+
+	private Shape(Shape parent, Symbol field) {
+		this.indices = new HashMap<>(parent.indices);
+		this.indices.put(field, parent.size);
+		this.size = parent.size + 1;
+	}
+
+	/**
+	 * @return The index of the field in instances of this shape, or -1 if they don't have it.
+	 */
+	int indexOf(Symbol field) {
+		Integer index = indices.get(field);
+		return index != null? index : -1;
+	}
+
+	/**
+	 * @return The shape instances of this shape move to when the field is added to them.
+	 */
+	Shape with(Symbol field) {
+		Shape next = transitions.get(field);
+		if (next == null) {
+			next = new Shape(this, field);
+			transitions.put(field, next);
+		}
+		return next;
+	}
+}
@@ -0,0 +1,61 @@
+package space.bbkr.lang.jlox;
+
+/**
+ * Post-resolve pass that swaps operators the {@link Resolver} proved the types of for specialized nodes,
+ * so the interpreter can go straight to the right operation instead of working out what `+` means every time.
+ * The resolver can't see everything (return values aren't checked yet), so the specialized nodes still fall back
+ * to the generic behavior if a value turns out not to be what it was proven to be.
+ */
+class Specializer extends AstRewriter {
+
+	@Override
+	public Expression visitBinaryExpression(Expression.BinaryExpression expression) {
+		Expression left = rewrite(expression.left);
+		Expression right = rewrite(expression.right);
+		boolean numbers = isNumber(left) && isNumber(right);
+		switch (expression.operator.type) {
+			case PLUS:
+				if (numbers) return typed(new Expression.NumberBinaryExpression(left, expression.operator, right), expression);
+				if (isString(left) || isString(right)) {
+					return typed(new Expression.ConcatExpression(left, expression.operator, right), expression);
+				}
+				break;
+			case MINUS:
+			case STAR:
+			case SLASH:
+				if (numbers) return typed(new Expression.NumberBinaryExpression(left, expression.operator, right), expression);
+				break;
+			case GREATER:
+			case GREATER_EQUAL:
+			case LESS:
+			case LESS_EQUAL:
+			case EQUAL_EQUAL:
+			case BANG_EQUAL:
+				if (numbers) return typed(new Expression.NumberCompareExpression(left, expression.operator, right), expression);
+				break;
+		}
+		if (left == expression.left && right == expression.right) return expression;
+		return typed(new Expression.BinaryExpression(left, expression.operator, right), expression);
+	}
+
+	@Override
+	public Expression visitUnaryExpression(Expression.UnaryExpression expression) {
+		Expression right = rewrite(expression.right);
+		if (expression.operator.type == TokenType.MINUS && isNumber(right)) {
+			return typed(new Expression.NegateExpression(expression.operator, right), expression);
+		}
+		if (expression.operator.type == TokenType.BANG && right.resolvedType == LoxType.BOOLEAN) {
+			return typed(new Expression.NotExpression(expression.operator, right), expression);
+		}
+		if (right == expression.right) return expression;
+		return typed(new Expression.UnaryExpression(expression.operator, right), expression);
+	}
+
+	private static boolean isNumber(Expression expression) {
+		return expression.resolvedType == LoxType.NUMBER;
+	}
+
+	private static boolean isString(Expression expression) {
+		return expression.resolvedType == LoxType.STRING;
+	}
+}
@@ -4,11 +4,26 @@ import java.util.List;
 
 import javax.annotation.Nullable;
 
-abstract class Statement {
+public abstract class Statement {
+	public static final int IF = 0;
+	public static final int RETURN = 1;
+	public static final int WHILE = 2;
+	public static final int BREAK = 3;
+	public static final int BLOCK = 4;
+	public static final int CLASS = 5;
+	public static final int FUNCTION = 6;
+	public static final int VAR = 7;
+	public static final int EXPRESSION = 8;
+
+	public final int kind;
+
+	Statement(int kind) {
+		this.kind = kind;
+	}
 
-	abstract <R> R accept(Visitor<R> visitor);
+	public abstract <R> R accept(Visitor<R> visitor);
 
-	interface Visitor<R> {
+	public interface Visitor<R> {
 		R visitIfStatement(IfStatement statement);
 		R visitReturnStatement(ReturnStatement statement);
 		R visitWhileStatement(WhileStatement statement);
@@ -20,13 +35,14 @@ abstract class Statement {
 		R visitExpressionStatement(ExpressionStatement statement);
 	}
 
-	static class IfStatement extends Statement {
-		 final Token keyword;
-		 final Expression condition;
-		 final Statement thenBranch;
-		 final @Nullable Statement elseBranch;
+	public static class IfStatement extends Statement {
+		public final Token keyword;
+		public final Expression condition;
+		public final Statement thenBranch;
+		public final @Nullable Statement elseBranch;
 
 		IfStatement(Token keyword, Expression condition, Statement thenBranch, @Nullable Statement elseBranch) {
+			super(IF);
 			this.keyword = keyword;
 			this.condition = condition;
 			this.thenBranch = thenBranch;
@@ -34,95 +50,110 @@ abstract class Statement {
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitIfStatement(this);
 		}
 	}
 
-	static class ReturnStatement extends Statement {
-		 final Token keyword;
-		 final @Nullable Expression value;
-		 final boolean hasType;
+	public static class ReturnStatement extends Statement {
+		public final Token keyword;
+		public final @Nullable Expression value;
+		public final boolean hasType;
 
 		ReturnStatement(Token keyword, @Nullable Expression value, boolean hasType) {
+			super(RETURN);
 			this.keyword = keyword;
 			this.value = value;
 			this.hasType = hasType;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitReturnStatement(this);
 		}
 	}
 
-	static class WhileStatement extends Statement {
-		 final Token keyword;
-		 final Expression condition;
-		 final Statement body;
+	public static class WhileStatement extends Statement {
+		public final Token keyword;
+		public final Expression condition;
+		public final Statement body;
 
 		WhileStatement(Token keyword, Expression condition, Statement body) {
+			super(WHILE);
 			this.keyword = keyword;
 			this.condition = condition;
 			this.body = body;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitWhileStatement(this);
 		}
 	}
 
-	static class BreakStatement extends Statement {
-		 final Token keyword;
+	public static class BreakStatement extends Statement {
+		public final Token keyword;
 
 		BreakStatement(Token keyword) {
+			super(BREAK);
 			this.keyword = keyword;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitBreakStatement(this);
 		}
 	}
 
-	static class BlockStatement extends Statement {
-		 final List<Statement> statements;
+	public static class BlockStatement extends Statement {
+		public final List<Statement> statements;
+		public int localCount = 0;
+		public @Nullable boolean[] captured = null;
 
 		BlockStatement(List<Statement> statements) {
+			super(BLOCK);
 			this.statements = statements;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitBlockStatement(this);
 		}
 	}
 
-	static class ClassStatement extends Statement {
-		 final Token name;
-		 final @Nullable Expression.VariableExpression superclass;
-		 final List<Statement.FunctionStatement> methods;
+	public static class ClassStatement extends Statement {
+		public final Token name;
+		public final @Nullable Expression.VariableExpression superclass;
+		public final List<Statement.FunctionStatement> methods;
+		public int slot = -1;
+		public boolean boxed = false;
 
 		ClassStatement(Token name, @Nullable Expression.VariableExpression superclass, List<Statement.FunctionStatement> methods) {
+			super(CLASS);
 			this.name = name;
 			this.superclass = superclass;
 			this.methods = methods;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitClassStatement(this);
 		}
 	}
 
-	static class FunctionStatement extends Statement {
-		 final Token name;
-		 final List<Expression.ParameterExpression> params;
-		 final List<Statement> body;
-		 final LoxType returnType;
+	public static class FunctionStatement extends Statement {
+		public final Token name;
+		public final List<Expression.ParameterExpression> params;
+		public final List<Statement> body;
+		public final LoxType returnType;
+		public int localCount = 0;
+		public @Nullable boolean[] captured = null;
+		public @Nullable int[] upvalues = null;
+		public int slot = -1;
+		public boolean boxed = false;
 
 		FunctionStatement(Token name, List<Expression.ParameterExpression> params, List<Statement> body, LoxType returnType) {
+			super(FUNCTION);
 			this.name = name;
 			this.params = params;
 			this.body = body;
@@ -130,35 +161,41 @@ abstract class Statement {
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitFunctionStatement(this);
 		}
 	}
 
-	static class VarStatement extends Statement {
-		 final Token name;
-		 final @Nullable Expression initializer;
+	public static class VarStatement extends Statement {
+		public final Token name;
+		public final @Nullable Expression initializer;
+		public final boolean constant;
+		public int slot = -1;
+		public boolean boxed = false;
 
-		VarStatement(Token name, @Nullable Expression initializer) {
+		VarStatement(Token name, @Nullable Expression initializer, boolean constant) {
+			super(VAR);
 			this.name = name;
 			this.initializer = initializer;
+			this.constant = constant;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitVarStatement(this);
 		}
 	}
 
-	static class ExpressionStatement extends Statement {
-		 final Expression expression;
+	public static class ExpressionStatement extends Statement {
+		public final Expression expression;
 
 		ExpressionStatement(Expression expression) {
+			super(EXPRESSION);
 			this.expression = expression;
 		}
 
 		@Override
-		<R> R accept(Visitor<R> visitor) {
+		public <R> R accept(Visitor<R> visitor) {
 			return visitor.visitExpressionStatement(this);
 		}
 	}
@@ -0,0 +1,102 @@
+package space.bbkr.lang.jlox;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An interned name. Every identifier with the same name shares one symbol, made by the {@link Scanner},
+ * so the resolver and runtime can key their maps on symbols: the hash is a small dense id and equality is identity,
+ * instead of hashing and comparing strings. Identifier tokens also share the symbol's name as their lexeme,
+ * so a name used a million times is only stored once.
+ */
+public final class Symbol {
+	//open-addressed table, so scanned names can be looked up straight from their bytes
+	private static Symbol[] table = new Symbol[1024];
+	private static int count = 0;
+
+	static final Symbol THIS = intern("this");
+	static final Symbol SUPER = intern("super");
+	static final Symbol INIT = intern("init");
+
+	public final String name;
+	/**
+	 * Dense, starting at zero in the order symbols are first seen.
+	 */
+	public final int id;
+	private final int hash;
+
+	private Symbol(String name, int id, int hash) {
+		this.name = name;
+		this.id = id;
+		this.hash = hash;
+	}
+
+	static Symbol intern(String name) {
+		int hash = name.hashCode();
+		int mask = table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			Symbol symbol = table[i];
+			if (symbol == null) return add(name, hash, i);
+			if (symbol.hash == hash && symbol.name.equals(name)) return symbol;
+		}
+	}
+
+	/**
+	 * Intern an identifier straight from the scanner's source, only making a string if it's a new name.
+	 * Identifiers are always ASCII, so each byte is one char.
+	 */
+	static Symbol intern(ByteBuffer source, int start, int length) {
+		//same hash as String.hashCode, so both ways of interning agree
+		int hash = 0;
+		for (int i = 0; i < length; i++) {
+			hash = 31 * hash + source.get(start + i);
+		}
+		int mask = table.length - 1;
+		for (int i = hash & mask; ; i = (i + 1) & mask) {
+			Symbol symbol = table[i];
+			if (symbol == null) {
+				char[] chars = new char[length];
+				for (int j = 0; j < length; j++) {
+					chars[j] = (char)source.get(start + j);
+				}
+				return add(new String(chars), hash, i);
+			}
+			if (symbol.hash == hash && matches(symbol.name, source, start, length)) return symbol;
+		}
+	}
+
+	private static boolean matches(String name, ByteBuffer source, int start, int length) {
+		if (name.length() != length) return false;
+		for (int i = 0; i < length; i++) {
+			if (name.charAt(i) != source.get(start + i)) return false;
+		}
+		return true;
+	}
+
+	private static Symbol add(String name, int hash, int index) {
+		Symbol symbol = new Symbol(name, count++, hash);
+		table[index] = symbol;
+		//keep the table at most half full
+		if (count * 2 > table.length) {
+			Symbol[] old = table;
+			table = new Symbol[old.length * 2];
+			int mask = table.length - 1;
+			for (Symbol existing : old) {
+				if (existing == null) continue;
+				int i = existing.hash & mask;
+				while (table[i] != null) i = (i + 1) & mask;
+				table[i] = existing;
+			}
+		}
+		return symbol;
+	}
+
+	@Override
+	public int hashCode() {
+		return id;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+}
@@ -2,20 +2,50 @@ package space.bbkr.lang.jlox;
 
 import javax.annotation.Nullable;
 
-class Token {
-	final TokenType type;
-	final String lexeme;
+public class Token {
+	public final TokenType type;
+	public final String lexeme;
 	@Nullable
-	final Object literal;
-	final int line;
-	final int column;
+	public final Object literal;
+	//the interned name, for tokens that name something - identifiers, `this` and `super`
+	@Nullable
+	public final Symbol symbol;
+	//where the token ends in the source - line and column are only worked out from it for errors
+	final LineMap lines;
+	final int offset;
 
-	Token(TokenType type, String lexeme, @Nullable Object literal, int line, int column) {
+	Token(TokenType type, String lexeme, @Nullable Object literal, LineMap lines, int offset) {
 		this.type = type;
 		this.lexeme = lexeme;
 		this.literal = literal;
-		this.line = line;
-		this.column = column;
+		this.lines = lines;
+		this.offset = offset;
+		switch (type) {
+			case IDENTIFIER: symbol = Symbol.intern(lexeme); break;
+			case THIS: symbol = Symbol.THIS; break;
+			case SUPER: symbol = Symbol.SUPER; break;
+			default: symbol = null;
+		}
+	}
+
+	/**
+	 * An identifier, already interned by the scanner. Its lexeme is the symbol's name, so it isn't stored twice.
+	 */
+	Token(Symbol symbol, LineMap lines, int offset) {
+		this.type = TokenType.IDENTIFIER;
+		this.lexeme = symbol.name;
+		this.literal = null;
+		this.symbol = symbol;
+		this.lines = lines;
+		this.offset = offset;
+	}
+
+	public int line() {
+		return lines.line(offset);
+	}
+
+	public int column() {
+		return lines.column(offset);
 	}
 
 	@Override
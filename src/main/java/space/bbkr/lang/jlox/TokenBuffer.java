@@ -0,0 +1,114 @@
+package space.bbkr.lang.jlox;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+import javax.annotation.Nullable;
+
+/**
+ * Every token of a script, scanned ahead of time and kept as parallel primitive arrays instead of {@link Token} objects.
+ * Each token is just its type, where it ends up in the source, how long it is, and which literal it has if any.
+ * Lexemes are only decoded and {@link Token}s only made when the {@link Parser} reads them through {@link #reader()}.
+ */
+final class TokenBuffer {
+	private static final TokenType[] TYPES = TokenType.values();
+	//the literal index for tokens without one
+	private static final int NO_LITERAL = -1;
+
+	private final ByteBuffer source;
+	final LineMap lines;
+	private byte[] types = new byte[256];
+	private int[] starts = new int[256];
+	private int[] lengths = new int[256];
+	private int[] literalIndices = new int[256];
+	//numbers, strings, and the symbols of identifiers
+	private Object[] literals = new Object[64];
+	private int size = 0;
+	private int literalCount = 0;
+
+	TokenBuffer(ByteBuffer source, LineMap lines) {
+		this.source = source;
+		this.lines = lines;
+	}
+
+	void add(TokenType type, int start, int length, @Nullable Object literal) {
+		if (size == types.length) {
+			int capacity = size * 2;
+			types = Arrays.copyOf(types, capacity);
+			starts = Arrays.copyOf(starts, capacity);
+			lengths = Arrays.copyOf(lengths, capacity);
+			literalIndices = Arrays.copyOf(literalIndices, capacity);
+		}
+		types[size] = (byte)type.ordinal();
+		starts[size] = start;
+		lengths[size] = length;
+		if (literal == null) {
+			literalIndices[size] = NO_LITERAL;
+		} else {
+			if (literalCount == literals.length) literals = Arrays.copyOf(literals, literalCount * 2);
+			literalIndices[size] = literalCount;
+			literals[literalCount++] = literal;
+		}
+		size++;
+	}
+
+	int size() {
+		return size;
+	}
+
+	TokenType type(int index) {
+		return TYPES[types[index]];
+	}
+
+	int start(int index) {
+		return starts[index];
+	}
+
+	int length(int index) {
+		return lengths[index];
+	}
+
+	@Nullable
+	Object literal(int index) {
+		int literal = literalIndices[index];
+		return literal == NO_LITERAL? null : literals[literal];
+	}
+
+	boolean contains(TokenType type) {
+		byte ordinal = (byte)type.ordinal();
+		for (int i = 0; i < size; i++) {
+			if (types[i] == ordinal) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Make the full token for an index, decoding its lexeme from the source.
+	 */
+	Token token(int index) {
+		TokenType type = type(index);
+		Object literal = literal(index);
+		int end = starts[index] + lengths[index];
+		if (literal instanceof Symbol) return new Token((Symbol)literal, lines, end);
+		String lexeme = literal == null? Scanner.lexeme(type) : text(starts[index], lengths[index]);
+		return new Token(type, lexeme, literal, lines, end);
+	}
+
+	/**
+	 * @return Every token in order, made as they're asked for, ending with EOF.
+	 */
+	Supplier<Token> reader() {
+		int[] next = {0};
+		return () -> token(next[0]++);
+	}
+
+	private String text(int start, int length) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = source.get(start + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,63 @@
+package space.bbkr.lang.jlox;
+
+import java.util.function.Supplier;
+
+/**
+ * Hands tokens to the {@link Parser} as it asks for them, pulling them from the {@link Scanner} only when needed.
+ * Just the previous token and a small window ahead are kept, so scanning and parsing happen in one pass
+ * and memory for tokens stays the same no matter how long the script is.
+ */
+final class TokenSource {
+	//how far ahead the parser can look - it only ever needs the next token, but leave room for one more
+	private static final int LOOKAHEAD = 2;
+
+	private final Supplier<Token> supplier;
+	private final Token[] window = new Token[LOOKAHEAD];
+	private int head = 0;
+	private int buffered = 0;
+	private Token previous = null;
+	private Token eof = null;
+
+	/**
+	 * @param supplier Where tokens come from, ending with an EOF token. It won't be asked for anything past that.
+	 */
+	TokenSource(Supplier<Token> supplier) {
+		this.supplier = supplier;
+	}
+
+	/**
+	 * @param distance How many tokens past the next one to look, less than {@link #LOOKAHEAD}.
+	 */
+	Token peek(int distance) {
+		while (buffered <= distance) {
+			window[(head + buffered) % LOOKAHEAD] = pull();
+			buffered++;
+		}
+		return window[(head + distance) % LOOKAHEAD];
+	}
+
+	Token peek() {
+		return peek(0);
+	}
+
+	Token previous() {
+		return previous;
+	}
+
+	/**
+	 * Move past the next token, which becomes the previous one.
+	 */
+	void advance() {
+		previous = peek();
+		window[head] = null;
+		head = (head + 1) % LOOKAHEAD;
+		buffered--;
+	}
+
+	private Token pull() {
+		if (eof != null) return eof;
+		Token token = supplier.get();
+		if (token.type == TokenType.EOF) eof = token;
+		return token;
+	}
+}
@@ -1,6 +1,6 @@
 package space.bbkr.lang.jlox;
 
-enum TokenType {
+public enum TokenType {
 	//single-char tokens
 	LEFT_PAREN, RIGHT_PAREN, LEFT_BRACE, RIGHT_BRACE, COLON, COMMA, DOT, MINUS, PLUS, QUESTION, SEMICOLON, SLASH, STAR,
 
@@ -15,7 +15,6 @@ enum TokenType {
 
 	//keywords
 	//TODO: convert `and` and `or` to `&&` and `||`, maybe add bitwise logic?
-	//TODO: `val` not yet implemented
 	AND, BREAK, CLASS, ELSE, FALSE, FUN, FOR, IF, NIL, OR, RETURN, SUPER, THIS, TRUE, VAL, VAR, WHILE,
 
 	//eof
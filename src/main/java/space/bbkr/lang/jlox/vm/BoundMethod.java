@@ -0,0 +1,19 @@
+package space.bbkr.lang.jlox.vm;
+
+/**
+ * A method pulled off of an instance without being called right away, so it needs to remember its receiver.
+ */
+class BoundMethod {
+	final Object receiver;
+	final Closure method;
+
+	BoundMethod(Object receiver, Closure method) {
+		this.receiver = receiver;
+		this.method = method;
+	}
+
+	@Override
+	public String toString() {
+		return method.toString();
+	}
+}
@@ -0,0 +1,53 @@
+package space.bbkr.lang.jlox.vm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import space.bbkr.lang.jlox.Token;
+
+/**
+ * A block of bytecode, along with its constant pool. Every byte remembers the token it was compiled from,
+ * so the VM can report runtime errors at the same place the tree-walking interpreter would.
+ */
+class Chunk {
+	byte[] code = new byte[16];
+	Token[] tokens = new Token[16];
+	int count = 0;
+	private final List<Object> constantList = new ArrayList<>();
+	private final Map<Object, Integer> constantIndices = new HashMap<>();
+	Object[] constants = new Object[0];
+
+	void write(byte value, Token token) {
+		if (count == code.length) {
+			code = Arrays.copyOf(code, count * 2);
+			tokens = Arrays.copyOf(tokens, count * 2);
+		}
+		code[count] = value;
+		tokens[count] = token;
+		count++;
+	}
+
+	/**
+	 * @return The index of the value in the constant pool, reusing an existing entry for equal strings and numbers.
+	 */
+	int addConstant(Object value) {
+		boolean shareable = value instanceof String || value instanceof Double;
+		if (shareable && constantIndices.containsKey(value)) return constantIndices.get(value);
+		constantList.add(value);
+		int index = constantList.size() - 1;
+		if (shareable) constantIndices.put(value, index);
+		return index;
+	}
+
+	/**
+	 * Trim the buffers and freeze the constant pool into an array for fast access while running.
+	 */
+	void finish() {
+		code = Arrays.copyOf(code, count);
+		tokens = Arrays.copyOf(tokens, count);
+		constants = constantList.toArray();
+	}
+}
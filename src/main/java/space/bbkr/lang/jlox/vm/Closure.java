@@ -0,0 +1,19 @@
+package space.bbkr.lang.jlox.vm;
+
+/**
+ * A {@link FunctionPrototype} paired with the variables it captured. This is what actually gets called at runtime.
+ */
+class Closure {
+	final FunctionPrototype function;
+	final Upvalue[] upvalues;
+
+	Closure(FunctionPrototype function) {
+		this.function = function;
+		this.upvalues = new Upvalue[function.upvalueCount];
+	}
+
+	@Override
+	public String toString() {
+		return function.toString();
+	}
+}
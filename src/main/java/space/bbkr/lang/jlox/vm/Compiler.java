@@ -0,0 +1,702 @@
+package space.bbkr.lang.jlox.vm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import space.bbkr.lang.jlox.Expression;
+import space.bbkr.lang.jlox.Lox;
+import space.bbkr.lang.jlox.Statement;
+import space.bbkr.lang.jlox.Token;
+import space.bbkr.lang.jlox.TokenType;
+
+/**
+ * Compiler from a resolved syntax tree into bytecode for the {@link VM}.
+ * There's one compiler per function being compiled, linked to the compiler for the enclosing function so that
+ * captured variables can be turned into upvalues. Type checking has already been done by the resolver by this point,
+ * so the only errors left to report here are limits of the bytecode format.
+ * (see <a href="https://craftinginterpreters.com/local-variables.html">Local Variables</a>)
+ */
+class Compiler implements Expression.Visitor<Void>, Statement.Visitor<Void> {
+	private static final int MAX_LOCALS = 256;
+	private static final int MAX_UPVALUES = 256;
+
+	@Nullable
+	private final Compiler enclosing;
+	private final FunctionPrototype function;
+	private final FunctionKind kind;
+	private final List<Local> locals = new ArrayList<>();
+	private final List<UpvalueReference> upvalues = new ArrayList<>();
+	private int scopeDepth = 0;
+	@Nullable
+	private Loop currentLoop = null;
+	@Nullable
+	private Token current; //the token any emitted bytes are attributed to
+	private boolean hadError = false;
+
+	Compiler() {
+		this(null, FunctionKind.SCRIPT, null, null);
+	}
+
+	private Compiler(@Nullable Compiler enclosing, FunctionKind kind, @Nullable String name, @Nullable Token token) {
+		this.enclosing = enclosing;
+		this.kind = kind;
+		this.function = new FunctionPrototype(name);
+		this.current = token;
+		//slot zero holds the receiver for methods, and the called function otherwise
+		boolean hasReceiver = kind == FunctionKind.METHOD || kind == FunctionKind.INITIALIZER;
+		locals.add(new Local(hasReceiver? "this" : "", 0));
+	}
+
+	/**
+	 * @return The top-level script as a function, or null if there was an error.
+	 */
+	@Nullable
+	FunctionPrototype compile(List<Statement> statements) {
+		for (Statement statement : statements) {
+			compile(statement);
+		}
+		FunctionPrototype script = endCompiler();
+		return hadError? null : script;
+	}
+
+	@Override
+	public Void visitAssignExpression(Expression.AssignExpression expression) {
+		compile(expression.value);
+		current = expression.name;
+		namedVariable(expression.name.lexeme, true);
+		return null;
+	}
+
+	@Override
+	public Void visitTernaryExpression(Expression.TernaryExpression expression) {
+		compile(expression.condition);
+		current = expression.question;
+		int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emit(OpCode.POP);
+		compile(expression.positive);
+		int endJump = emitJump(OpCode.JUMP);
+		patchJump(elseJump);
+		emit(OpCode.POP);
+		compile(expression.negative);
+		patchJump(endJump);
+		return null;
+	}
+
+	@Override
+	public Void visitLogicalExpression(Expression.LogicalExpression expression) {
+		compile(expression.left);
+		current = expression.operator;
+		if (expression.operator.type == TokenType.AND) {
+			int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+			emit(OpCode.POP);
+			compile(expression.right);
+			patchJump(endJump);
+		} else {
+			int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+			int endJump = emitJump(OpCode.JUMP);
+			patchJump(elseJump);
+			emit(OpCode.POP);
+			compile(expression.right);
+			patchJump(endJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitBinaryExpression(Expression.BinaryExpression expression) {
+		binary(expression.left, expression.operator, expression.right);
+		return null;
+	}
+
+	@Override
+	public Void visitUnaryExpression(Expression.UnaryExpression expression) {
+		unary(expression.operator, expression.right);
+		return null;
+	}
+
+	//the VM's operators already check their operands cheaply, so specialized nodes compile the same as generic ones
+	@Override
+	public Void visitNumberBinaryExpression(Expression.NumberBinaryExpression expression) {
+		binary(expression.left, expression.operator, expression.right);
+		return null;
+	}
+
+	@Override
+	public Void visitNumberCompareExpression(Expression.NumberCompareExpression expression) {
+		binary(expression.left, expression.operator, expression.right);
+		return null;
+	}
+
+	@Override
+	public Void visitConcatExpression(Expression.ConcatExpression expression) {
+		binary(expression.left, expression.operator, expression.right);
+		return null;
+	}
+
+	@Override
+	public Void visitNegateExpression(Expression.NegateExpression expression) {
+		unary(expression.operator, expression.right);
+		return null;
+	}
+
+	@Override
+	public Void visitNotExpression(Expression.NotExpression expression) {
+		unary(expression.operator, expression.right);
+		return null;
+	}
+
+	private void binary(Expression left, Token operator, Expression right) {
+		compile(left);
+		compile(right);
+		current = operator;
+		switch (operator.type) {
+			case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+			case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+			case GREATER: emit(OpCode.GREATER); break;
+			case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+			case LESS: emit(OpCode.LESS); break;
+			case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+			case PLUS: emit(OpCode.ADD); break;
+			case MINUS: emit(OpCode.SUBTRACT); break;
+			case STAR: emit(OpCode.MULTIPLY); break;
+			case SLASH: emit(OpCode.DIVIDE); break;
+		}
+	}
+
+	private void unary(Token operator, Expression right) {
+		compile(right);
+		current = operator;
+		if (operator.type == TokenType.BANG) {
+			emit(OpCode.NOT);
+		} else {
+			emit(OpCode.NEGATE);
+		}
+	}
+
+	@Override
+	public Void visitCallExpression(Expression.CallExpression expression) {
+		if (expression.callee instanceof Expression.GetExpression) {
+			//method call - skip creating a bound method
+			Expression.GetExpression get = (Expression.GetExpression)expression.callee;
+			compile(get.object);
+			compileArguments(expression.arguments);
+			current = get.name;
+			emit(OpCode.INVOKE);
+			emitShort(identifierConstant(get.name.lexeme));
+		} else if (expression.callee instanceof Expression.SuperExpression) {
+			Expression.SuperExpression superExpression = (Expression.SuperExpression)expression.callee;
+			current = superExpression.keyword;
+			namedVariable("this", false);
+			compileArguments(expression.arguments);
+			current = superExpression.method;
+			namedVariable("super", false);
+			emit(OpCode.SUPER_INVOKE);
+			emitShort(identifierConstant(superExpression.method.lexeme));
+		} else {
+			compile(expression.callee);
+			compileArguments(expression.arguments);
+			current = expression.paren;
+			emit(OpCode.CALL);
+		}
+		current = expression.paren;
+		emit((byte)expression.arguments.size());
+		return null;
+	}
+
+	@Override
+	public Void visitGetExpression(Expression.GetExpression expression) {
+		compile(expression.object);
+		current = expression.name;
+		emit(OpCode.GET_PROPERTY);
+		emitShort(identifierConstant(expression.name.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitSetExpression(Expression.SetExpression expression) {
+		compile(expression.object);
+		compile(expression.value);
+		current = expression.name;
+		emit(OpCode.SET_PROPERTY);
+		emitShort(identifierConstant(expression.name.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitLiteralExpression(Expression.LiteralExpression expression) {
+		if (expression.value == null) {
+			emit(OpCode.NIL);
+		} else if (expression.value instanceof Boolean) {
+			emit((boolean)expression.value? OpCode.TRUE : OpCode.FALSE);
+		} else {
+			emit(OpCode.CONSTANT);
+			emitShort(makeConstant(expression.value));
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitSuperExpression(Expression.SuperExpression expression) {
+		current = expression.keyword;
+		namedVariable("this", false);
+		namedVariable("super", false);
+		current = expression.method;
+		emit(OpCode.GET_SUPER);
+		emitShort(identifierConstant(expression.method.lexeme));
+		return null;
+	}
+
+	@Override
+	public Void visitThisExpression(Expression.ThisExpression expression) {
+		current = expression.keyword;
+		namedVariable("this", false);
+		return null;
+	}
+
+	@Override
+	public Void visitVariableExpression(Expression.VariableExpression expression) {
+		current = expression.name;
+		namedVariable(expression.name.lexeme, false);
+		return null;
+	}
+
+	@Override
+	public Void visitGroupingExpression(Expression.GroupingExpression expression) {
+		compile(expression.expression);
+		return null;
+	}
+
+	@Override
+	public Void visitClassExpression(Expression.ClassExpression expression) {
+		classExpression(expression.clazz);
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionExpression(Expression.FunctionExpression expression) {
+		function(expression.function, FunctionKind.FUNCTION);
+		return null;
+	}
+
+	@Override
+	public Void visitParameterExpression(Expression.ParameterExpression expression) {
+		return null; //parameters are declared by function()
+	}
+
+	@Override
+	public Void visitIfStatement(Statement.IfStatement statement) {
+		compile(statement.condition);
+		current = statement.keyword;
+		int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emit(OpCode.POP);
+		compile(statement.thenBranch);
+		int elseJump = emitJump(OpCode.JUMP);
+		patchJump(thenJump);
+		emit(OpCode.POP);
+		if (statement.elseBranch != null) compile(statement.elseBranch);
+		patchJump(elseJump);
+		return null;
+	}
+
+	@Override
+	public Void visitReturnStatement(Statement.ReturnStatement statement) {
+		current = statement.keyword;
+		if (statement.value == null) {
+			emitReturn();
+		} else {
+			compile(statement.value);
+			emit(OpCode.RETURN);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitWhileStatement(Statement.WhileStatement statement) {
+		int loopStart = function.chunk.count;
+		compile(statement.condition);
+		current = statement.keyword;
+		int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+		emit(OpCode.POP);
+
+		Loop loop = new Loop(currentLoop, scopeDepth);
+		currentLoop = loop;
+		compile(statement.body);
+		currentLoop = loop.enclosing;
+
+		current = statement.keyword;
+		emitLoop(loopStart);
+		patchJump(exitJump);
+		emit(OpCode.POP);
+		//breaks have already popped the condition, so they land after the exit path's pop
+		for (int breakJump : loop.breakJumps) {
+			patchJump(breakJump);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitBreakStatement(Statement.BreakStatement statement) {
+		current = statement.keyword;
+		if (currentLoop == null) {
+			error(statement.keyword, "Cannot break from outside a while loop.");
+			return null;
+		}
+		//discard the locals of every scope we're jumping out of, but keep them declared for the rest of the block
+		for (int i = locals.size() - 1; i >= 0 && locals.get(i).depth > currentLoop.scopeDepth; i--) {
+			emit(locals.get(i).captured? OpCode.CLOSE_UPVALUE : OpCode.POP);
+		}
+		currentLoop.breakJumps.add(emitJump(OpCode.JUMP));
+		return null;
+	}
+
+	@Override
+	public Void visitBlockStatement(Statement.BlockStatement statement) {
+		beginScope();
+		for (Statement inner : statement.statements) {
+			compile(inner);
+		}
+		endScope();
+		return null;
+	}
+
+	@Override
+	public Void visitClassStatement(Statement.ClassStatement statement) {
+		if (statement.name.type == TokenType.IDENTIFIER) {
+			classDeclaration(statement, statement.name.lexeme);
+		} else {
+			classExpression(statement);
+			emit(OpCode.POP);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitFunctionStatement(Statement.FunctionStatement statement) {
+		current = statement.name;
+		if (statement.name.type == TokenType.IDENTIFIER) {
+			declareVariable(statement.name.lexeme);
+			//mark it ready right away, so the function can refer to itself
+			if (scopeDepth > 0) markInitialized();
+			function(statement, FunctionKind.FUNCTION);
+			current = statement.name;
+			defineVariable(statement.name.lexeme);
+		} else {
+			function(statement, FunctionKind.FUNCTION);
+			emit(OpCode.POP);
+		}
+		return null;
+	}
+
+	@Override
+	public Void visitVarStatement(Statement.VarStatement statement) {
+		current = statement.name;
+		declareVariable(statement.name.lexeme);
+		if (statement.initializer != null) {
+			compile(statement.initializer);
+		} else {
+			emit(OpCode.NIL);
+		}
+		current = statement.name;
+		defineVariable(statement.name.lexeme);
+		return null;
+	}
+
+	@Override
+	public Void visitExpressionStatement(Statement.ExpressionStatement statement) {
+		compile(statement.expression);
+		emit(OpCode.POP);
+		return null;
+	}
+
+	private void compile(Statement statement) {
+		statement.accept(this);
+	}
+
+	private void compile(Expression expression) {
+		expression.accept(this);
+	}
+
+	private void compileArguments(List<Expression> arguments) {
+		for (Expression argument : arguments) {
+			compile(argument);
+		}
+	}
+
+	//functions and classes
+	private void function(Statement.FunctionStatement declaration, FunctionKind kind) {
+		String name = declaration.name.type == TokenType.IDENTIFIER? declaration.name.lexeme : null;
+		Compiler compiler = new Compiler(this, kind, name, declaration.name);
+		compiler.beginScope();
+		for (Expression.ParameterExpression param : declaration.params) {
+			compiler.function.arity++;
+			compiler.current = param.name;
+			compiler.declareVariable(param.name.lexeme);
+			compiler.markInitialized();
+		}
+		for (Statement statement : declaration.body) {
+			compiler.compile(statement);
+		}
+		emitClosure(compiler);
+	}
+
+	private void emitClosure(Compiler compiler) {
+		FunctionPrototype prototype = compiler.endCompiler();
+		emit(OpCode.CLOSURE);
+		emitShort(makeConstant(prototype));
+		for (UpvalueReference upvalue : compiler.upvalues) {
+			emit((byte)(upvalue.isLocal? 1 : 0));
+			emit((byte)upvalue.index);
+		}
+	}
+
+	/**
+	 * Compile a class that needs to end up as a value on the stack instead of a variable.
+	 * Methods might need the class and its superclass as locals, which can't sit above temporaries on the stack,
+	 * so we build the class inside a hidden zero-argument function and call it straight away.
+	 */
+	private void classExpression(Statement.ClassStatement statement) {
+		Compiler compiler = new Compiler(this, FunctionKind.FUNCTION, null, statement.name);
+		compiler.beginScope();
+		//anonymous classes get a name that can't ever be written as an identifier
+		String name = statement.name.type == TokenType.IDENTIFIER? statement.name.lexeme : "class";
+		compiler.classDeclaration(statement, name);
+		compiler.namedVariable(name, false);
+		compiler.emit(OpCode.RETURN);
+		emitClosure(compiler);
+		emit(OpCode.CALL);
+		emit((byte)0);
+	}
+
+	private void classDeclaration(Statement.ClassStatement statement, String name) {
+		current = statement.name;
+		String className = statement.name.type == TokenType.IDENTIFIER? statement.name.lexeme : "";
+		declareVariable(name);
+		emit(OpCode.CLASS);
+		emitShort(identifierConstant(className));
+		defineVariable(name);
+
+		if (statement.superclass != null) {
+			visitVariableExpression(statement.superclass);
+			beginScope();
+			addLocal("super");
+			markInitialized();
+			namedVariable(name, false);
+			current = statement.superclass.name;
+			emit(OpCode.INHERIT);
+		}
+
+		namedVariable(name, false);
+		for (Statement.FunctionStatement method : statement.methods) {
+			FunctionKind kind = method.name.lexeme.equals("init")? FunctionKind.INITIALIZER : FunctionKind.METHOD;
+			function(method, kind);
+			current = method.name;
+			emit(OpCode.METHOD);
+			emitShort(identifierConstant(method.name.lexeme));
+		}
+		emit(OpCode.POP);
+
+		if (statement.superclass != null) endScope();
+	}
+
+	private FunctionPrototype endCompiler() {
+		emitReturn();
+		function.upvalueCount = upvalues.size();
+		function.chunk.finish();
+		if (enclosing != null && hadError) enclosing.hadError = true;
+		return function;
+	}
+
+	//variables
+	private void namedVariable(String name, boolean assign) {
+		int arg = resolveLocal(name);
+		if (arg != -1) {
+			emit(assign? OpCode.SET_LOCAL : OpCode.GET_LOCAL);
+			emit((byte)arg);
+		} else if ((arg = resolveUpvalue(name)) != -1) {
+			emit(assign? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE);
+			emit((byte)arg);
+		} else {
+			emit(assign? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL);
+			emitShort(identifierConstant(name));
+		}
+	}
+
+	private int resolveLocal(String name) {
+		for (int i = locals.size() - 1; i >= 0; i--) {
+			if (locals.get(i).name.equals(name)) return i;
+		}
+		return -1;
+	}
+
+	private int resolveUpvalue(String name) {
+		if (enclosing == null) return -1;
+
+		int local = enclosing.resolveLocal(name);
+		if (local != -1) {
+			enclosing.locals.get(local).captured = true;
+			return addUpvalue(local, true);
+		}
+
+		int upvalue = enclosing.resolveUpvalue(name);
+		if (upvalue != -1) return addUpvalue(upvalue, false);
+
+		return -1;
+	}
+
+	private int addUpvalue(int index, boolean isLocal) {
+		for (int i = 0; i < upvalues.size(); i++) {
+			UpvalueReference upvalue = upvalues.get(i);
+			if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+		}
+		if (upvalues.size() == MAX_UPVALUES) {
+			error(current, "Too many closure variables in function.");
+			return 0;
+		}
+		upvalues.add(new UpvalueReference(index, isLocal));
+		return upvalues.size() - 1;
+	}
+
+	private void declareVariable(String name) {
+		if (scopeDepth == 0) return; //globals are late-bound
+		addLocal(name);
+	}
+
+	private void addLocal(String name) {
+		if (locals.size() == MAX_LOCALS) {
+			error(current, "Too many local variables in function.");
+			return;
+		}
+		locals.add(new Local(name, -1));
+	}
+
+	private void defineVariable(String name) {
+		if (scopeDepth > 0) {
+			markInitialized();
+			return;
+		}
+		emit(OpCode.DEFINE_GLOBAL);
+		emitShort(identifierConstant(name));
+	}
+
+	private void markInitialized() {
+		if (scopeDepth == 0) return;
+		locals.get(locals.size() - 1).depth = scopeDepth;
+	}
+
+	private void beginScope() {
+		scopeDepth++;
+	}
+
+	private void endScope() {
+		scopeDepth--;
+		while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > scopeDepth) {
+			emit(locals.get(locals.size() - 1).captured? OpCode.CLOSE_UPVALUE : OpCode.POP);
+			locals.remove(locals.size() - 1);
+		}
+	}
+
+	//emitting
+	private void emit(byte value) {
+		function.chunk.write(value, current);
+	}
+
+	private void emitShort(int value) {
+		emit((byte)(value >> 8));
+		emit((byte)value);
+	}
+
+	private void emitReturn() {
+		if (kind == FunctionKind.INITIALIZER) {
+			emit(OpCode.GET_LOCAL);
+			emit((byte)0);
+		} else {
+			emit(OpCode.NIL);
+		}
+		emit(OpCode.RETURN);
+	}
+
+	private int emitJump(byte instruction) {
+		emit(instruction);
+		emitShort(0xffff);
+		return function.chunk.count - 2;
+	}
+
+	private void patchJump(int offset) {
+		//-2 to adjust for the bytecode for the jump offset itself
+		int jump = function.chunk.count - offset - 2;
+		if (jump > 0xffff) error(current, "Too much code to jump over.");
+		function.chunk.code[offset] = (byte)(jump >> 8);
+		function.chunk.code[offset + 1] = (byte)jump;
+	}
+
+	private void emitLoop(int loopStart) {
+		emit(OpCode.LOOP);
+		int offset = function.chunk.count - loopStart + 2;
+		if (offset > 0xffff) error(current, "Loop body too large.");
+		emitShort(offset);
+	}
+
+	private int identifierConstant(String name) {
+		return makeConstant(name);
+	}
+
+	private int makeConstant(Object value) {
+		int constant = function.chunk.addConstant(value);
+		if (constant > 0xffff) {
+			error(current, "Too many constants in one chunk.");
+			return 0;
+		}
+		return constant;
+	}
+
+	private void error(@Nullable Token token, String message) {
+		if (token != null) {
+			Lox.error(token, message);
+		} else {
+			System.err.println("Error: " + message);
+		}
+		hadError = true;
+	}
+
+	private enum FunctionKind {
+		SCRIPT,
+		FUNCTION,
+		INITIALIZER,
+		METHOD
+	}
+
+	private static class Local {
+		final String name;
+		int depth; //-1 until the variable is initialized
+		boolean captured = false;
+
+		Local(String name, int depth) {
+			this.name = name;
+			this.depth = depth;
+		}
+	}
+
+	private static class UpvalueReference {
+		final int index;
+		final boolean isLocal;
+
+		UpvalueReference(int index, boolean isLocal) {
+			this.index = index;
+			this.isLocal = isLocal;
+		}
+	}
+
+	private static class Loop {
+		@Nullable
+		final Loop enclosing;
+		final int scopeDepth;
+		final List<Integer> breakJumps = new ArrayList<>();
+
+		Loop(@Nullable Loop enclosing, int scopeDepth) {
+			this.enclosing = enclosing;
+			this.scopeDepth = scopeDepth;
+		}
+	}
+}
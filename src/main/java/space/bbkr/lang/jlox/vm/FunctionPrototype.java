@@ -0,0 +1,24 @@
+package space.bbkr.lang.jlox.vm;
+
+import javax.annotation.Nullable;
+
+/**
+ * A compiled function: its bytecode and how many upvalues a closure over it needs. Created by the {@link Compiler}.
+ */
+class FunctionPrototype {
+	final Chunk chunk = new Chunk();
+	@Nullable
+	final String name; //null for the top-level script and anonymous functions
+	int arity = 0;
+	int upvalueCount = 0;
+
+	FunctionPrototype(@Nullable String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		if (name == null) return "<anonymous fn>";
+		return "<fn " + name + ">";
+	}
+}
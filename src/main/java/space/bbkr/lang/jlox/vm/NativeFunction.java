@@ -0,0 +1,23 @@
+package space.bbkr.lang.jlox.vm;
+
+/**
+ * A function implemented in Java, like `print` and `clock`.
+ */
+class NativeFunction {
+	final int arity;
+	final Body body;
+
+	NativeFunction(int arity, Body body) {
+		this.arity = arity;
+		this.body = body;
+	}
+
+	@Override
+	public String toString() {
+		return "<native fn>";
+	}
+
+	interface Body {
+		Object call(Object[] arguments);
+	}
+}
@@ -0,0 +1,58 @@
+package space.bbkr.lang.jlox.vm;
+
+/**
+ * The instruction set for the {@link VM}. These are plain bytes instead of an enum so the VM can switch on them directly.
+ * Operands follow the opcode in the {@link Chunk}: constant indices are two bytes (big-endian), slots and counts are one.
+ */
+final class OpCode {
+	//constants and literals
+	static final byte CONSTANT = 0; //[index16] push a value from the constant pool
+	static final byte NIL = 1;
+	static final byte TRUE = 2;
+	static final byte FALSE = 3;
+	static final byte POP = 4;
+
+	//variables
+	static final byte GET_LOCAL = 5; //[slot]
+	static final byte SET_LOCAL = 6; //[slot]
+	static final byte GET_GLOBAL = 7; //[name16]
+	static final byte DEFINE_GLOBAL = 8; //[name16]
+	static final byte SET_GLOBAL = 9; //[name16]
+	static final byte GET_UPVALUE = 10; //[index]
+	static final byte SET_UPVALUE = 11; //[index]
+	static final byte GET_PROPERTY = 12; //[name16]
+	static final byte SET_PROPERTY = 13; //[name16]
+	static final byte GET_SUPER = 14; //[name16]
+
+	//operators
+	static final byte EQUAL = 15;
+	static final byte NOT_EQUAL = 16;
+	static final byte GREATER = 17;
+	static final byte GREATER_EQUAL = 18;
+	static final byte LESS = 19;
+	static final byte LESS_EQUAL = 20;
+	static final byte ADD = 21;
+	static final byte SUBTRACT = 22;
+	static final byte MULTIPLY = 23;
+	static final byte DIVIDE = 24;
+	static final byte NOT = 25;
+	static final byte NEGATE = 26;
+
+	//control flow
+	static final byte JUMP = 27; //[offset16] jump forwards
+	static final byte JUMP_IF_FALSE = 28; //[offset16] jump forwards if the (boolean) top of stack is false, without popping
+	static final byte LOOP = 29; //[offset16] jump backwards
+
+	//functions and classes
+	static final byte CALL = 30; //[argCount]
+	static final byte INVOKE = 31; //[name16][argCount] fused get + call for `object.method(args)`
+	static final byte SUPER_INVOKE = 32; //[name16][argCount] fused get + call for `super.method(args)`
+	static final byte CLOSURE = 33; //[function16] followed by [isLocal][index] for each upvalue
+	static final byte CLOSE_UPVALUE = 34;
+	static final byte RETURN = 35;
+	static final byte CLASS = 36; //[name16]
+	static final byte INHERIT = 37;
+	static final byte METHOD = 38; //[name16]
+
+	private OpCode() { }
+}
@@ -0,0 +1,20 @@
+package space.bbkr.lang.jlox.vm;
+
+import javax.annotation.Nullable;
+
+/**
+ * A variable captured by a closure. While the variable is still on the VM stack the upvalue points at its slot,
+ * and once the variable goes out of scope the value is moved into the upvalue itself ("closed").
+ */
+class Upvalue {
+	int slot; //-1 once closed
+	@Nullable
+	Object closed;
+	@Nullable
+	Upvalue next; //linked list of open upvalues, sorted by slot from the top of the stack down
+
+	Upvalue(int slot, @Nullable Upvalue next) {
+		this.slot = slot;
+		this.next = next;
+	}
+}
@@ -0,0 +1,519 @@
+package space.bbkr.lang.jlox.vm;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+import space.bbkr.lang.jlox.Lox;
+import space.bbkr.lang.jlox.RuntimeError;
+import space.bbkr.lang.jlox.Statement;
+import space.bbkr.lang.jlox.Token;
+import space.bbkr.lang.jlox.TokenType;
+
+/**
+ * A stack-based virtual machine, as an alternative to the tree-walking interpreter.
+ * Statements are compiled to bytecode by the {@link Compiler} and then run in one big switch,
+ * with locals living in stack slots instead of environment maps.
+ * (see <a href="https://craftinginterpreters.com/a-virtual-machine.html">A Virtual Machine</a>)
+ */
+public class VM {
+	private static final int FRAMES_MAX = 1024;
+	private static final int STACK_MAX = FRAMES_MAX * 256;
+
+	private final Object[] stack = new Object[STACK_MAX];
+	private int stackTop = 0;
+	private final CallFrame[] frames = new CallFrame[FRAMES_MAX];
+	private int frameCount = 0;
+	@Nullable
+	private Upvalue openUpvalues = null;
+	private final Map<String, Object> globals = new HashMap<>();
+
+	public VM() {
+		for (int i = 0; i < FRAMES_MAX; i++) {
+			frames[i] = new CallFrame();
+		}
+		//TODO: better stdlib
+		globals.put("print", new NativeFunction(1, arguments -> {
+			System.out.println(stringify(arguments[0]));
+			return null;
+		}));
+		globals.put("clock", new NativeFunction(0, arguments -> (double)System.currentTimeMillis() / 1000d));
+	}
+
+	/**
+	 * Compile and run resolved statements. Globals stick around between calls, for the REPL.
+	 */
+	public void interpret(List<Statement> statements) {
+		FunctionPrototype script = new Compiler().compile(statements);
+		if (script == null) return;
+
+		Closure closure = new Closure(script);
+		push(closure);
+		try {
+			call(closure, 0, null);
+			run();
+		} catch (RuntimeError e) {
+			Lox.runtimeError(e);
+		} finally {
+			Arrays.fill(stack, 0, stackTop, null);
+			stackTop = 0;
+			frameCount = 0;
+			openUpvalues = null;
+		}
+	}
+
+	private void run() {
+		CallFrame frame = frames[frameCount - 1];
+		byte[] code = frame.closure.function.chunk.code;
+		Object[] constants = frame.closure.function.chunk.constants;
+		Token[] tokens = frame.closure.function.chunk.tokens;
+		int ip = frame.ip;
+		int base = frame.base;
+		Object[] stack = this.stack;
+
+		while (true) {
+			switch (code[ip++]) {
+				case OpCode.CONSTANT:
+					stack[stackTop++] = constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					break;
+				case OpCode.NIL:
+					stack[stackTop++] = null;
+					break;
+				case OpCode.TRUE:
+					stack[stackTop++] = true;
+					break;
+				case OpCode.FALSE:
+					stack[stackTop++] = false;
+					break;
+				case OpCode.POP:
+					stack[--stackTop] = null;
+					break;
+				case OpCode.GET_LOCAL:
+					stack[stackTop++] = stack[base + (code[ip++] & 0xff)];
+					break;
+				case OpCode.SET_LOCAL:
+					stack[base + (code[ip++] & 0xff)] = stack[stackTop - 1];
+					break;
+				case OpCode.GET_GLOBAL: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					Object value = globals.get(name);
+					if (value == null && !globals.containsKey(name)) {
+						throw new RuntimeError("DefError", tokens[ip - 1], "Undefined variable '" + name + "'.");
+					}
+					stack[stackTop++] = value;
+					break;
+				}
+				case OpCode.DEFINE_GLOBAL: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					globals.put(name, stack[--stackTop]);
+					stack[stackTop] = null;
+					break;
+				}
+				case OpCode.SET_GLOBAL: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					if (!globals.containsKey(name)) {
+						throw new RuntimeError("DefError", tokens[ip - 1], "Undefined variable '" + name + "'.");
+					}
+					globals.put(name, stack[stackTop - 1]);
+					break;
+				}
+				case OpCode.GET_UPVALUE: {
+					Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					stack[stackTop++] = upvalue.slot == -1? upvalue.closed : stack[upvalue.slot];
+					break;
+				}
+				case OpCode.SET_UPVALUE: {
+					Upvalue upvalue = frame.closure.upvalues[code[ip++] & 0xff];
+					if (upvalue.slot == -1) {
+						upvalue.closed = stack[stackTop - 1];
+					} else {
+						stack[upvalue.slot] = stack[stackTop - 1];
+					}
+					break;
+				}
+				case OpCode.GET_PROPERTY: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					Object object = stack[stackTop - 1];
+					if (!(object instanceof VMInstance)) {
+						throw new RuntimeError("TypeError", tokens[ip - 1], "Only instances have properties.");
+					}
+					VMInstance instance = (VMInstance)object;
+					if (instance.fields.containsKey(name)) {
+						stack[stackTop - 1] = instance.fields.get(name);
+					} else {
+						stack[stackTop - 1] = bindMethod(instance.clazz, instance, name, tokens[ip - 1]);
+					}
+					break;
+				}
+				case OpCode.SET_PROPERTY: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					Object object = stack[stackTop - 2];
+					if (!(object instanceof VMInstance)) {
+						throw new RuntimeError("TypeError", tokens[ip - 1], "Only instances have fields.");
+					}
+					Object value = stack[--stackTop];
+					((VMInstance)object).fields.put(name, value);
+					stack[stackTop - 1] = value;
+					stack[stackTop] = null;
+					break;
+				}
+				case OpCode.GET_SUPER: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					VMClass superclass = (VMClass)stack[--stackTop];
+					stack[stackTop - 1] = bindMethod(superclass, stack[stackTop - 1], name, tokens[ip - 1]);
+					stack[stackTop] = null;
+					break;
+				}
+				case OpCode.EQUAL: {
+					Object right = stack[--stackTop];
+					stack[stackTop - 1] = isEqual(stack[stackTop - 1], right);
+					break;
+				}
+				case OpCode.NOT_EQUAL: {
+					Object right = stack[--stackTop];
+					stack[stackTop - 1] = !isEqual(stack[stackTop - 1], right);
+					break;
+				}
+				case OpCode.GREATER: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left > right;
+					break;
+				}
+				case OpCode.GREATER_EQUAL: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left >= right;
+					break;
+				}
+				case OpCode.LESS: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left < right;
+					break;
+				}
+				case OpCode.LESS_EQUAL: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left <= right;
+					break;
+				}
+				case OpCode.ADD: {
+					Object right = stack[--stackTop];
+					Object left = stack[stackTop - 1];
+					if (left instanceof Double && right instanceof Double) {
+						stack[stackTop - 1] = (double)left + (double)right;
+					} else if (left instanceof String || right instanceof String) {
+						stack[stackTop - 1] = stringify(left) + stringify(right);
+					} else {
+						throw new RuntimeError("TypeError", tokens[ip - 1],
+								"Operands for '+' must be two numbers or contain one string, but were '"
+										+ stringify(left) + "' and '" + stringify(right) + "' instead.");
+					}
+					break;
+				}
+				case OpCode.SUBTRACT: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left - right;
+					break;
+				}
+				case OpCode.MULTIPLY: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					stack[stackTop - 1] = left * right;
+					break;
+				}
+				case OpCode.DIVIDE: {
+					double right = checkNumber(tokens[ip - 1], stack[--stackTop]);
+					double left = checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					if (right == 0) throw new RuntimeError("MathError", tokens[ip - 1], "Cannot divide by zero.");
+					stack[stackTop - 1] = left / right;
+					break;
+				}
+				case OpCode.NOT:
+					stack[stackTop - 1] = !checkBoolean(tokens[ip - 1], stack[stackTop - 1]);
+					break;
+				case OpCode.NEGATE:
+					stack[stackTop - 1] = -checkNumber(tokens[ip - 1], stack[stackTop - 1]);
+					break;
+				case OpCode.JUMP: {
+					int offset = (code[ip++] & 0xff) << 8 | code[ip++] & 0xff;
+					ip += offset;
+					break;
+				}
+				case OpCode.JUMP_IF_FALSE: {
+					int offset = (code[ip++] & 0xff) << 8 | code[ip++] & 0xff;
+					if (!checkCondition(tokens[ip - 1], stack[stackTop - 1])) ip += offset;
+					break;
+				}
+				case OpCode.LOOP: {
+					int offset = (code[ip++] & 0xff) << 8 | code[ip++] & 0xff;
+					ip -= offset;
+					break;
+				}
+				case OpCode.CALL: {
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					callValue(stack[stackTop - argCount - 1], argCount, tokens[ip - 1]);
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					tokens = frame.closure.function.chunk.tokens;
+					ip = frame.ip;
+					base = frame.base;
+					break;
+				}
+				case OpCode.INVOKE: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					int argCount = code[ip++] & 0xff;
+					frame.ip = ip;
+					invoke(name, argCount, tokens[ip - 2], tokens[ip - 1]);
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					tokens = frame.closure.function.chunk.tokens;
+					ip = frame.ip;
+					base = frame.base;
+					break;
+				}
+				case OpCode.SUPER_INVOKE: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					int argCount = code[ip++] & 0xff;
+					VMClass superclass = (VMClass)stack[--stackTop];
+					stack[stackTop] = null;
+					frame.ip = ip;
+					call(findMethod(superclass, name, tokens[ip - 2]), argCount, tokens[ip - 1]);
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					tokens = frame.closure.function.chunk.tokens;
+					ip = frame.ip;
+					base = frame.base;
+					break;
+				}
+				case OpCode.CLOSURE: {
+					FunctionPrototype function = (FunctionPrototype)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					Closure closure = new Closure(function);
+					for (int i = 0; i < closure.upvalues.length; i++) {
+						boolean isLocal = code[ip++] == 1;
+						int index = code[ip++] & 0xff;
+						closure.upvalues[i] = isLocal? captureUpvalue(base + index) : frame.closure.upvalues[index];
+					}
+					stack[stackTop++] = closure;
+					break;
+				}
+				case OpCode.CLOSE_UPVALUE:
+					closeUpvalues(stackTop - 1);
+					stack[--stackTop] = null;
+					break;
+				case OpCode.RETURN: {
+					Object result = stack[--stackTop];
+					closeUpvalues(base);
+					frameCount--;
+					Arrays.fill(stack, base, stackTop, null);
+					if (frameCount == 0) {
+						stackTop = 0;
+						return;
+					}
+					stackTop = base;
+					stack[stackTop++] = result;
+					frame = frames[frameCount - 1];
+					code = frame.closure.function.chunk.code;
+					constants = frame.closure.function.chunk.constants;
+					tokens = frame.closure.function.chunk.tokens;
+					ip = frame.ip;
+					base = frame.base;
+					break;
+				}
+				case OpCode.CLASS: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					stack[stackTop++] = new VMClass(name.isEmpty()? null : name);
+					break;
+				}
+				case OpCode.INHERIT: {
+					Object superclass = stack[stackTop - 2];
+					if (!(superclass instanceof VMClass)) {
+						throw new RuntimeError("TypeError", tokens[ip - 1], "Superclass must be a class.");
+					}
+					VMClass subclass = (VMClass)stack[--stackTop];
+					subclass.superclass = (VMClass)superclass;
+					subclass.methods.putAll(((VMClass)superclass).methods); //copy-down inheritance
+					subclass.initializer = ((VMClass)superclass).initializer;
+					stack[stackTop] = null;
+					break;
+				}
+				case OpCode.METHOD: {
+					String name = (String)constants[(code[ip++] & 0xff) << 8 | code[ip++] & 0xff];
+					Closure method = (Closure)stack[--stackTop];
+					VMClass clazz = (VMClass)stack[stackTop - 1];
+					clazz.methods.put(name, method);
+					if (name.equals("init")) clazz.initializer = method;
+					stack[stackTop] = null;
+					break;
+				}
+			}
+		}
+	}
+
+	//calls
+	private void callValue(Object callee, int argCount, Token token) {
+		if (callee instanceof Closure) {
+			call((Closure)callee, argCount, token);
+		} else if (callee instanceof BoundMethod) {
+			BoundMethod bound = (BoundMethod)callee;
+			stack[stackTop - argCount - 1] = bound.receiver;
+			call(bound.method, argCount, token);
+		} else if (callee instanceof VMClass) {
+			VMClass clazz = (VMClass)callee;
+			stack[stackTop - argCount - 1] = new VMInstance(clazz);
+			if (clazz.initializer != null) {
+				call(clazz.initializer, argCount, token);
+			} else if (argCount != 0) {
+				throw new RuntimeError("DefError", token, "Expected 0 arguments but got " + argCount + " instead.");
+			}
+		} else if (callee instanceof NativeFunction) {
+			NativeFunction function = (NativeFunction)callee;
+			if (argCount != function.arity) {
+				throw new RuntimeError("DefError", token, "Expected " + function.arity
+						+ " arguments but got " + argCount + " instead.");
+			}
+			Object[] arguments = Arrays.copyOfRange(stack, stackTop - argCount, stackTop);
+			Object result = function.body.call(arguments);
+			Arrays.fill(stack, stackTop - argCount - 1, stackTop, null);
+			stackTop -= argCount + 1;
+			stack[stackTop++] = result;
+		} else {
+			throw new RuntimeError("TypeError", token, "Can only call functions and classes.");
+		}
+	}
+
+	private void call(Closure closure, int argCount, @Nullable Token token) {
+		if (argCount != closure.function.arity) {
+			throw new RuntimeError("DefError", token, "Expected " + closure.function.arity
+					+ " arguments but got " + argCount + " instead.");
+		}
+		if (frameCount == FRAMES_MAX || stackTop + 256 > STACK_MAX) {
+			throw new RuntimeError("StackError", token, "Stack overflow.");
+		}
+		CallFrame frame = frames[frameCount++];
+		frame.closure = closure;
+		frame.ip = 0;
+		frame.base = stackTop - argCount - 1;
+	}
+
+	private void invoke(String name, int argCount, Token nameToken, Token token) {
+		Object receiver = stack[stackTop - argCount - 1];
+		if (!(receiver instanceof VMInstance)) {
+			throw new RuntimeError("TypeError", nameToken, "Only instances have properties.");
+		}
+		VMInstance instance = (VMInstance)receiver;
+		//a field holding a function shadows a method
+		if (instance.fields.containsKey(name)) {
+			Object field = instance.fields.get(name);
+			stack[stackTop - argCount - 1] = field;
+			callValue(field, argCount, token);
+			return;
+		}
+		call(findMethod(instance.clazz, name, nameToken), argCount, token);
+	}
+
+	private Closure findMethod(VMClass clazz, String name, Token token) {
+		Closure method = clazz.methods.get(name);
+		if (method == null) {
+			throw new RuntimeError("DefError", token, "Undefined property '" + name + "'.");
+		}
+		return method;
+	}
+
+	private BoundMethod bindMethod(VMClass clazz, Object receiver, String name, Token token) {
+		return new BoundMethod(receiver, findMethod(clazz, name, token));
+	}
+
+	//upvalues
+	private Upvalue captureUpvalue(int slot) {
+		Upvalue previous = null;
+		Upvalue upvalue = openUpvalues;
+		while (upvalue != null && upvalue.slot > slot) {
+			previous = upvalue;
+			upvalue = upvalue.next;
+		}
+		if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+		Upvalue created = new Upvalue(slot, upvalue);
+		if (previous == null) {
+			openUpvalues = created;
+		} else {
+			previous.next = created;
+		}
+		return created;
+	}
+
+	private void closeUpvalues(int last) {
+		while (openUpvalues != null && openUpvalues.slot >= last) {
+			Upvalue upvalue = openUpvalues;
+			upvalue.closed = stack[upvalue.slot];
+			upvalue.slot = -1;
+			openUpvalues = upvalue.next;
+		}
+	}
+
+	//helpers
+	private void push(Object value) {
+		stack[stackTop++] = value;
+	}
+
+	private static double checkNumber(Token operator, Object operand) {
+		if (operand instanceof Double) return (double)operand;
+		throw new RuntimeError("TypeError", operator, "Operand for '" + operator.lexeme
+				+ "' must be a number, but was '" + stringify(operand) + "' instead.");
+	}
+
+	private static boolean checkBoolean(Token operator, Object operand) {
+		if (operand instanceof Boolean) return (boolean)operand;
+		//word for word what the interpreter says, missing quote and all, so scripts fail the same on both
+		throw new RuntimeError("TypeError", operator, "Operand for '" + operator.lexeme
+				+ "' must be a boolean, but was '" + stringify(operand) + " instead.");
+	}
+
+	/**
+	 * Check the condition of a jump, which ternaries word differently to every other operator, same as the interpreter.
+	 */
+	private static boolean checkCondition(Token operator, Object operand) {
+		if (operand instanceof Boolean) return (boolean)operand;
+		if (operator.type == TokenType.QUESTION) {
+			throw new RuntimeError("TypeError", operator, "Operand in ternary must be a boolean, but was '" + stringify(operand) + "' instead.");
+		}
+		return checkBoolean(operator, operand);
+	}
+
+	private static boolean isEqual(Object left, Object right) {
+		if (left == null && right == null) return true;
+		if (left == null) return false;
+		return left.equals(right);
+	}
+
+	static String stringify(Object object) {
+		if (object == null) return "nil";
+
+		// Hack. Work around Java adding ".0" to integer-valued doubles.
+		if (object instanceof Double) {
+			String text = object.toString();
+			if (text.endsWith(".0")) {
+				text = text.substring(0, text.length() - 2);
+			}
+			return text;
+		}
+
+		return object.toString();
+	}
+
+	private static class CallFrame {
+		Closure closure;
+		int ip;
+		int base; //stack slot of the callee (or receiver), with the arguments right after it
+	}
+}
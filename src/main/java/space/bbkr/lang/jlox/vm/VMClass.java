@@ -0,0 +1,29 @@
+package space.bbkr.lang.jlox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * A class in the VM. Methods are copied down from the superclass when it inherits, so lookup never walks the hierarchy.
+ */
+class VMClass {
+	@Nullable
+	final String name; //null for anonymous classes
+	final Map<String, Closure> methods = new HashMap<>();
+	@Nullable
+	VMClass superclass;
+	@Nullable
+	Closure initializer; //cached so construction doesn't need a lookup
+
+	VMClass(@Nullable String name) {
+		this.name = name;
+	}
+
+	@Override
+	public String toString() {
+		if (name == null) return "<anonymous class>";
+		return "<class " + name + ">";
+	}
+}
@@ -0,0 +1,21 @@
+package space.bbkr.lang.jlox.vm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An instance of a {@link VMClass}. Stores the fields/properties.
+ */
+class VMInstance {
+	final VMClass clazz;
+	final Map<String, Object> fields = new HashMap<>();
+
+	VMInstance(VMClass clazz) {
+		this.clazz = clazz;
+	}
+
+	@Override
+	public String toString() {
+		return "<instance of " + clazz.toString() + ">";
+	}
+}